@@ -0,0 +1,161 @@
+package TFTPBenchmarks;
+
+import TFTPCore.Log;
+import TFTPServer.BlockProducerRegistry;
+import TFTPServer.BlockSource;
+import TFTPServer.FileCache;
+import TFTPServer.MappedFileRegistry;
+import TFTPServer.PacketCache;
+import TFTPServer.PreparedPackets;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * BlockReadBenchmark - reading one block of a file for a DATA packet
+ * Plain JDK ways of reading a block are compared with the sources the
+ * server serves blocks from: its file cache, shared mapping, shared block
+ * producer and ready made packets. Blocks are read in order through a
+ * file which stays in the page cache, so the cost measured is the copy
+ * and the calls, not the disk.
+ * @author 246644
+ * @version 2023
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockReadBenchmark {
+    // size of the file read = 16MB
+    private final static int FILE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"512", "1428", "8192"})
+    public int blksize;
+
+    private File file;
+    private FileInputStream stream;
+    private RandomAccessFile randomAccess;
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    private BlockSource cached;
+    private BlockSource mapped;
+    private BlockSource producer;
+    private PreparedPackets prepared;
+    private ByteBuffer preparedView;
+    private byte[] array;
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+    private long block;
+    private long blocks;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Log.configure(Log.WARN, false);
+        file = File.createTempFile("tftp-bench", ".bin");
+        file.deleteOnExit();
+        byte[] data = new byte[FILE_SIZE];
+        new Random(1).nextBytes(data);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(data);
+        }
+        stream = new FileInputStream(file);
+        randomAccess = new RandomAccessFile(file, "r");
+        channel = randomAccess.getChannel();
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE);
+        FileCache.configure(2L * FILE_SIZE, false, false);
+        PacketCache.configure(4L * FILE_SIZE);
+        cached = FileCache.open(file);
+        prepared = PacketCache.get(cached, blksize);
+        preparedView = prepared.view();
+        mapped = MappedFileRegistry.acquire(file);
+        producer = BlockProducerRegistry.acquire(file);
+        array = new byte[4 + blksize];
+        heap = ByteBuffer.allocate(4 + blksize);
+        direct = ByteBuffer.allocateDirect(4 + blksize);
+        blocks = FILE_SIZE / blksize;
+        block = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        stream.close();
+        randomAccess.close();
+        cached.close();
+        mapped.close();
+        producer.close();
+        file.delete();
+    }
+
+    /**
+     * @return position of the next block, going back to the start at the end of the file
+     */
+    private long next() {
+        block = block + 1 < blocks ? block + 1 : 0;
+        return block * blksize;
+    }
+
+    @Benchmark
+    public int fileInputStream() throws IOException {
+        if (next() == 0) {
+            stream.getChannel().position(0);
+        }
+        return stream.read(array, 4, blksize);
+    }
+
+    @Benchmark
+    public int randomAccessFile() throws IOException {
+        randomAccess.seek(next());
+        return randomAccess.read(array, 4, blksize);
+    }
+
+    @Benchmark
+    public int fileChannelHeap() throws IOException {
+        heap.clear().position(4);
+        return channel.read(heap, next());
+    }
+
+    @Benchmark
+    public int fileChannelDirect() throws IOException {
+        direct.clear().position(4);
+        return channel.read(direct, next());
+    }
+
+    @Benchmark
+    public byte[] mappedBuffer() {
+        mapping.get((int) next(), array, 4, blksize);
+        return array;
+    }
+
+    @Benchmark
+    public int fileCache() throws IOException {
+        heap.clear().position(4);
+        return cached.read(next(), heap);
+    }
+
+    @Benchmark
+    public int sharedMapping() throws IOException {
+        heap.clear().position(4);
+        return mapped.read(next(), heap);
+    }
+
+    @Benchmark
+    public int blockProducer() throws IOException {
+        heap.clear().position(4);
+        return producer.read(next(), heap);
+    }
+
+    @Benchmark
+    public ByteBuffer preparedPacket() {
+        return prepared.select(next() / blksize + 1, preparedView);
+    }
+}
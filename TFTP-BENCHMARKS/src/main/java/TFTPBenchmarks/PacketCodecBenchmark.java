@@ -0,0 +1,142 @@
+package TFTPBenchmarks;
+
+import TFTPCore.AckPacket;
+import TFTPCore.DataPacket;
+import TFTPCore.ErrorPacket;
+import TFTPCore.OptionAckPacket;
+import TFTPCore.RequestPacket;
+import TFTPCore.TftpOptions;
+import TFTPCore.TftpPacket;
+import TFTPServer.TFTPRequest;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * PacketCodecBenchmark - encoding and decoding of TFTP packets
+ * Packets are built and read with the views of TFTPCore, which the servers
+ * and clients use; requests are also parsed the way the UDP server does
+ * (TFTPRequest), reading only the options it knows.
+ * @author 246644
+ * @version 2023
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+    @Param({"512", "1428"})
+    public int blksize;
+
+    private byte[] buffer;
+    private ByteBuffer out;
+    private ByteBuffer dataPacket;
+    private ByteBuffer request;
+    private ByteBuffer errorPacket;
+    private Map<String, String> options;
+    private long block;
+    // views reused for every packet, as the sessions do
+    private final DataPacket data = new DataPacket();
+    private final ErrorPacket error = new ErrorPacket();
+    private final RequestPacket requestView = new RequestPacket();
+
+    @Setup
+    public void setup() {
+        buffer = new byte[TftpPacket.HEADER + blksize];
+        out = ByteBuffer.allocate(TftpPacket.HEADER + blksize);
+        dataPacket = ByteBuffer.wrap(buffer);
+        options = new LinkedHashMap<String, String>();
+        options.put(TftpOptions.OPT_BLKSIZE, Integer.toString(blksize));
+        options.put(TftpOptions.OPT_WINDOWSIZE, "8");
+        request = ByteBuffer.allocate(TftpPacket.PACKET);
+        RequestPacket.write(request, TftpPacket.OP_RRQ, "images/boot.img", options);
+        errorPacket = ByteBuffer.allocate(TftpPacket.PACKET);
+        ErrorPacket.write(errorPacket, TftpPacket.ERR_FILE_NOT_FOUND, "File does not exist.");
+        block = 1;
+    }
+
+    /**
+     * DATA header written into a byte array, as the client does
+     */
+    @Benchmark
+    public byte[] encodeDataArray() {
+        block++;
+        DataPacket.putHeader(buffer, block);
+        return buffer;
+    }
+
+    /**
+     * DATA header written into a ByteBuffer, as ReadSession does
+     */
+    @Benchmark
+    public ByteBuffer encodeDataBuffer() {
+        block++;
+        DataPacket.putHeader(out, 0, block);
+        out.limit(TftpPacket.HEADER + blksize).position(0);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeAck() {
+        block++;
+        return AckPacket.write(out, block);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeError() {
+        return ErrorPacket.write(out, TftpPacket.ERR_FILE_NOT_FOUND, "File does not exist.");
+    }
+
+    @Benchmark
+    public int decodeBlock() {
+        buffer[3]++;
+        return data.wrap(dataPacket).block();
+    }
+
+    /**
+     * Error code only, the message is copied out just when it is logged
+     */
+    @Benchmark
+    public int decodeErrorCode() {
+        return error.wrap(errorPacket).code();
+    }
+
+    @Benchmark
+    public String decodeErrorMessage() {
+        return error.wrap(errorPacket).message();
+    }
+
+    @Benchmark
+    public TFTPRequest parseRequest() {
+        return TFTPRequest.parse(requestView.wrap(request));
+    }
+
+    /**
+     * Options of a request read in place, without copying names or values
+     */
+    @Benchmark
+    public int readRequestOptions() {
+        requestView.wrap(request);
+        int sum = 0;
+        while (requestView.nextOption()) {
+            if (requestView.optionIs(TftpOptions.OPT_BLKSIZE) || requestView.optionIs(TftpOptions.OPT_WINDOWSIZE)) {
+                sum += requestView.optionInt();
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public ByteBuffer writeRequest() {
+        return RequestPacket.write(out, TftpPacket.OP_RRQ, "images/boot.img", options);
+    }
+
+    @Benchmark
+    public ByteBuffer writeOptionAck() {
+        return OptionAckPacket.write(out, options);
+    }
+}
@@ -0,0 +1,127 @@
+package TFTPBenchmarks;
+
+import TFTPCore.BlockWriter;
+import TFTPCore.TcpFrame;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * WritePathBenchmark - storing a received file
+ * The character path decodes the bytes into Strings and writes them through
+ * a BufferedWriter, as ClientHandler did before TcpFrame and as WriteSession
+ * and TftpClient did per block before BlockWriter. The byte paths copy them
+ * to the file unchanged, through TcpFrame.readData with and without the
+ * CRC-32 check, and block by block through a BlockWriter.
+ * Each invocation stores a whole file.
+ * @author 246644
+ * @version 2023
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WritePathBenchmark {
+    // UDP block size used by the per block String path
+    private final static int BLKSIZE = 512;
+
+    @Param({"1048576"})
+    public int size;
+
+    private byte[] data;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // text, so the character path writes the same number of bytes
+        data = new byte[size];
+        Random random = new Random(1);
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + random.nextInt(26));
+        }
+        file = File.createTempFile("tftp-bench", ".txt");
+        file.deleteOnExit();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Characters read 1024 at a time and written as Strings without NULs, the old ClientHandler
+     */
+    @Benchmark
+    public long charStream() throws IOException {
+        BufferedReader receive = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data)));
+        char[] chars = new char[1024];
+        int charsRead;
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(file))) {
+            while ((charsRead = receive.read(chars)) != -1) {
+                bufferedWriter.write(new String(chars, 0, charsRead).replace("\u0000", ""));
+            }
+        }
+        return file.length();
+    }
+
+    /**
+     * Each block turned into a String and written, as WriteSession and TftpClient did
+     */
+    @Benchmark
+    public long stringBlocks() throws IOException {
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(file))) {
+            for (int offset = 0; offset < size; offset += BLKSIZE) {
+                bufferedWriter.write(new String(data, offset, Math.min(BLKSIZE, size - offset)));
+            }
+        }
+        return file.length();
+    }
+
+    /**
+     * Blocks queued to a BlockWriter and written behind, as WriteSession and TftpClient do
+     */
+    @Benchmark
+    public long blockWriter() throws IOException {
+        BlockWriter writer = new BlockWriter(file.toPath(), BLKSIZE, BlockWriter.ringBlocks(BLKSIZE, 1),
+                BlockWriter.SYNC_NONE);
+        for (int offset = 0; offset < size; offset += BLKSIZE) {
+            writer.write(offset, data, offset, Math.min(BLKSIZE, size - offset));
+        }
+        writer.close();
+        return file.length();
+    }
+
+    @Benchmark
+    public long bytes() throws IOException {
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            TcpFrame.readData(new DataInputStream(new ByteArrayInputStream(data)), output, size, null);
+        }
+        return file.length();
+    }
+
+    @Benchmark
+    public long bytesWithCrc() throws IOException {
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            TcpFrame.readData(new DataInputStream(new ByteArrayInputStream(data)), output, size, crc);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Decoding alone, without the file
+     */
+    @Benchmark
+    public int decodeOnly() {
+        int length = 0;
+        for (int offset = 0; offset < size; offset += BLKSIZE) {
+            length += new String(data, offset, Math.min(BLKSIZE, size - offset), StandardCharsets.UTF_8).length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,52 @@
+package TFTPCore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AckPacket - view of an ACK packet
+ * ACK layout: opcode 04 (2 bytes) | block number (2 bytes)
+ * @author 246644
+ * @version 2023
+ */
+public class AckPacket extends TftpPacket {
+
+    public AckPacket wrap(ByteBuffer packet) {
+        point(packet);
+        return this;
+    }
+
+    /**
+     * @return true if the packet is an ACK packet with a block number
+     */
+    public boolean isValid() {
+        return end - start >= HEADER && opcode() == OP_ACK;
+    }
+
+    public int block() {
+        return unsignedShort(start + 2);
+    }
+
+    /**
+     * Write an ACK packet into the buffer, ready to send
+     * @param block - block number, only the lower two bytes are sent
+     * @return the buffer, holding the packet between position and limit
+     */
+    public static ByteBuffer write(ByteBuffer out, long block) {
+        out.clear();
+        putHeader(out, OP_ACK, block);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Write an ACK packet into a byte array
+     * @return length of the packet
+     */
+    public static int write(byte[] out, long block) {
+        out[0] = 0;
+        out[1] = OP_ACK;
+        out[2] = (byte) (block >> 8);
+        out[3] = (byte) block;
+        return HEADER;
+    }
+}
@@ -0,0 +1,416 @@
+package TFTPCore;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * BlockWriter - writes the blocks of a received file behind the transfer
+ * Blocks are copied as raw bytes into a fixed ring of slots and written at
+ * their place in the file by a shared writer thread, so the thread receiving
+ * packets does not wait for the disk. One writer thread at a time drains a
+ * ring; writers are only scheduled when they have blocks waiting, so a few
+ * threads serve every transfer.
+ * How often the file is forced to disk is set by the sync interval:
+ * SYNC_NONE leaves it to the operating system, SYNC_AT_END forces it when the
+ * file is closed, and a number of bytes forces it each time that much more
+ * has been written. A transfer should only acknowledge a block once
+ * syncDue() is false, calling sync() first when it is true, and acknowledge
+ * the last block after close(). A thread which must not block, such as an
+ * event loop, can have either run on another thread with syncAsync() and
+ * closeAsync() and acknowledge once it completes.
+ * When the size of the file is known in advance (the tsize option) the file
+ * is set to that length before the first block, so it is laid out in one go
+ * rather than grown a block at a time; a shorter transfer is cut back to the
+ * bytes written when it is closed.
+ * @author 246644
+ * @version 2023
+ */
+public class BlockWriter implements Runnable {
+    // sync intervals with a meaning of their own
+    public final static long SYNC_NONE = -1;
+    public final static long SYNC_AT_END = 0;
+    // how long a caller waiting for the writer sleeps between checks = 50us
+    private final static long WAIT_NANOS = 50000L;
+    // blocks a ring holds at least, and most bytes it may take = 4MB
+    private final static int MIN_RING_BLOCKS = 16;
+    private final static int MAX_RING_BYTES = 4 * 1024 * 1024;
+
+    // writer threads shared by every BlockWriter
+    private static ExecutorService writers = null;
+    // threads running sync() and close() for callers which must not block
+    private static ExecutorService flushers = null;
+
+    private final Path path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long syncInterval;
+    // ring of blocks waiting to be written, with their place in the file
+    private final byte[][] slots;
+    private final ByteBuffer[] views;
+    private final long[] positions;
+    private final int[] lengths;
+    // next slot to fill and next slot to write, counting without wrapping
+    private volatile long tail;
+    private volatile long head;
+    // a writer thread has been given this ring and not finished with it
+    private final AtomicBoolean scheduled;
+    // first error from the writer thread, reported to the caller
+    private volatile IOException failure;
+    // bytes handed over and bytes covered by the last sync, for the sync
+    // interval; each has one writer but sync() may run on a flusher thread
+    private volatile long written;
+    private volatile long synced;
+    // length the file was set to in advance, -1 if it grows as blocks arrive
+    private long allocated;
+    // set by close() or abort(), which may run on different threads
+    private volatile boolean closed;
+
+    /**
+     * Create the file, or empty it if it exists
+     * @param path - file to write
+     * @param blockSize - largest block that will be written
+     * @param ringBlocks - blocks that may wait to be written
+     * @param syncInterval - SYNC_NONE, SYNC_AT_END or a number of bytes
+     */
+    public BlockWriter(Path path, int blockSize, int ringBlocks, long syncInterval) throws IOException {
+        this(path, blockSize, ringBlocks, syncInterval, 0);
+    }
+
+    /**
+     * Create the file, or keep the start of it if it exists, to resume a transfer
+     * @param keep - bytes of the existing file kept, anything after them is cut off
+     */
+    public BlockWriter(Path path, int blockSize, int ringBlocks, long syncInterval, long keep) throws IOException {
+        this.path = path;
+        this.syncInterval = syncInterval;
+        file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            file.setLength(keep);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        channel = file.getChannel();
+        slots = new byte[ringBlocks][blockSize];
+        views = new ByteBuffer[ringBlocks];
+        for (int i = 0; i < ringBlocks; i++) {
+            views[i] = ByteBuffer.wrap(slots[i]);
+        }
+        positions = new long[ringBlocks];
+        lengths = new int[ringBlocks];
+        scheduled = new AtomicBoolean();
+        tail = 0;
+        head = 0;
+        written = 0;
+        synced = 0;
+        allocated = -1;
+        closed = false;
+    }
+
+    /**
+     * Set the file to its final length before any block is written
+     * @param size - size of the file announced by the sender
+     */
+    public void preallocate(long size) throws IOException {
+        file.setLength(size);
+        allocated = size;
+    }
+
+    /**
+     * @return true if the file would fit in the space left on its disk
+     */
+    public static boolean fits(Path path, long size) {
+        Path directory = path.toAbsolutePath().getParent();
+        // an existing file is replaced, so its space counts as free
+        long replaced = path.toFile().length();
+        return directory == null || size <= directory.toFile().getUsableSpace() + replaced;
+    }
+
+    /**
+     * Ring size for a transfer, room for two windows within MAX_RING_BYTES
+     * @param blockSize - negotiated block size
+     * @param windowSize - negotiated window size
+     */
+    public static int ringBlocks(int blockSize, int windowSize) {
+        int blocks = Math.max(MIN_RING_BLOCKS, 2 * windowSize);
+        return Math.max(2, Math.min(blocks, MAX_RING_BYTES / blockSize));
+    }
+
+    /**
+     * Parse a sync interval: none, end, or a size in bytes with an optional
+     * k, m or g suffix
+     * @throws IllegalArgumentException for anything else
+     */
+    public static long parseSyncInterval(String value) {
+        if (value.equals("none")) {
+            return SYNC_NONE;
+        }
+        if (value.equals("end")) {
+            return SYNC_AT_END;
+        }
+        long unit = 1;
+        String digits = value;
+        switch (value.isEmpty() ? ' ' : Character.toLowerCase(value.charAt(value.length() - 1))) {
+            case 'k': unit = 1024L; break;
+            case 'm': unit = 1024L * 1024; break;
+            case 'g': unit = 1024L * 1024 * 1024; break;
+            default: break;
+        }
+        if (unit != 1) {
+            digits = value.substring(0, value.length() - 1);
+        }
+        try {
+            long number = Long.parseLong(digits);
+            if (number > 0) {
+                return number * unit;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("fsync must be none, end or a size in bytes: " + value);
+    }
+
+    /**
+     * Queue a block without waiting, for threads which must not block
+     * @param position - place of the block in the file
+     * @return false if the ring is full and the block was not taken
+     * @throws IOException if an earlier block could not be written
+     */
+    public boolean offer(long position, byte[] data, int offset, int length) throws IOException {
+        checkFailure();
+        if (tail - head >= slots.length) {
+            return false;
+        }
+        int slot = (int) (tail % slots.length);
+        System.arraycopy(data, offset, slots[slot], 0, length);
+        positions[slot] = position;
+        lengths[slot] = length;
+        // the slot is visible to the writer thread once this is
+        tail = tail + 1;
+        written += length;
+        schedule();
+        return true;
+    }
+
+    /**
+     * @return true if every slot holds a block waiting to be written, so
+     * offer() would not take another
+     */
+    public boolean isFull() {
+        return tail - head >= slots.length;
+    }
+
+    /**
+     * Queue a block, waiting for a free slot if the ring is full
+     * @param position - place of the block in the file
+     * @throws IOException if this or an earlier block could not be written
+     */
+    public void write(long position, byte[] data, int offset, int length) throws IOException {
+        while (!offer(position, data, offset, length)) {
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    /**
+     * @return true if enough has been written since the last sync that
+     * the file must be forced to disk before the next acknowledgement
+     */
+    public boolean syncDue() {
+        return syncInterval > 0 && written - synced >= syncInterval;
+    }
+
+    /**
+     * Wait until every queued block is written and force them to disk
+     */
+    public void sync() throws IOException {
+        drain();
+        channel.force(false);
+        synced = written;
+    }
+
+    /**
+     * Write everything queued, force it to disk unless the policy is
+     * SYNC_NONE, and close the file
+     * @throws IOException if any block could not be written; the file is closed anyway
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            drain();
+            // fewer bytes arrived than announced, drop the rest
+            if (allocated > written) {
+                channel.truncate(written);
+            }
+            if (syncInterval != SYNC_NONE && synced < written) {
+                channel.force(false);
+                synced = written;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Run sync() on another thread, for threads which must not block
+     * @return completed once the file is on disk, exceptionally if it could not be written
+     */
+    public CompletableFuture<Void> syncAsync() {
+        return flushAsync(false);
+    }
+
+    /**
+     * Run close() on another thread, for threads which must not block
+     * @return completed once the file is closed, exceptionally if it could not be written
+     */
+    public CompletableFuture<Void> closeAsync() {
+        return flushAsync(true);
+    }
+
+    private CompletableFuture<Void> flushAsync(boolean close) {
+        CompletableFuture<Void> done = new CompletableFuture<Void>();
+        flusher().execute(() -> {
+            try {
+                if (close) {
+                    close();
+                } else {
+                    sync();
+                }
+                done.complete(null);
+            } catch (IOException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Drop the blocks still queued and close the file, after a failed transfer
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        if (failure == null) {
+            failure = new IOException("transfer aborted");
+        }
+        closed = true;
+        // the writer thread drops the queued blocks once it sees the failure,
+        // and writes still running are cut short by closing the channel
+        try {
+            file.close();
+        } catch (IOException e) {
+            // nothing more can be done with the file
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return bytes handed to the writer so far
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Write the blocks waiting, run by a writer thread
+     */
+    @Override
+    public void run() {
+        while (true) {
+            while (head < tail) {
+                // only this thread moves head, so dropping the rest is safe here
+                if (failure != null) {
+                    head = tail;
+                    break;
+                }
+                int slot = (int) (head % slots.length);
+                try {
+                    ByteBuffer view = views[slot];
+                    view.limit(lengths[slot]).position(0);
+                    long position = positions[slot];
+                    while (view.hasRemaining()) {
+                        position += channel.write(view, position);
+                    }
+                } catch (IOException e) {
+                    if (failure == null && !closed) {
+                        failure = e;
+                    }
+                    // nothing more can be written, drop the rest
+                    head = tail;
+                    break;
+                }
+                head = head + 1;
+            }
+            scheduled.set(false);
+            // a block queued after the last check needs this thread again
+            if (head >= tail || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Give the ring to a writer thread unless one has it already
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor().execute(this);
+        }
+    }
+
+    /**
+     * Wait until the writer thread has written every queued block
+     */
+    private void drain() throws IOException {
+        while (head < tail || scheduled.get()) {
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Could not write " + path + ": " + failure.getMessage(), failure);
+        }
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (writers == null) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            writers = Executors.newFixedThreadPool(threads, task -> {
+                Thread thread = new Thread(task, "BlockWriter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return writers;
+    }
+
+    private static synchronized ExecutorService flusher() {
+        // apart from the writer threads, which the flush waits on; as few,
+        // since each waits by polling its ring
+        if (flushers == null) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            flushers = Executors.newFixedThreadPool(threads, task -> {
+                Thread thread = new Thread(task, "BlockWriter-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return flushers;
+    }
+}
@@ -0,0 +1,118 @@
+package TFTPCore;
+
+import java.io.IOException;
+
+/**
+ * ChunkDecoder - decodes the chunks of a compressed transfer (Compression) as they arrive
+ * Bytes may be fed in pieces of any size, a UDP block or whatever a socket
+ * read returned; each chunk is handed to the output as soon as all of it is
+ * there, at its place in the file. needed() tells a reader which must not
+ * read past the end of the stream how much to read next.
+ * @author 246644
+ * @version 2023
+ */
+public class ChunkDecoder {
+    /**
+     * Where the decoded file goes
+     */
+    public interface Output {
+        /**
+         * @param position - place of the data in the file
+         * @param data - only valid during the call
+         */
+        void write(long position, byte[] data, int length) throws IOException;
+    }
+
+    private final Codec codec;
+    private final Output output;
+    private final byte[] header;
+    private final byte[] data;
+    private final byte[] decoded;
+    // bytes of the header, or of the data once the header is complete
+    private int filled;
+    // length of the data of the current chunk, -1 while its header is read
+    private int length;
+    private boolean raw;
+    // bytes of the file decoded so far
+    private long position;
+
+    public ChunkDecoder(Codec codec, Output output) {
+        this.codec = codec;
+        this.output = output;
+        header = new byte[Compression.HEADER];
+        data = new byte[Compression.CHUNK];
+        decoded = new byte[Compression.CHUNK];
+        filled = 0;
+        length = -1;
+        position = 0;
+    }
+
+    /**
+     * Decode bytes of the stream, handing on every chunk they complete
+     * @throws IOException if a chunk is not valid, or the output fails
+     */
+    public void feed(byte[] src, int offset, int count) throws IOException {
+        while (count > 0) {
+            int take = Math.min(count, needed());
+            if (length < 0) {
+                System.arraycopy(src, offset, header, filled, take);
+                filled += take;
+                if (filled == Compression.HEADER) {
+                    startChunk();
+                }
+            } else {
+                System.arraycopy(src, offset, data, filled, take);
+                filled += take;
+                if (filled == length) {
+                    endChunk();
+                }
+            }
+            offset += take;
+            count -= take;
+        }
+    }
+
+    private void startChunk() throws IOException {
+        int value = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+        length = Compression.dataLength(value);
+        raw = Compression.isRaw(value);
+        if (length == 0 || length > Compression.CHUNK) {
+            throw new IOException("Invalid chunk length " + length);
+        }
+        filled = 0;
+    }
+
+    private void endChunk() throws IOException {
+        if (raw) {
+            output.write(position, data, length);
+            position += length;
+        } else {
+            int size = codec.decompress(data, 0, length, decoded);
+            output.write(position, decoded, size);
+            position += size;
+        }
+        length = -1;
+        filled = 0;
+    }
+
+    /**
+     * @return bytes that complete the header or data being read, never 0
+     */
+    public int needed() {
+        return length < 0 ? Compression.HEADER - filled : length - filled;
+    }
+
+    /**
+     * @return true if no part of a chunk is waiting for the rest of it
+     */
+    public boolean atBoundary() {
+        return length < 0 && filled == 0;
+    }
+
+    /**
+     * @return bytes of the file decoded so far
+     */
+    public long getDecoded() {
+        return position;
+    }
+}
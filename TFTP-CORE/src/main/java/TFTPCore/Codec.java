@@ -0,0 +1,33 @@
+package TFTPCore;
+
+import java.io.IOException;
+
+/**
+ * Codec - compression used for the chunks of a compressed transfer (Compression)
+ * Each chunk is compressed on its own, so a codec keeps no state between
+ * calls and one instance is shared by every transfer. Codecs other than
+ * deflate are found with ServiceLoader and negotiated by name.
+ * @author 246644
+ * @version 2023
+ */
+public interface Codec {
+    /**
+     * @return name the codec is asked for by, in lower case
+     */
+    String getName();
+
+    /**
+     * Compress length bytes of src into dst
+     * @param dst - at least length bytes from dstOffset
+     * @return compressed length, or -1 if it would not be smaller than the input
+     */
+    int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset);
+
+    /**
+     * Decompress length bytes of src into dst
+     * @param dst - room for a whole chunk, Compression.CHUNK bytes
+     * @return length of the data written to dst
+     * @throws IOException if the data is not valid for the codec
+     */
+    int decompress(byte[] src, int offset, int length, byte[] dst) throws IOException;
+}
@@ -0,0 +1,194 @@
+package TFTPCore;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.zip.CRC32;
+
+/**
+ * Compression - compressed transfers, shared by the TCP and UDP servers and clients
+ * A compressed file is sent as a stream of chunks, each holding CHUNK bytes
+ * of the file, the last one less:
+ *   header (4 bytes) | data
+ * The header is the length of the data, with the top bit set when the data
+ * is the chunk as it is because compressing did not make it smaller. Chunks
+ * are compressed on their own, so the receiver decodes each one as it arrives
+ * (ChunkDecoder) and the sender can encode a file without holding all of it.
+ * TCP carries the stream as the data of a frame and UDP in its blocks; in both
+ * the codec is agreed on by name with the request. Servers keep the encoded
+ * form of the files they send (EncodedCache), so a file is not compressed
+ * again for every request.
+ * @author 246644
+ * @version 2023
+ */
+public class Compression {
+    // bytes of the file in every chunk but the last
+    public final static int CHUNK = 64 * 1024;
+    // length of the data in the chunk, top bit set for a chunk stored as it is
+    public final static int HEADER = 4;
+    private final static int RAW = 0x80000000;
+    // files smaller than this are not worth compressing = 1KB
+    public final static long DEFAULT_THRESHOLD = 1024;
+
+    // known codecs by name, in order of preference
+    private final static Map<String, Codec> codecs = new LinkedHashMap<String, Codec>();
+
+    static {
+        register(new DeflateCodec());
+        for (Codec codec : ServiceLoader.load(Codec.class)) {
+            register(codec);
+        }
+    }
+
+    /**
+     * Make a codec available to transfers, a codec of the same name is replaced
+     */
+    public static synchronized void register(Codec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * @return codec of the given name, or null if it is not known
+     */
+    public static synchronized Codec codec(String name) {
+        return codecs.get(name.trim().toLowerCase());
+    }
+
+    /**
+     * @return names of the known codecs separated by commas, as offered with a request
+     */
+    public static synchronized String names() {
+        return String.join(",", codecs.keySet());
+    }
+
+    /**
+     * Pick the codec for a transfer from those offered by the other side
+     * @param offered - codec names separated by commas, most wanted first
+     * @return first offered codec which is known, or null if there is none
+     */
+    public static Codec choose(String offered) {
+        for (String name : offered.split(",")) {
+            Codec codec = codec(name);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return length of the buffer encodeChunk() needs
+     */
+    public static int maxEncoded() {
+        return HEADER + CHUNK;
+    }
+
+    /**
+     * Encode one chunk of the file, header included
+     * @param length - bytes of the file in src, at most CHUNK
+     * @param dst - at least maxEncoded() bytes
+     * @return bytes written to dst
+     */
+    public static int encodeChunk(Codec codec, byte[] src, int length, byte[] dst) {
+        int compressed = codec.compress(src, 0, length, dst, HEADER);
+        int header = compressed < 0 ? RAW | length : compressed;
+        dst[0] = (byte) (header >>> 24);
+        dst[1] = (byte) (header >>> 16);
+        dst[2] = (byte) (header >>> 8);
+        dst[3] = (byte) header;
+        if (compressed < 0) {
+            System.arraycopy(src, 0, dst, HEADER, length);
+            return HEADER + length;
+        }
+        return HEADER + compressed;
+    }
+
+    /**
+     * @param header - first 4 bytes of a chunk
+     * @return length of the data after the header
+     */
+    static int dataLength(int header) {
+        return header & ~RAW;
+    }
+
+    /**
+     * @return true if the data of the chunk is stored as it is
+     */
+    static boolean isRaw(int header) {
+        return (header & RAW) != 0;
+    }
+
+    /**
+     * Encode length bytes of the file read from the stream
+     * @param crc - updated with the file data, may be null
+     * @return bytes written to out
+     */
+    public static long encode(Codec codec, InputStream in, long length, OutputStream out, CRC32 crc) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(CHUNK, Math.max(1, length))];
+        byte[] encoded = new byte[HEADER + chunk.length];
+        long remaining = length;
+        long written = 0;
+        while (remaining > 0) {
+            int size = (int) Math.min(chunk.length, remaining);
+            for (int read = 0; read < size; ) {
+                int count = in.read(chunk, read, size - read);
+                if (count == -1) {
+                    throw new EOFException("File shorter than " + length + " bytes");
+                }
+                read += count;
+            }
+            if (crc != null) {
+                crc.update(chunk, 0, size);
+            }
+            int count = encodeChunk(codec, chunk, size, encoded);
+            out.write(encoded, 0, count);
+            written += count;
+            remaining -= size;
+        }
+        return written;
+    }
+
+    /**
+     * Decode the chunks of a file of known length from the stream into a file
+     * The stream is read no further than the last chunk.
+     * @param crc - updated with the file data, may be null
+     * @throws EOFException if the connection closes before the whole file arrived
+     */
+    public static void decode(Codec codec, DataInputStream in, RandomAccessFile file, long length, CRC32 crc) throws IOException {
+        file.setLength(length);
+        file.seek(0);
+        read(in, length, new ChunkDecoder(codec, (position, data, count) -> {
+            if (position + count > length) {
+                throw new IOException("More than the " + length + " bytes announced");
+            }
+            file.write(data, 0, count);
+            if (crc != null) {
+                crc.update(data, 0, count);
+            }
+        }));
+    }
+
+    /**
+     * Read past the chunks of a file which is not being stored
+     */
+    public static void skip(Codec codec, DataInputStream in, long length) throws IOException {
+        read(in, length, new ChunkDecoder(codec, (position, data, count) -> {
+            // dropped
+        }));
+    }
+
+    private static void read(DataInputStream in, long length, ChunkDecoder decoder) throws IOException {
+        byte[] chunk = new byte[maxEncoded()];
+        while (decoder.getDecoded() < length) {
+            int needed = decoder.needed();
+            in.readFully(chunk, 0, needed);
+            decoder.feed(chunk, 0, needed);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package TFTPCore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * DataPacket - view of a DATA packet
+ * DATA layout: opcode 03 (2 bytes) | block number (2 bytes) | data (0 to blksize bytes)
+ * @author 246644
+ * @version 2023
+ */
+public class DataPacket extends TftpPacket {
+
+    public DataPacket wrap(ByteBuffer packet) {
+        point(packet);
+        return this;
+    }
+
+    /**
+     * @return true if the packet is a DATA packet with a whole header
+     */
+    public boolean isValid() {
+        return end - start >= HEADER && opcode() == OP_DATA;
+    }
+
+    public int block() {
+        return unsignedShort(start + 2);
+    }
+
+    /**
+     * @return index of the first data byte in the buffer
+     */
+    public int dataStart() {
+        return start + HEADER;
+    }
+
+    public int dataLength() {
+        return end - start - HEADER;
+    }
+
+    /**
+     * Write the header of a DATA packet, the data follows at index + HEADER
+     * @param out - buffer holding the packet
+     * @param index - index of the packet in the buffer
+     * @param block - block number, only the lower two bytes are sent
+     */
+    public static void putHeader(ByteBuffer out, int index, long block) {
+        out.put(index, (byte) 0);
+        out.put(index + 1, (byte) OP_DATA);
+        out.put(index + 2, (byte) (block >> 8));
+        out.put(index + 3, (byte) block);
+    }
+
+    /**
+     * Write the header of a DATA packet into a byte array
+     */
+    public static void putHeader(byte[] out, long block) {
+        out[0] = 0;
+        out[1] = OP_DATA;
+        out[2] = (byte) (block >> 8);
+        out[3] = (byte) block;
+    }
+}
@@ -0,0 +1,69 @@
+package TFTPCore;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DeflateCodec - the codec every server and client has, built on java.util.zip
+ * A Deflater and Inflater are kept per thread and reset for each chunk, so
+ * their native state is not set up again for every chunk of every transfer.
+ * @author 246644
+ * @version 2023
+ */
+public class DeflateCodec implements Codec {
+    public final static String NAME = "deflate";
+
+    private final int level;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters;
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level - Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     */
+    public DeflateCodec(int level) {
+        this.level = level;
+        deflaters = ThreadLocal.withInitial(() -> new Deflater(this.level));
+        inflaters = ThreadLocal.withInitial(Inflater::new);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (length < 2) {
+            return -1;
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(src, offset, length);
+        deflater.finish();
+        // stop one short of the input size, compressed data that long is not worth sending
+        int compressed = deflater.deflate(dst, dstOffset, length - 1);
+        return deflater.finished() ? compressed : -1;
+    }
+
+    @Override
+    public int decompress(byte[] src, int offset, int length, byte[] dst) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src, offset, length);
+        try {
+            int decompressed = inflater.inflate(dst);
+            if (!inflater.finished()) {
+                throw new IOException("Compressed chunk larger than " + dst.length + " bytes");
+            }
+            return decompressed;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed chunk: " + e.getMessage());
+        }
+    }
+}
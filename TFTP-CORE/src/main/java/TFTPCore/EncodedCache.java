@@ -0,0 +1,215 @@
+package TFTPCore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * EncodedCache - compressed forms of the files a server sends
+ * Files are kept by canonical path and codec, and checked against their size
+ * and modification time on every request, as FileCache does for the UDP
+ * server. A file is compressed on its first compressed request and served
+ * from memory after that, so frequently requested files cost no compression
+ * at all. The least recently used are evicted once the total size exceeds
+ * the byte budget; a file larger than the budget is not held and is
+ * compressed while it is sent, where the transport allows.
+ * Files below the threshold are never compressed.
+ * An event loop must not wait while a file is compressed, so it asks with
+ * getIfReady(), which hands a file not held yet to a background thread and
+ * lets the request go on without it.
+ * @author 246644
+ * @version 2023
+ */
+public class EncodedCache {
+    // byte budget of the cache = 64MB
+    public final static long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    // encoded files by path and codec, least recently used first
+    private final static LinkedHashMap<String, EncodedFile> files = new LinkedHashMap<String, EncodedFile>(16, 0.75f, true);
+    // keys of the files being encoded in the background
+    private final static Set<String> encoding = new HashSet<String>();
+    // threads encoding files for getIfReady()
+    private static ExecutorService encoders = null;
+    // total size of the encoded files held and the limit for it, 0 disables the cache
+    private static long used = 0;
+    private static long budget = DEFAULT_BUDGET;
+    // smallest file worth compressing, -1 if compression is switched off
+    private static volatile long threshold = Compression.DEFAULT_THRESHOLD;
+
+    /**
+     * Set the threshold and the size of the cache, called once at startup
+     * @param minSize - smallest file compressed when a client asks, -1 to never compress
+     * @param bytes - byte budget, 0 to disable the cache
+     */
+    public static synchronized void configure(long minSize, long bytes) {
+        threshold = minSize;
+        budget = bytes;
+        files.clear();
+        used = 0;
+        if (threshold >= 0) {
+            Log.info("Compression from " + threshold + " bytes, " + Compression.names() + ", cache: " + budget + " bytes");
+        }
+    }
+
+    /**
+     * Parse the --compress setting of a server
+     * @param value - off, or a size in bytes with an optional k or m suffix
+     * @return threshold for configure()
+     * @throws IllegalArgumentException if the value is neither
+     */
+    public static long parseThreshold(String value) {
+        if (value.equals("off")) {
+            return -1;
+        }
+        long unit = 1;
+        String digits = value;
+        switch (value.isEmpty() ? ' ' : Character.toLowerCase(value.charAt(value.length() - 1))) {
+            case 'k': unit = 1024L; break;
+            case 'm': unit = 1024L * 1024; break;
+            default: break;
+        }
+        if (unit != 1) {
+            digits = value.substring(0, value.length() - 1);
+        }
+        try {
+            long number = Long.parseLong(digits);
+            if (number >= 0) {
+                return number * unit;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("compress must be off or a size in bytes: " + value);
+    }
+
+    /**
+     * @return false if compression is switched off, so the option must not be acknowledged
+     */
+    public static boolean enabled() {
+        return threshold >= 0;
+    }
+
+    /**
+     * @return true if a file of this size is compressed when the client asks for it
+     */
+    public static boolean wants(long size) {
+        long minSize = threshold;
+        return minSize >= 0 && size >= minSize;
+    }
+
+    /**
+     * Get the encoded form of a file, encoding it if needed
+     * @return encoded file, or null if it is larger than the cache
+     */
+    public static EncodedFile get(File file, Codec codec) throws IOException {
+        long length = file.length();
+        if (length > budget || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        String key = file.getCanonicalPath() + "|" + codec.getName();
+        synchronized (EncodedCache.class) {
+            EncodedFile cached = files.get(key);
+            if (cached != null && cached.matches(file)) {
+                return cached;
+            }
+        }
+        // encode outside the lock so other requests are not held up
+        EncodedFile encoded = new EncodedFile(key, file, codec);
+        synchronized (EncodedCache.class) {
+            put(encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Get the encoded form of a file without waiting, for threads which must not block
+     * A file which is not held is encoded on another thread for later requests.
+     * @return encoded file, or null if it is not held yet or larger than the cache
+     */
+    public static EncodedFile getIfReady(File file, Codec codec) throws IOException {
+        long length = file.length();
+        if (length > budget || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        String key = file.getCanonicalPath() + "|" + codec.getName();
+        synchronized (EncodedCache.class) {
+            EncodedFile cached = files.get(key);
+            if (cached != null && cached.matches(file)) {
+                return cached;
+            }
+            // already on its way
+            if (!encoding.add(key)) {
+                return null;
+            }
+        }
+        encoder().execute(() -> {
+            try {
+                EncodedFile encoded = new EncodedFile(key, file, codec);
+                synchronized (EncodedCache.class) {
+                    put(encoded);
+                }
+            } catch (IOException e) {
+                Log.warn("Could not compress ", file);
+            } finally {
+                synchronized (EncodedCache.class) {
+                    encoding.remove(key);
+                }
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Drop every encoded form of a file, called before it is rewritten
+     */
+    public static void invalidate(File file) {
+        try {
+            String prefix = file.getCanonicalPath() + "|";
+            synchronized (EncodedCache.class) {
+                Iterator<EncodedFile> cached = files.values().iterator();
+                while (cached.hasNext()) {
+                    EncodedFile encoded = cached.next();
+                    if (encoded.getKey().startsWith(prefix)) {
+                        cached.remove();
+                        used -= encoded.cost();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Could not resolve ", file);
+        }
+    }
+
+    private static void put(EncodedFile encoded) {
+        EncodedFile old = files.put(encoded.getKey(), encoded);
+        if (old != null) {
+            used -= old.cost();
+        }
+        used += encoded.cost();
+        // evict least recently used files until the budget is met
+        Iterator<Map.Entry<String, EncodedFile>> eldest = files.entrySet().iterator();
+        while (used > budget && eldest.hasNext()) {
+            EncodedFile evicted = eldest.next().getValue();
+            eldest.remove();
+            used -= evicted.cost();
+        }
+    }
+
+    private static synchronized ExecutorService encoder() {
+        if (encoders == null) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            encoders = Executors.newFixedThreadPool(threads, task -> {
+                Thread thread = new Thread(task, "EncodedCache");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return encoders;
+    }
+}
@@ -0,0 +1,104 @@
+package TFTPCore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * EncodedFile - compressed form of a whole file held by EncodedCache
+ * The chunks are kept outside the Java heap, ready to be written to a
+ * channel or copied into blocks, along with the CRC-32 of the file itself.
+ * A file which compresses by less than an eighth keeps no chunks and is
+ * sent as it is. Like CachedFile it never changes once made.
+ * @author 246644
+ * @version 2023
+ */
+public class EncodedFile {
+    private final String key;
+    private final Codec codec;
+    private final long size;
+    private final long lastModified;
+    private final long checksum;
+    // encoded chunks, null if compressing is not worth it
+    private final ByteBuffer data;
+
+    /**
+     * Read and encode a whole file
+     */
+    EncodedFile(String key, File file, Codec codec) throws IOException {
+        this.key = key;
+        this.codec = codec;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            lastModified = file.lastModified();
+            size = channel.size();
+            CRC32 crc = new CRC32();
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream((int) Math.min(size / 2 + Compression.HEADER, Integer.MAX_VALUE));
+            InputStream input = Channels.newInputStream(channel);
+            Compression.encode(codec, input, size, encoded, crc);
+            checksum = crc.getValue();
+            if (encoded.size() > size - size / 8) {
+                data = null;
+            } else {
+                ByteBuffer direct = ByteBuffer.allocateDirect(encoded.size());
+                direct.put(encoded.toByteArray()).flip();
+                data = direct.asReadOnlyBuffer();
+            }
+        }
+    }
+
+    /**
+     * @return true if the file on disk is still the one that was encoded
+     */
+    boolean matches(File file) {
+        return file.length() == size && file.lastModified() == lastModified;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * @return bytes held by the cache for the file
+     */
+    long cost() {
+        return data != null ? data.capacity() : 0;
+    }
+
+    /**
+     * @return false if the file hardly compresses and should be sent as it is
+     */
+    public boolean isWorthwhile() {
+        return data != null;
+    }
+
+    /**
+     * @return encoded chunks in a buffer of the caller's own, from position 0
+     */
+    public ByteBuffer data() {
+        return data.duplicate();
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return length of the file itself
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return CRC-32 of the file itself
+     */
+    public long checksum() {
+        return checksum;
+    }
+}
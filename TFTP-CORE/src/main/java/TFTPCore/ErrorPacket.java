@@ -0,0 +1,55 @@
+package TFTPCore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ErrorPacket - view of an ERROR packet
+ * ERROR layout: opcode 05 (2 bytes) | error code (2 bytes) | message | 0
+ * @author 246644
+ * @version 2023
+ */
+public class ErrorPacket extends TftpPacket {
+
+    public ErrorPacket wrap(ByteBuffer packet) {
+        point(packet);
+        return this;
+    }
+
+    /**
+     * @return true if the packet is an ERROR packet with an error code
+     */
+    public boolean isValid() {
+        return end - start >= HEADER && opcode() == OP_ERROR;
+    }
+
+    /**
+     * @return error code, one of the ERR_ constants for known errors
+     */
+    public int code() {
+        return unsignedShort(start + 2);
+    }
+
+    /**
+     * @return message sent with the error, allocated on each call
+     */
+    public String message() {
+        if (end - start < HEADER) {
+            return "";
+        }
+        return text(start + HEADER, terminator(start + HEADER));
+    }
+
+    /**
+     * Write an ERROR packet into the buffer, ready to send
+     * @param code - error code, one of the ERR_ constants
+     * @param message - text shown to the user, cut short if it does not fit
+     * @return the buffer, holding the packet between position and limit
+     */
+    public static ByteBuffer write(ByteBuffer out, int code, CharSequence message) {
+        out.clear();
+        putHeader(out, OP_ERROR, code);
+        putString(out, message);
+        out.flip();
+        return out;
+    }
+}
@@ -0,0 +1,73 @@
+package TFTPCore;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HandlerExecutor - runs the handlers of a server's thread engine
+ * A handler serves one transfer of the UDP server or one connection of the TCP server.
+ * virtual: a virtual thread per handler (JDK 21 and later)
+ * pool: a fixed number of threads with a bounded queue of waiting handlers,
+ * handlers beyond that are rejected rather than creating more threads.
+ * Virtual threads are looked up by reflection so the servers still build and
+ * run on JDK 17, where they fall back to the pool.
+ * @author 246644
+ * @version 2023
+ */
+public class HandlerExecutor {
+    public final static String VIRTUAL = "virtual";
+    public final static String POOL = "pool";
+
+    /**
+     * Create executor for the given kind
+     * @param kind - virtual or pool
+     * @param threads - pool size
+     * @param queue - handlers waiting for a pool thread before new ones are rejected
+     * @param label - what the handlers serve, such as transfers, for the log
+     * @param threadName - name of the pool threads, followed by a number
+     */
+    public static ExecutorService create(String kind, int threads, int queue, String label, String threadName) {
+        if (kind.equals(VIRTUAL)) {
+            ExecutorService executor = virtualThreads();
+            if (executor != null) {
+                Log.info("Running " + label + " on virtual threads.");
+                return executor;
+            }
+            Log.info("Virtual threads need JDK 21, using a pool of " + threads + " threads.");
+        } else {
+            Log.info("Running " + label + " on a pool of " + threads + " threads.");
+        }
+        return pool(threads, queue, threadName);
+    }
+
+    /**
+     * @return executor starting a virtual thread per task, null before JDK 21
+     */
+    private static ExecutorService virtualThreads() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService pool(int threads, int queue, String threadName) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, threadName + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        // idle threads are stopped after a minute, a full queue throws RejectedExecutionException
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queue), factory, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
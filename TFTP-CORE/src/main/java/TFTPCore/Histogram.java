@@ -0,0 +1,79 @@
+package TFTPCore;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram - distribution of a duration in fixed buckets
+ * Bucket bounds double from the first one, so a few buckets cover
+ * everything from a loopback round trip to a long transfer. Recording
+ * only adds to counters and allocates nothing.
+ * @author 246644
+ * @version 2023
+ */
+public class Histogram {
+    // upper bound of each bucket in ns, the last bucket has no bound
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder sum;
+
+    /**
+     * @param first - upper bound of the first bucket in ns
+     * @param count - number of bounded buckets
+     */
+    public Histogram(long first, int count) {
+        bounds = new long[count];
+        buckets = new LongAdder[count + 1];
+        for (int i = 0; i < count; i++) {
+            bounds[i] = first << i;
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+        sum = new LongAdder();
+    }
+
+    /**
+     * @param nanos - duration to add
+     */
+    public void record(long nanos) {
+        int i = 0;
+        while (i < bounds.length && nanos > bounds[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sum.add(nanos);
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return mean in ms, 0 before anything was recorded
+     */
+    public double meanMillis() {
+        long count = count();
+        return count == 0 ? 0 : sum.sum() / 1e6 / count;
+    }
+
+    /**
+     * Write the histogram in the Prometheus text format, in seconds
+     */
+    public void write(StringBuilder text, String name, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += buckets[i].sum();
+            text.append(name).append("_bucket{le=\"").append(bounds[i] / 1e9).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += buckets[bounds.length].sum();
+        text.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        text.append(name).append("_sum ").append(sum.sum() / 1e9).append('\n');
+        text.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
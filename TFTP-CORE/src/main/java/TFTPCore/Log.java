@@ -0,0 +1,193 @@
+package TFTPCore;
+
+import java.io.PrintStream;
+
+/**
+ * Log - console logging with levels
+ * The level is checked before anything is built, so a disabled message costs
+ * a comparison. Messages reporting a value, such as a block number, take it
+ * as a separate argument and it is only turned into text when the message is
+ * written. With the asynchronous appender (LogAppender) messages are queued
+ * and written in batches by a background thread; otherwise they are written
+ * straight away. Errors and warnings go to System.err, the rest to System.out.
+ * @author 246644
+ * @version 2023
+ */
+public class Log {
+    public final static int ERROR = 0;
+    public final static int WARN = 1;
+    public final static int INFO = 2;
+    public final static int DEBUG = 3;
+    public final static int TRACE = 4;
+    private final static String[] NAMES = {"error", "warn", "info", "debug", "trace"};
+    // what follows the message text
+    final static int NONE = 0;
+    final static int NUMBER = 1;
+    final static int OBJECT = 2;
+
+    // most detailed level written, the system property sets it before configure() is called
+    private static volatile int level = initialLevel();
+    // null while messages are written straight away
+    private static volatile LogAppender appender = null;
+
+    /**
+     * Set the level and how messages are written, called once at startup
+     * @param newLevel - ERROR to TRACE
+     * @param async - queue messages for a background thread
+     */
+    public static synchronized void configure(int newLevel, boolean async) {
+        level = newLevel;
+        if (async && appender == null) {
+            appender = new LogAppender();
+            appender.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "LogFlush"));
+        }
+    }
+
+    /**
+     * @param name - error, warn, info, debug or trace
+     * @throws IllegalArgumentException for any other name
+     */
+    public static int parseLevel(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+
+    private static int initialLevel() {
+        try {
+            return parseLevel(System.getProperty("tftp.log", "info"));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return INFO;
+        }
+    }
+
+    public static boolean isEnabled(int messageLevel) {
+        return messageLevel <= level;
+    }
+
+    public static void error(String message) {
+        if (ERROR <= level) {
+            write(ERROR, message, null, 0, NONE);
+        }
+    }
+
+    /**
+     * @param message - text written before the argument
+     */
+    public static void error(String message, Object argument) {
+        if (ERROR <= level) {
+            write(ERROR, message, argument, 0, OBJECT);
+        }
+    }
+
+    public static void warn(String message) {
+        if (WARN <= level) {
+            write(WARN, message, null, 0, NONE);
+        }
+    }
+
+    /**
+     * @param message - text written before the argument
+     */
+    public static void warn(String message, Object argument) {
+        if (WARN <= level) {
+            write(WARN, message, argument, 0, OBJECT);
+        }
+    }
+
+    public static void info(String message) {
+        if (INFO <= level) {
+            write(INFO, message, null, 0, NONE);
+        }
+    }
+
+    /**
+     * @param message - text written before the argument
+     */
+    public static void info(String message, Object argument) {
+        if (INFO <= level) {
+            write(INFO, message, argument, 0, OBJECT);
+        }
+    }
+
+    public static void debug(String message) {
+        if (DEBUG <= level) {
+            write(DEBUG, message, null, 0, NONE);
+        }
+    }
+
+    /**
+     * @param message - text written before the argument
+     */
+    public static void debug(String message, Object argument) {
+        if (DEBUG <= level) {
+            write(DEBUG, message, argument, 0, OBJECT);
+        }
+    }
+
+    /**
+     * @param message - text written before the value
+     */
+    public static void debug(String message, long value) {
+        if (DEBUG <= level) {
+            write(DEBUG, message, null, value, NUMBER);
+        }
+    }
+
+    public static void trace(String message) {
+        if (TRACE <= level) {
+            write(TRACE, message, null, 0, NONE);
+        }
+    }
+
+    /**
+     * @param message - text written before the argument
+     */
+    public static void trace(String message, Object argument) {
+        if (TRACE <= level) {
+            write(TRACE, message, argument, 0, OBJECT);
+        }
+    }
+
+    /**
+     * @param message - text written before the value
+     */
+    public static void trace(String message, long value) {
+        if (TRACE <= level) {
+            write(TRACE, message, null, value, NUMBER);
+        }
+    }
+
+    /**
+     * Wait until queued messages have been written
+     */
+    public static void flush() {
+        LogAppender current = appender;
+        if (current != null) {
+            current.drain();
+        }
+    }
+
+    private static void write(int messageLevel, String message, Object argument, long value, int kind) {
+        LogAppender current = appender;
+        if (current == null || !current.offer(messageLevel, message, argument, value, kind)) {
+            PrintStream stream = stream(messageLevel);
+            if (kind == NUMBER) {
+                stream.println(message + value);
+            } else if (kind == OBJECT) {
+                stream.println(message + argument);
+            } else {
+                stream.println(message);
+            }
+        }
+    }
+
+    static PrintStream stream(int messageLevel) {
+        return messageLevel <= WARN ? System.err : System.out;
+    }
+}
@@ -0,0 +1,137 @@
+package TFTPCore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LogAppender - writes log messages on a background thread
+ * Messages are put in a fixed ring of slots; any thread may add one, the
+ * appender thread takes them in order and writes everything waiting in one
+ * batch per stream. Nothing is allocated to queue a message, arguments are
+ * turned into text by the appender. When the ring is
+ * full the message is written by the caller instead, so nothing is lost.
+ * @author 246644
+ * @version 2023
+ */
+public class LogAppender extends Thread {
+    // number of slots, a power of two
+    private final static int SIZE = 8192;
+    private final static int MASK = SIZE - 1;
+    // how long the appender sleeps when there is nothing to write = 1ms
+    private final static long IDLE_NANOS = 1000000L;
+
+    private final int[] levels;
+    private final String[] messages;
+    private final Object[] arguments;
+    private final long[] values;
+    private final int[] kinds;
+    // sequence number of the message in each slot, set once it is complete
+    private final AtomicLongArray published;
+    // next sequence number to hand out and next one to write
+    private final AtomicLong tail;
+    private volatile long head;
+    private final StringBuilder out;
+    private final StringBuilder err;
+
+    LogAppender() {
+        super("LogAppender");
+        setDaemon(true);
+        levels = new int[SIZE];
+        messages = new String[SIZE];
+        arguments = new Object[SIZE];
+        values = new long[SIZE];
+        kinds = new int[SIZE];
+        published = new AtomicLongArray(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            published.set(i, -1);
+        }
+        tail = new AtomicLong();
+        head = 0;
+        out = new StringBuilder(SIZE * 16);
+        err = new StringBuilder(1024);
+    }
+
+    /**
+     * Queue a message
+     * @return false if the ring is full
+     */
+    boolean offer(int level, String message, Object argument, long value, int kind) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= SIZE) {
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        int slot = (int) (sequence & MASK);
+        levels[slot] = level;
+        messages[slot] = message;
+        arguments[slot] = argument;
+        values[slot] = value;
+        kinds[slot] = kind;
+        // the fields above are visible to the appender once this is
+        published.set(slot, sequence);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (!writeBatch()) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Write every message waiting
+     * @return false if there was nothing to write
+     */
+    private synchronized boolean writeBatch() {
+        long next = head;
+        while (published.get((int) (next & MASK)) == next) {
+            int slot = (int) (next & MASK);
+            StringBuilder text = levels[slot] <= Log.WARN ? err : out;
+            text.append(messages[slot]);
+            if (kinds[slot] == Log.NUMBER) {
+                text.append(values[slot]);
+            } else if (kinds[slot] == Log.OBJECT) {
+                text.append(arguments[slot]);
+            }
+            text.append(System.lineSeparator());
+            messages[slot] = null;
+            arguments[slot] = null;
+            next++;
+        }
+        if (next == head) {
+            return false;
+        }
+        head = next;
+        if (err.length() > 0) {
+            Log.stream(Log.ERROR).print(err);
+            Log.stream(Log.ERROR).flush();
+            err.setLength(0);
+        }
+        if (out.length() > 0) {
+            Log.stream(Log.INFO).print(out);
+            Log.stream(Log.INFO).flush();
+            out.setLength(0);
+        }
+        return true;
+    }
+
+    /**
+     * Write everything queued so far, called on the caller's thread
+     */
+    void drain() {
+        long end = tail.get();
+        // messages still being added are given a little time to complete
+        long giveUp = System.nanoTime() + 100 * IDLE_NANOS;
+        while (head < end && System.nanoTime() - giveUp < 0) {
+            if (!writeBatch()) {
+                Thread.yield();
+            }
+        }
+    }
+}
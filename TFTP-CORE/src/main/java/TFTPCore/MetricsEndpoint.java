@@ -0,0 +1,49 @@
+package TFTPCore;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * MetricsEndpoint - serves the metrics over HTTP for Prometheus
+ * Listens on the loopback address only; GET /metrics returns the counters
+ * in the Prometheus text format, as written by the server's Metrics class.
+ * @author 246644
+ * @version 2023
+ */
+public class MetricsEndpoint {
+
+    /**
+     * Start serving the metrics on a thread of the HTTP server
+     * @param port - local port to listen on
+     * @param metrics - text of the metrics, called for every request
+     */
+    public static void start(int port, Supplier<String> metrics) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> handle(exchange, metrics));
+        server.start();
+        Log.info("Metrics on http://localhost:" + port + "/metrics");
+    }
+
+    private static void handle(HttpExchange exchange, Supplier<String> metrics) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package TFTPCore;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * MetricsExport - how the Metrics classes of the servers publish their counters
+ * Each server keeps its own LongAdders and JMX interface; this registers the
+ * read only view with JMX and writes counters in the Prometheus text
+ * format served by MetricsEndpoint.
+ * @author 246644
+ * @version 2023
+ */
+public class MetricsExport {
+
+    /**
+     * Make a view of the counters visible through JMX, called once at startup
+     * @param bean - implements the server's MXBean interface
+     * @param domain - JMX domain, the bean is registered as domain:type=Metrics
+     */
+    public static void register(Object bean, String domain) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(domain + ":type=Metrics"));
+        } catch (JMException e) {
+            Log.warn("Could not register metrics with JMX: ", e);
+        }
+    }
+
+    public static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    public static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
@@ -0,0 +1,48 @@
+package TFTPCore;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * OptionAckPacket - view of an option acknowledgement (OACK)
+ * OACK layout: opcode 06 (2 bytes) | [option | 0 | value | 0]*
+ * @author 246644
+ * @version 2023
+ */
+public class OptionAckPacket extends OptionPacket {
+
+    public OptionAckPacket wrap(ByteBuffer packet) {
+        point(packet);
+        optionsStart = Math.min(start + 2, end);
+        rewind();
+        return this;
+    }
+
+    public boolean isValid() {
+        return opcode() == OP_OACK;
+    }
+
+    /**
+     * Start an OACK in the buffer, options are added with putOption()
+     * and the buffer flipped when they are all written
+     */
+    public static ByteBuffer begin(ByteBuffer out) {
+        out.clear();
+        out.put((byte) 0).put((byte) OP_OACK);
+        return out;
+    }
+
+    /**
+     * Write an OACK for the accepted options into the buffer, ready to send
+     * @param accepted - accepted options and their values
+     * @return the buffer, holding the packet between position and limit
+     */
+    public static ByteBuffer write(ByteBuffer out, Map<String, String> accepted) {
+        begin(out);
+        for (Map.Entry<String, String> option : accepted.entrySet()) {
+            putOption(out, option.getKey(), option.getValue());
+        }
+        out.flip();
+        return out;
+    }
+}
@@ -0,0 +1,165 @@
+package TFTPCore;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * OptionPacket - view of a packet carrying options (RFC 2347)
+ * Options are name | 0 | value | 0 pairs. They are read with a cursor:
+ * nextOption() moves to the next pair, and the name and value of the pair
+ * under the cursor are compared and parsed in place. Names are compared
+ * without regard to case.
+ * @author 246644
+ * @version 2023
+ */
+public abstract class OptionPacket extends TftpPacket {
+    // index where the options begin
+    protected int optionsStart;
+    // index of the next pair to read
+    private int cursor;
+    private int nameStart;
+    private int nameEnd;
+    private int valueStart;
+    private int valueEnd;
+
+    /**
+     * Move the cursor back before the first option
+     */
+    public void rewind() {
+        cursor = optionsStart;
+        nameStart = nameEnd = valueStart = valueEnd = optionsStart;
+    }
+
+    /**
+     * Move to the next option
+     * @return false when there are no more options; a name without a value ends the options
+     */
+    public boolean nextOption() {
+        if (cursor >= end) {
+            return false;
+        }
+        nameStart = cursor;
+        nameEnd = terminator(nameStart);
+        if (nameEnd + 1 >= end) {
+            cursor = end;
+            return false;
+        }
+        valueStart = nameEnd + 1;
+        valueEnd = terminator(valueStart);
+        cursor = valueEnd + 1;
+        return true;
+    }
+
+    /**
+     * @return true if the option under the cursor has the given name, in any case
+     */
+    public boolean optionIs(String name) {
+        if (nameEnd - nameStart != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            int c = buffer.get(nameStart + i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != Character.toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return value of the option under the cursor as a number, or -1 if
+     * it is not a number from 0 to Integer.MAX_VALUE; spaces around it are ignored
+     */
+    public int optionInt() {
+        long value = optionLong();
+        return value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+
+    /**
+     * @return value of the option under the cursor as a number, or -1 if
+     * it is not a number from 0 to Long.MAX_VALUE / 100; spaces around it are ignored
+     */
+    public long optionLong() {
+        int from = valueStart;
+        int to = valueEnd;
+        while (from < to && buffer.get(from) == ' ') {
+            from++;
+        }
+        while (to > from && buffer.get(to - 1) == ' ') {
+            to--;
+        }
+        if (from == to) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            if (value > Long.MAX_VALUE / 100) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return name of the option under the cursor in lower case, allocated on each call
+     */
+    public String optionName() {
+        return text(nameStart, nameEnd).toLowerCase();
+    }
+
+    /**
+     * @return value of the option under the cursor, allocated on each call
+     */
+    public String optionValue() {
+        return text(valueStart, valueEnd);
+    }
+
+    /**
+     * @return every option by name in lower case; allocates, for use once per transfer
+     */
+    public Map<String, String> options() {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        rewind();
+        while (nextOption()) {
+            options.put(optionName(), optionValue());
+        }
+        rewind();
+        return options;
+    }
+
+    /**
+     * Write an option at the buffer's position
+     */
+    public static void putOption(ByteBuffer out, CharSequence name, CharSequence value) {
+        putString(out, name);
+        putString(out, value);
+    }
+
+    /**
+     * Write an option with a number as its value at the buffer's position
+     */
+    public static void putOption(ByteBuffer out, CharSequence name, long value) {
+        putString(out, name);
+        if (value < 0) {
+            out.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.put((byte) ('0' + value / divisor % 10));
+        }
+        out.put((byte) 0);
+    }
+}
@@ -0,0 +1,82 @@
+package TFTPCore;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * RequestPacket - view of a read or write request (RRQ/WRQ)
+ * Request layout: opcode (2 bytes) | filename | 0 | mode | 0 | [option | 0 | value | 0]*
+ * Options follow the mode as described in RFC 2347. Requests from older
+ * clients which only send the filename after the opcode are still read,
+ * and taken to be in octet mode.
+ * @author 246644
+ * @version 2023
+ */
+public class RequestPacket extends OptionPacket {
+    public final static String MODE_OCTET = "octet";
+
+    private int filenameEnd;
+    private int modeStart;
+    private int modeEnd;
+
+    public RequestPacket wrap(ByteBuffer packet) {
+        point(packet);
+        filenameEnd = terminator(Math.min(start + 2, end));
+        if (filenameEnd == end) {
+            // no terminating zero, client only sent the filename
+            modeStart = modeEnd = end;
+            optionsStart = end;
+        } else {
+            modeStart = filenameEnd + 1;
+            modeEnd = terminator(modeStart);
+            optionsStart = Math.min(end, modeEnd + 1);
+        }
+        rewind();
+        return this;
+    }
+
+    /**
+     * @return true if the packet is a RRQ or WRQ
+     */
+    public boolean isValid() {
+        int opcode = opcode();
+        return opcode == OP_RRQ || opcode == OP_WRQ;
+    }
+
+    public boolean isRead() {
+        return opcode() == OP_RRQ;
+    }
+
+    /**
+     * @return requested file, allocated on each call
+     */
+    public String filename() {
+        return text(Math.min(start + 2, end), filenameEnd);
+    }
+
+    /**
+     * @return transfer mode in lower case, octet when the client left it out
+     */
+    public String mode() {
+        return modeStart == end ? MODE_OCTET : text(modeStart, modeEnd).toLowerCase();
+    }
+
+    /**
+     * Write a request in octet mode into the buffer, ready to send
+     * @param opcode - OP_RRQ or OP_WRQ
+     * @param filename - requested file
+     * @param options - options to request, may be empty
+     * @return the buffer, holding the packet between position and limit
+     */
+    public static ByteBuffer write(ByteBuffer out, int opcode, CharSequence filename, Map<String, String> options) {
+        out.clear();
+        out.put((byte) 0).put((byte) opcode);
+        putString(out, filename);
+        putString(out, MODE_OCTET);
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            putOption(out, option.getKey(), option.getValue());
+        }
+        out.flip();
+        return out;
+    }
+}
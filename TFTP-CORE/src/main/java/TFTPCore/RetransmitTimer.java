@@ -0,0 +1,127 @@
+package TFTPCore;
+
+/**
+ * RetransmitTimer - retransmission timeout for one transfer
+ * The timeout is worked out from measured round trip times the same way as
+ * TCP (RFC 6298): a smoothed RTT and its variation give RTO = SRTT + 4 * RTTVAR.
+ * Each retransmission doubles the timeout until MAX_RETRIES is reached.
+ * When the timeout option (RFC 2349) has been negotiated that value is used
+ * as it is and no measurements are taken. A TimerListener, when given, is
+ * told about every measurement and timeout.
+ * @author 246644
+ * @version 2023
+ */
+public class RetransmitTimer {
+    // timeout used before the first RTT measurement = 1 second
+    public final static int INITIAL_TIMEOUT = 1000;
+    // bounds for the measured timeout in ms
+    public final static int MIN_TIMEOUT = 20;
+    public final static int MAX_TIMEOUT = 5000;
+    // retransmissions of one packet before the transfer is abandoned
+    public final static int MAX_RETRIES = 6;
+
+    // smoothed round trip time and its variation in ms, -1 before the first sample
+    private double srtt;
+    private double rttvar;
+    // timeout for a packet sent for the first time
+    private int rto;
+    // timeout including exponential backoff
+    private int current;
+    private int retries;
+    // timeout set by the timeout option, measurements are ignored
+    private boolean fixed;
+    // told about measurements and timeouts, may be null
+    private final TimerListener listener;
+
+    public RetransmitTimer() {
+        this(null);
+    }
+
+    public RetransmitTimer(TimerListener listener) {
+        this.listener = listener;
+        srtt = -1;
+        rttvar = 0;
+        rto = INITIAL_TIMEOUT;
+        current = rto;
+        retries = 0;
+        fixed = false;
+    }
+
+    /**
+     * Use the timeout negotiated with the timeout option (RFC 2349)
+     * @param seconds - timeout in seconds, 1 to 255
+     */
+    public void setFixedTimeout(int seconds) {
+        fixed = true;
+        rto = seconds * 1000;
+        current = rto;
+    }
+
+    /**
+     * Add a round trip time measurement
+     * Only packets which were not retransmitted should be measured (Karn's algorithm)
+     * @param nanos - time between sending a packet and receiving its answer
+     */
+    public void sample(long nanos) {
+        if (listener != null) {
+            listener.roundTrip(nanos);
+        }
+        if (fixed) {
+            return;
+        }
+        double rtt = nanos / 1000000.0;
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        rto = (int) Math.min(MAX_TIMEOUT, Math.max(MIN_TIMEOUT, Math.ceil(srtt + 4 * rttvar)));
+        current = rto;
+    }
+
+    /**
+     * Packet timed out and is about to be retransmitted, double the timeout
+     * @return false once the retry limit is reached and the transfer should stop
+     */
+    public boolean backoff() {
+        if (listener != null) {
+            listener.timeout();
+        }
+        if (retries >= MAX_RETRIES) {
+            return false;
+        }
+        retries++;
+        if (!fixed) {
+            current = Math.min(MAX_TIMEOUT, current * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Transfer made progress, clear the backoff
+     */
+    public void reset() {
+        retries = 0;
+        current = rto;
+    }
+
+    /**
+     * @return time to wait for an answer in ms
+     */
+    public int timeout() {
+        return current;
+    }
+
+    /**
+     * @return deadline in System.nanoTime() terms for a packet sent now
+     */
+    public long deadline() {
+        return System.nanoTime() + current * 1000000L;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+}
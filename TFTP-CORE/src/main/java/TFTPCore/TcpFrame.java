@@ -0,0 +1,360 @@
+package TFTPCore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * TcpFrame - binary framing of the TCP transport, used by TftpTCPClient, ClientHandler and Connection
+ * Every frame starts with the same header:
+ *   opcode (1 byte) | flags (1 byte) | name length (2 bytes) | name (UTF-8) | length (8 bytes)
+ * followed by length bytes of file data and, when FLAG_CRC is set, the CRC-32
+ * of that data (4 bytes). All numbers are big-endian.
+ *   RRQ   - name = filename, length = 0, FLAG_CRC asks for a checksum
+ *   WRQ   - name = filename, length = file size, then the file data
+ *   DATA  - answer to RRQ, length = file size, then the file data
+ *   ACK   - answer to WRQ once the file is stored, length = bytes stored
+ *   ERROR - name = error message, length = 0
+ * The length lets the receiver preallocate the file and know exactly where
+ * the transfer ends, and data is sent as it is so binary files are not changed.
+ * A request with FLAG_ID carries a request ID (4 bytes) after the length and
+ * keeps the connection open: the client may send further requests without
+ * waiting for answers, and the server answers them in order, each answer
+ * carrying the ID of its request. A request without it is the only one on
+ * its connection.
+ * With FLAG_ENCODING the name is followed by a NUL and an encoding: in a
+ * RRQ the codecs the client takes, separated by commas, in the DATA answer
+ * and in a WRQ the codec the data is compressed with. The data is then the
+ * chunks of Compression, length is still the size of the file itself and
+ * the checksum is that of the file, not of the chunks.
+ * With FLAG_OFFSET an offset (8 bytes) follows the ID, to resume a transfer
+ * which broke off; length stays the size of the whole file and the checksum
+ * covers the whole file, so the part kept from before is checked as well:
+ *   RRQ   - offset = bytes of the file the client kept
+ *   DATA  - offset = where the data starts, 0 if the server starts over
+ *   WRQ   - offset = 0, no data follows until the server has answered
+ *   ACK   - first answer to such a WRQ, offset = bytes of the file the
+ *           server kept; the client then sends the data from there and
+ *           its checksum, and gets a second ACK once the file is stored
+ * Data after an offset is never compressed.
+ * @author 246644
+ * @version 2023
+ */
+public class TcpFrame {
+    public static final int OP_RRQ = 1;
+    public static final int OP_WRQ = 2;
+    public static final int OP_DATA = 3;
+    public static final int OP_ACK = 4;
+    public static final int OP_ERROR = 5;
+    // data is followed by its CRC-32
+    public static final int FLAG_CRC = 1;
+    // header ends with a request ID, the connection stays open for more requests
+    public static final int FLAG_ID = 2;
+    // name is followed by an encoding, data is compressed
+    public static final int FLAG_ENCODING = 4;
+    // header ends with an offset, the transfer resumes from there
+    public static final int FLAG_OFFSET = 8;
+    // opcode, flags, name length and length, the header without the name, ID and offset
+    public static final int HEADER = 12;
+    // file data is copied in chunks of this size
+    public static final int CHUNK = 64 * 1024;
+    // regions of the file mapped at a time to work out its checksum
+    public static final long MAP_REGION = 64L * 1024 * 1024;
+
+    private final int opcode;
+    private final int flags;
+    private final String name;
+    private final long length;
+    // request ID, 0 unless FLAG_ID is set
+    private final int id;
+    // codec names, null unless FLAG_ENCODING is set
+    private final String encoding;
+    // where the data starts in the file, 0 unless FLAG_OFFSET is set
+    private final long offset;
+
+    public TcpFrame(int opcode, int flags, String name, long length) {
+        this(opcode, flags, name, length, 0, null);
+    }
+
+    public TcpFrame(int opcode, int flags, String name, long length, int id) {
+        this(opcode, flags, name, length, id, null);
+    }
+
+    /**
+     * @param encoding - codec names, FLAG_ENCODING is set when not null
+     */
+    public TcpFrame(int opcode, int flags, String name, long length, int id, String encoding) {
+        this(opcode, flags & ~FLAG_OFFSET, name, length, id, encoding, 0);
+    }
+
+    private TcpFrame(int opcode, int flags, String name, long length, int id, String encoding, long offset) {
+        this.opcode = opcode;
+        this.flags = encoding != null ? flags | FLAG_ENCODING : flags & ~FLAG_ENCODING;
+        this.name = name;
+        this.length = length;
+        this.id = id;
+        this.encoding = encoding;
+        this.offset = offset;
+    }
+
+    /**
+     * @return the same frame resuming the transfer at the given offset, FLAG_OFFSET set
+     */
+    public TcpFrame atOffset(long offset) {
+        return new TcpFrame(opcode, flags | FLAG_OFFSET, name, length, id, encoding, offset);
+    }
+
+    /**
+     * Answer to this request, carrying its ID when it has one
+     * @param flags - FLAG_CRC or 0, FLAG_ID is added as needed
+     */
+    public TcpFrame answer(int opcode, int flags, String name, long length) {
+        return answer(opcode, flags, name, length, null);
+    }
+
+    /**
+     * Answer to this request with data compressed by the given codec
+     */
+    public TcpFrame answer(int opcode, int flags, String name, long length, String encoding) {
+        return new TcpFrame(opcode, flags | (this.flags & FLAG_ID), name, length, id, encoding);
+    }
+
+    /**
+     * @return bytes of the name field, the encoding included
+     */
+    private byte[] nameField() throws IOException {
+        String field = encoding != null ? name + '\0' + encoding : name;
+        byte[] nameBytes = field.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xffff) {
+            throw new IOException("Name too long: " + nameBytes.length + " bytes");
+        }
+        return nameBytes;
+    }
+
+    /**
+     * Make a frame from the fields of a header, splitting the encoding from the name
+     */
+    private static TcpFrame fromHeader(int opcode, int flags, byte[] nameBytes, long length, int id, long offset) throws IOException {
+        if (length < 0 || offset < 0) {
+            throw new IOException("Invalid frame length " + length + " or offset " + offset);
+        }
+        String field = new String(nameBytes, StandardCharsets.UTF_8);
+        String encoding = null;
+        if ((flags & FLAG_ENCODING) != 0) {
+            int end = field.indexOf('\0');
+            if (end < 0) {
+                throw new IOException("Encoding missing from frame");
+            }
+            encoding = field.substring(end + 1);
+            field = field.substring(0, end);
+        }
+        return new TcpFrame(opcode, flags, field, length, id, encoding, offset);
+    }
+
+    /**
+     * Write the frame header, data and checksum are written by the caller
+     */
+    public void writeHeader(DataOutputStream out) throws IOException {
+        byte[] nameBytes = nameField();
+        out.writeByte(opcode);
+        out.writeByte(flags);
+        out.writeShort(nameBytes.length);
+        out.write(nameBytes);
+        out.writeLong(length);
+        if (hasId()) {
+            out.writeInt(id);
+        }
+        if (hasOffset()) {
+            out.writeLong(offset);
+        }
+    }
+
+    /**
+     * Header in a buffer of its own, ready to write to a channel
+     */
+    public ByteBuffer headerBuffer() throws IOException {
+        byte[] nameBytes = nameField();
+        ByteBuffer out = ByteBuffer.allocate(HEADER + nameBytes.length + (hasId() ? 4 : 0) + (hasOffset() ? 8 : 0));
+        out.put((byte) opcode).put((byte) flags).putShort((short) nameBytes.length);
+        out.put(nameBytes).putLong(length);
+        if (hasId()) {
+            out.putInt(id);
+        }
+        if (hasOffset()) {
+            out.putLong(offset);
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * @param start - first HEADER - 8 bytes of a header, from position 0
+     * @return length of the whole header, name included
+     */
+    public static int headerLength(ByteBuffer start) {
+        int idLength = (start.get(1) & FLAG_ID) != 0 ? 4 : 0;
+        int offsetLength = (start.get(1) & FLAG_OFFSET) != 0 ? 8 : 0;
+        return HEADER + (start.getShort(2) & 0xffff) + idLength + offsetLength;
+    }
+
+    /**
+     * Read a frame header from a buffer holding all of it, from position 0
+     */
+    public static TcpFrame readHeader(ByteBuffer in) throws IOException {
+        int nameLength = in.getShort(2) & 0xffff;
+        byte[] nameBytes = new byte[nameLength];
+        in.get(4, nameBytes);
+        long length = in.getLong(4 + nameLength);
+        int flags = in.get(1) & 0xff;
+        int idLength = (flags & FLAG_ID) != 0 ? 4 : 0;
+        int id = idLength != 0 ? in.getInt(HEADER + nameLength) : 0;
+        long offset = (flags & FLAG_OFFSET) != 0 ? in.getLong(HEADER + nameLength + idLength) : 0;
+        return fromHeader(in.get(0) & 0xff, flags, nameBytes, length, id, offset);
+    }
+
+    /**
+     * Read a frame header
+     * @throws EOFException if the connection closes first
+     */
+    public static TcpFrame readHeader(DataInputStream in) throws IOException {
+        int opcode = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        byte[] nameBytes = new byte[in.readUnsignedShort()];
+        in.readFully(nameBytes);
+        long length = in.readLong();
+        int id = (flags & FLAG_ID) != 0 ? in.readInt() : 0;
+        long offset = (flags & FLAG_OFFSET) != 0 ? in.readLong() : 0;
+        return fromHeader(opcode, flags, nameBytes, length, id, offset);
+    }
+
+    /**
+     * Copy length bytes of frame data from the stream into a file
+     * The file is preallocated to its full length before anything is written.
+     * @param crc - updated with the data, may be null
+     * @throws EOFException if the connection closes before all the data arrived
+     */
+    public static void readData(DataInputStream in, RandomAccessFile file, long length, CRC32 crc) throws IOException {
+        file.setLength(length);
+        readData(in, file, 0, length, crc);
+    }
+
+    /**
+     * Copy length bytes of frame data from the stream into a file, from the
+     * given position on; the file is not preallocated, so if the connection
+     * breaks it holds exactly the data that arrived, ready to be resumed
+     * @param crc - updated with the data, may be null
+     * @throws EOFException if the connection closes before all the data arrived
+     */
+    public static void readData(DataInputStream in, RandomAccessFile file, long position, long length, CRC32 crc) throws IOException {
+        file.seek(position);
+        byte[] chunk = new byte[(int) Math.min(CHUNK, Math.max(1, length))];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+            if (read == -1) {
+                throw new EOFException("Connection closed with " + remaining + " bytes outstanding");
+            }
+            file.write(chunk, 0, read);
+            if (crc != null) {
+                crc.update(chunk, 0, read);
+            }
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Copy length bytes of a file to the stream as frame data
+     * @param crc - updated with the data, may be null
+     */
+    public static void writeData(InputStream file, DataOutputStream out, long length, CRC32 crc) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(CHUNK, Math.max(1, length))];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = file.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+            if (read == -1) {
+                throw new EOFException("File shorter than " + length + " bytes");
+            }
+            out.write(chunk, 0, read);
+            if (crc != null) {
+                crc.update(chunk, 0, read);
+            }
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Work out the CRC-32 of a whole file without copying it onto the heap
+     */
+    public static long checksum(FileChannel channel) throws IOException {
+        CRC32 crc = new CRC32();
+        checksum(channel, channel.size(), crc);
+        return crc.getValue();
+    }
+
+    /**
+     * Add the first length bytes of a file to a checksum, the part of a
+     * resumed transfer which is not sent again
+     */
+    public static void checksum(FileChannel channel, long length, CRC32 crc) throws IOException {
+        for (long position = 0; position < length; position += MAP_REGION) {
+            ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_REGION, length - position));
+            crc.update(region);
+        }
+    }
+
+    /**
+     * Write an ERROR frame
+     */
+    public static void writeError(DataOutputStream out, String message) throws IOException {
+        new TcpFrame(OP_ERROR, 0, message, 0).writeHeader(out);
+        out.flush();
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public boolean hasChecksum() {
+        return (flags & FLAG_CRC) != 0;
+    }
+
+    /**
+     * @return true if the frame carries a request ID, for a request that
+     * the connection stays open after it
+     */
+    public boolean hasId() {
+        return (flags & FLAG_ID) != 0;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return codec names sent with the frame, null if the data is not compressed
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return true if the frame resumes a transfer (FLAG_OFFSET)
+     */
+    public boolean hasOffset() {
+        return (flags & FLAG_OFFSET) != 0;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,160 @@
+package TFTPCore;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * TftpOptions - option names and limits (RFC 2347, 2348, 2349, 7440, 2090),
+ * and how a client checks the values a server acknowledged
+ * Requests and OACKs are read and written with RequestPacket and OptionAckPacket.
+ * The compress option is this implementation's own: the codecs a client
+ * takes (Compression), and the one the server picked in the OACK.
+ * @author 246644
+ * @version 2023
+ */
+public class TftpOptions {
+    // option names (RFC 2348, RFC 2349, RFC 7440, RFC 2090)
+    public final static String OPT_BLKSIZE = "blksize";
+    public final static String OPT_TIMEOUT = "timeout";
+    public final static String OPT_WINDOWSIZE = "windowsize";
+    public final static String OPT_MULTICAST = "multicast";
+    public final static String OPT_TSIZE = "tsize";
+    public final static String OPT_COMPRESS = "compress";
+    // default and limits for the block size option
+    public final static int DEFAULT_BLKSIZE = 512;
+    public final static int MIN_BLKSIZE = 8;
+    public final static int MAX_BLKSIZE = 65464;
+    // default and limits for the window size option
+    public final static int DEFAULT_WINDOWSIZE = 1;
+    public final static int MIN_WINDOWSIZE = 1;
+    public final static int MAX_WINDOWSIZE = 65535;
+    // limits for the timeout option in seconds
+    public final static int MIN_TIMEOUT = 1;
+    public final static int MAX_TIMEOUT = 255;
+
+    /**
+     * Write request packet into the buffer
+     * @param buffer - buffer to write the packet to
+     * @param opcode - OP_RRQ or OP_WRQ
+     * @param filename - requested file
+     * @param options - options to request, may be empty
+     * @return length of the packet
+     */
+    public static int writeRequest(byte[] buffer, int opcode, String filename, Map<String, String> options) {
+        return RequestPacket.write(ByteBuffer.wrap(buffer), opcode, filename, options).limit();
+    }
+
+    /**
+     * Read options acknowledged by the server
+     * @param data - OACK packet data, starting with the opcode
+     * @param length - length of the packet
+     * @return acknowledged options, names in lower case
+     */
+    public static Map<String, String> parseOptionAck(byte[] data, int length) {
+        return new OptionAckPacket().wrap(ByteBuffer.wrap(data, 0, length)).options();
+    }
+
+    /**
+     * Block size acknowledged by the server
+     * @param options - options from the OACK
+     * @param requested - block size the client asked for
+     * @return acknowledged block size, or -1 if the value is not acceptable
+     */
+    public static int blockSize(Map<String, String> options, int requested) {
+        String value = options.get(OPT_BLKSIZE);
+        if (value == null) {
+            return DEFAULT_BLKSIZE;
+        }
+        try {
+            int blksize = Integer.parseInt(value.trim());
+            // server may only lower the requested value
+            if (blksize < MIN_BLKSIZE || blksize > requested) {
+                return -1;
+            }
+            return blksize;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Window size acknowledged by the server
+     * @param options - options from the OACK
+     * @param requested - window size the client asked for
+     * @return acknowledged window size, or -1 if the value is not acceptable
+     */
+    public static int windowSize(Map<String, String> options, int requested) {
+        String value = options.get(OPT_WINDOWSIZE);
+        if (value == null) {
+            return DEFAULT_WINDOWSIZE;
+        }
+        try {
+            int windowsize = Integer.parseInt(value.trim());
+            // server may only lower the requested value
+            if (windowsize < MIN_WINDOWSIZE || windowsize > requested) {
+                return -1;
+            }
+            return windowsize;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Transfer size acknowledged by the server (RFC 2349)
+     * @param options - options from the OACK
+     * @return size of the file in bytes, or -1 if the server left it out
+     * or the value is not a number
+     */
+    public static long transferSize(Map<String, String> options) {
+        String value = options.get(OPT_TSIZE);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long size = Long.parseLong(value.trim());
+            return size >= 0 ? size : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Codec acknowledged by the server for a compressed transfer
+     * @param options - options from the OACK
+     * @return codec named by the server, or null if it left the option out
+     * @throws IllegalArgumentException if the codec is not known
+     */
+    public static Codec compression(Map<String, String> options) {
+        String value = options.get(OPT_COMPRESS);
+        if (value == null) {
+            return null;
+        }
+        Codec codec = Compression.codec(value);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown codec: " + value);
+        }
+        return codec;
+    }
+
+    /**
+     * Timeout acknowledged by the server
+     * @param options - options from the OACK
+     * @param requested - timeout in seconds the client asked for
+     * @return acknowledged timeout, 0 if the server left it out, or -1 if
+     * the value differs from the request
+     */
+    public static int timeout(Map<String, String> options, int requested) {
+        String value = options.get(OPT_TIMEOUT);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            // server must acknowledge the value unchanged
+            int timeout = Integer.parseInt(value.trim());
+            return timeout == requested ? timeout : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package TFTPCore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * TftpPacket - flyweight view of a TFTP packet held in a ByteBuffer
+ * A view is pointed at a packet with wrap() and reads its fields in place,
+ * so one view serves every packet of a transfer without allocating. The
+ * packet is the bytes between the buffer's position and limit when wrap()
+ * is called; the buffer itself is not changed. Each subclass reads one kind
+ * of packet and has static methods writing that kind into a buffer.
+ * @author 246644
+ * @version 2023
+ */
+public abstract class TftpPacket {
+    // op-codes (RFC 1350, RFC 2347)
+    public final static int OP_RRQ = 1;
+    public final static int OP_WRQ = 2;
+    public final static int OP_DATA = 3;
+    public final static int OP_ACK = 4;
+    public final static int OP_ERROR = 5;
+    public final static int OP_OACK = 6;
+    // error codes (RFC 1350, RFC 2347)
+    public final static int ERR_NOT_DEFINED = 0;
+    public final static int ERR_FILE_NOT_FOUND = 1;
+    public final static int ERR_ACCESS_VIOLATION = 2;
+    public final static int ERR_DISK_FULL = 3;
+    public final static int ERR_ILLEGAL_OPERATION = 4;
+    public final static int ERR_UNKNOWN_TID = 5;
+    public final static int ERR_FILE_EXISTS = 6;
+    public final static int ERR_NO_SUCH_USER = 7;
+    public final static int ERR_OPTION_REFUSED = 8;
+    // opcode (2 bytes) + block number or error code (2 bytes)
+    public final static int HEADER = 4;
+    // packet size = opcode (2 bytes) + block number (2 bytes) + data (512 bytes)
+    public final static int PACKET = 516;
+    // largest datagram (blksize 65464 + 4 byte header)
+    public final static int MAX_PACKET = 65468;
+
+    protected ByteBuffer buffer;
+    // index of the first byte of the packet in the buffer
+    protected int start;
+    // index just after the last byte of the packet
+    protected int end;
+
+    protected void point(ByteBuffer packet) {
+        buffer = packet;
+        start = packet.position();
+        end = packet.limit();
+    }
+
+    /**
+     * @return opcode of the packet, or -1 if it is too short to hold one
+     */
+    public int opcode() {
+        return end - start < 2 ? -1 : unsignedShort(start);
+    }
+
+    /**
+     * @return length of the packet in bytes
+     */
+    public int length() {
+        return end - start;
+    }
+
+    /**
+     * Opcode of a packet without a view
+     * @param packet - packet between position and limit
+     * @return opcode, or -1 if the packet is too short to hold one
+     */
+    public static int opcode(ByteBuffer packet) {
+        if (packet.remaining() < 2) {
+            return -1;
+        }
+        return ((packet.get(packet.position()) & 0xff) << 8) | (packet.get(packet.position() + 1) & 0xff);
+    }
+
+    protected int unsignedShort(int index) {
+        return ((buffer.get(index) & 0xff) << 8) | (buffer.get(index + 1) & 0xff);
+    }
+
+    /**
+     * Write the two byte opcode and block number or error code at the buffer's position
+     */
+    protected static void putHeader(ByteBuffer out, int opcode, long value) {
+        out.put((byte) 0).put((byte) opcode).put((byte) (value >> 8)).put((byte) value);
+    }
+
+    /**
+     * Write text and its terminating zero byte at the buffer's position
+     * Characters outside ASCII are written as '?', and text which does not
+     * fit is cut short so there is always room for the zero.
+     */
+    protected static void putString(ByteBuffer out, CharSequence text) {
+        int length = Math.min(text.length(), out.remaining() - 1);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            out.put((byte) (c < 0x80 && c != 0 ? c : '?'));
+        }
+        out.put((byte) 0);
+    }
+
+    /**
+     * @return index of the next zero byte at or after from, or end if there is none
+     */
+    protected int terminator(int from) {
+        for (int i = from; i < end; i++) {
+            if (buffer.get(i) == 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return ASCII text between two indexes of the buffer, other bytes
+     * are replaced as the US-ASCII charset does
+     */
+    protected String text(int from, int to) {
+        char[] chars = new char[Math.max(0, to - from)];
+        for (int i = 0; i < chars.length; i++) {
+            byte b = buffer.get(from + i);
+            chars[i] = b < 0 ? '\uFFFD' : (char) b;
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,19 @@
+package TFTPCore;
+
+/**
+ * TimerListener - told what a RetransmitTimer measures, for metrics
+ * Called on the thread using the timer, so it must be quick and must not block.
+ * @author 246644
+ * @version 2023
+ */
+public interface TimerListener {
+    /**
+     * @param nanos - round trip time measured
+     */
+    void roundTrip(long nanos);
+
+    /**
+     * A packet was not answered in time
+     */
+    void timeout();
+}
@@ -0,0 +1,54 @@
+package TFTPLoadGen;
+
+import java.util.Arrays;
+
+/**
+ * LatencyRecorder - transfer times of one worker
+ * Every time is kept so percentiles are exact; workers record into their own
+ * recorder and the recorders are merged for the report.
+ * @author 246644
+ * @version 2023
+ */
+public class LatencyRecorder {
+    private long[] nanos;
+    private int count;
+
+    public LatencyRecorder() {
+        nanos = new long[1024];
+        count = 0;
+    }
+
+    public void record(long time) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = time;
+    }
+
+    /**
+     * Add the times of another recorder to this one
+     */
+    public void merge(LatencyRecorder other) {
+        for (int i = 0; i < other.count; i++) {
+            record(other.nanos[i]);
+        }
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @param fraction - 0.5 for the median, 0.999 for the 99.9th percentile
+     * @return time in ms within which that fraction of transfers finished
+     */
+    public double percentileMillis(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        // nearly sorted after the first call, so sorting again is cheap
+        Arrays.sort(nanos, 0, count);
+        int index = (int) Math.ceil(fraction * count) - 1;
+        return nanos[Math.max(0, Math.min(count - 1, index))] / 1e6;
+    }
+}
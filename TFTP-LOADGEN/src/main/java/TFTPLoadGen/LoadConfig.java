@@ -0,0 +1,244 @@
+package TFTPLoadGen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LoadConfig - command line settings of the load generator
+ * Usage: java TFTPLoadGen.LoadGenerator --dir=path [--protocol=udp|tcp] [--host=name] [--port=N]
+ *        [--sessions=N] [--duration=S] [--concurrency=N] [--ramp-up=S]
+ *        [--sizes=N[k|m],...] [--reads=percent] [--content=binary|text]
+ *        [--blksize=N] [--windowsize=N] [--seed=N]
+ * dir is the directory the server serves files from; it must be reachable
+ * from this machine so files to read can be put there and written files
+ * checked. Text content only holds letters and line breaks, for servers
+ * which store written files as text. With a duration the run lasts that long (a soak test) instead
+ * of stopping after a number of sessions.
+ * @author 246644
+ * @version 2023
+ */
+public class LoadConfig {
+    public final static String UDP = "udp";
+    public final static String TCP = "tcp";
+    public final static String BINARY = "binary";
+    public final static String TEXT = "text";
+    // default ports of TFTPServer and TftpTCPServer
+    public final static int DEFAULT_UDP_PORT = 1234;
+    public final static int DEFAULT_TCP_PORT = 10000;
+
+    private String protocol;
+    private String host;
+    private int port;
+    private String dir;
+    private int sessions;
+    // seconds to run for, 0 to stop after the number of sessions
+    private int duration;
+    private int concurrency;
+    // seconds over which workers are started
+    private int rampUp;
+    private List<Long> sizes;
+    // percentage of sessions which are reads, the rest are writes
+    private int reads;
+    private String content;
+    // UDP options, 0 to leave out of the request
+    private int blksize;
+    private int windowsize;
+    private long seed;
+
+    public LoadConfig() {
+        protocol = UDP;
+        host = "127.0.0.1";
+        port = 0;
+        dir = null;
+        sessions = 1000;
+        duration = 0;
+        concurrency = 100;
+        rampUp = 0;
+        sizes = new ArrayList<Long>();
+        reads = 80;
+        content = BINARY;
+        blksize = 1428;
+        windowsize = 8;
+        seed = 1;
+    }
+
+    /**
+     * Read settings from the command line
+     * @param args - arguments of the form --name=value
+     * @return settings, defaults for anything not given
+     * @throws IllegalArgumentException if an argument is not recognised
+     */
+    public static LoadConfig parse(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "protocol":
+                    if (!value.equals(UDP) && !value.equals(TCP)) {
+                        throw new IllegalArgumentException("Unknown protocol: " + value);
+                    }
+                    config.protocol = value;
+                    break;
+                case "host":
+                    config.host = value;
+                    break;
+                case "port":
+                    config.port = parsePositive(name, value);
+                    break;
+                case "dir":
+                    config.dir = value;
+                    break;
+                case "sessions":
+                    config.sessions = parsePositive(name, value);
+                    break;
+                case "duration":
+                    config.duration = parsePositive(name, value);
+                    break;
+                case "concurrency":
+                    config.concurrency = parsePositive(name, value);
+                    break;
+                case "ramp-up":
+                    config.rampUp = parsePositive(name, value);
+                    break;
+                case "sizes":
+                    // a later list replaces an earlier one
+                    config.sizes = new ArrayList<Long>();
+                    for (String size : value.split(",")) {
+                        config.sizes.add(parseSize(name, size.trim()));
+                    }
+                    break;
+                case "reads":
+                    config.reads = Integer.parseInt(value);
+                    if (config.reads < 0 || config.reads > 100) {
+                        throw new IllegalArgumentException(name + " must be a percentage: " + value);
+                    }
+                    break;
+                case "content":
+                    if (!value.equals(BINARY) && !value.equals(TEXT)) {
+                        throw new IllegalArgumentException("Unknown content: " + value);
+                    }
+                    config.content = value;
+                    break;
+                case "blksize":
+                    config.blksize = Integer.parseInt(value);
+                    break;
+                case "windowsize":
+                    config.windowsize = Integer.parseInt(value);
+                    break;
+                case "seed":
+                    config.seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            }
+        }
+        if (config.dir == null) {
+            throw new IllegalArgumentException("--dir is required");
+        }
+        if (config.sizes.isEmpty()) {
+            config.sizes.add(64L * 1024);
+        }
+        if (config.port == 0) {
+            config.port = config.protocol.equals(UDP) ? DEFAULT_UDP_PORT : DEFAULT_TCP_PORT;
+        }
+        return config;
+    }
+
+    private static int parsePositive(String name, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " must be a positive number: " + value);
+    }
+
+    /**
+     * @param value - bytes with an optional k or m suffix
+     */
+    private static long parseSize(String name, String value) {
+        long unit = 1;
+        String number = value.toLowerCase();
+        if (number.endsWith("k")) {
+            unit = 1024;
+        } else if (number.endsWith("m")) {
+            unit = 1024 * 1024;
+        }
+        if (unit > 1) {
+            number = number.substring(0, number.length() - 1);
+        }
+        try {
+            long size = Long.parseLong(number) * unit;
+            if (size >= 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " must be sizes such as 512,64k,1m: " + value);
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getDir() {
+        return dir;
+    }
+
+    public int getSessions() {
+        return sessions;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getRampUp() {
+        return rampUp;
+    }
+
+    public List<Long> getSizes() {
+        return sizes;
+    }
+
+    public int getReads() {
+        return reads;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public int getBlksize() {
+        return blksize;
+    }
+
+    public int getWindowsize() {
+        return windowsize;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+}
@@ -0,0 +1,210 @@
+package TFTPLoadGen;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LoadGenerator - drives many simulated clients against TFTPServer or TftpTCPServer
+ * Runs a number of LoadWorker threads, started evenly over the ramp-up time,
+ * each running one session after another until the sessions are used up or
+ * the duration has passed. Reports throughput, transfer latency percentiles
+ * and the reasons sessions failed; exits with 1 if any session failed.
+ * Usage: see LoadConfig
+ * @author 246644
+ * @version 2023
+ */
+public class LoadGenerator {
+    // time between progress lines during long runs, in ms
+    private final static int PROGRESS_INTERVAL = 10000;
+
+    private final LoadConfig config;
+    // sessions not yet started, when the run is limited by sessions
+    private final AtomicInteger remaining;
+    // System.nanoTime() after which no session starts, when the run is limited by time
+    private long endAt;
+    private final LongAdder reads;
+    private final LongAdder writes;
+    private final LongAdder failed;
+    private final LongAdder bytes;
+    // number of failed sessions by reason
+    private final Map<String, LongAdder> errors;
+    // transfer times and length of the run, once it is over
+    private LatencyRecorder latency;
+    private long nanos;
+
+    public LoadGenerator(LoadConfig config) {
+        this.config = config;
+        remaining = new AtomicInteger(config.getSessions());
+        reads = new LongAdder();
+        writes = new LongAdder();
+        failed = new LongAdder();
+        bytes = new LongAdder();
+        errors = new ConcurrentHashMap<String, LongAdder>();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadConfig config = null;
+        try {
+            config = LoadConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java TFTPLoadGen.LoadGenerator --dir=path [--protocol=udp|tcp] [--host=name] [--port=N]"
+                    + " [--sessions=N] [--duration=S] [--concurrency=N] [--ramp-up=S]"
+                    + " [--sizes=N[k|m],...] [--reads=percent] [--content=binary|text]"
+                    + " [--blksize=N] [--windowsize=N] [--seed=N]");
+            System.exit(1);
+        }
+        File dir = new File(config.getDir());
+        if (!dir.isDirectory()) {
+            System.err.println("Not a directory: " + dir);
+            System.exit(1);
+        }
+        boolean ok = new LoadGenerator(config).run(dir);
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Run the load and print the report
+     * @param dir - directory the server serves files from
+     * @return true if every session succeeded
+     */
+    public boolean run(File dir) throws IOException, InterruptedException {
+        List<TestFile> files = new ArrayList<TestFile>();
+        for (long size : config.getSizes()) {
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("File size too large: " + size);
+            }
+            files.add(new TestFile(dir, (int) size, config.getContent().equals(LoadConfig.TEXT), config.getSeed()));
+        }
+        InetAddress address = InetAddress.getByName(config.getHost());
+        System.out.println("Running " + (config.getDuration() > 0 ? config.getDuration() + " s" : config.getSessions() + " sessions")
+                + " of " + config.getProtocol().toUpperCase() + " load against " + address.getHostAddress() + ":" + config.getPort()
+                + " with " + config.getConcurrency() + " clients...");
+
+        List<LoadWorker> workers = new ArrayList<LoadWorker>();
+        List<Thread> threads = new ArrayList<Thread>();
+        long rampUp = config.getRampUp() * 1000L;
+        for (int i = 0; i < config.getConcurrency(); i++) {
+            Transfer transfer = config.getProtocol().equals(LoadConfig.UDP)
+                    ? new UdpTransfer(address, config.getPort(), config.getBlksize(), config.getWindowsize())
+                    : new TcpTransfer(new InetSocketAddress(address, config.getPort()));
+            LoadWorker worker = new LoadWorker(this, i, transfer, files, config.getReads(), dir,
+                    rampUp * i / config.getConcurrency(), config.getSeed());
+            workers.add(worker);
+            threads.add(new Thread(worker, "LoadWorker-" + i));
+        }
+        long startedAt = System.nanoTime();
+        endAt = startedAt + config.getDuration() * 1000000000L;
+        Thread progress = progress(startedAt);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        nanos = System.nanoTime() - startedAt;
+        progress.interrupt();
+
+        latency = new LatencyRecorder();
+        for (LoadWorker worker : workers) {
+            latency.merge(worker.getLatency());
+            new File(dir, worker.getWriteName()).delete();
+        }
+        for (TestFile file : files) {
+            new File(dir, file.getName()).delete();
+        }
+        report();
+        return failed.sum() == 0;
+    }
+
+    /**
+     * Claim the next session
+     * @return false once the run is over
+     */
+    boolean nextSession() {
+        if (config.getDuration() > 0) {
+            return System.nanoTime() - endAt < 0;
+        }
+        return remaining.getAndDecrement() > 0;
+    }
+
+    void completed(boolean read, long size) {
+        (read ? reads : writes).increment();
+        bytes.add(size);
+    }
+
+    void failed(boolean read, String reason) {
+        failed.increment();
+        errors.computeIfAbsent((read ? "read: " : "write: ") + reason, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Print a line on how the run is going now and then
+     */
+    private Thread progress(long startedAt) {
+        Thread progress = new Thread(() -> {
+            long lastBytes = 0;
+            while (true) {
+                try {
+                    Thread.sleep(PROGRESS_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long total = bytes.sum();
+                System.out.printf("[%d s] %d sessions, %d failed, %.1f MB/s%n",
+                        (System.nanoTime() - startedAt) / 1000000000L, reads.sum() + writes.sum(), failed.sum(),
+                        (total - lastBytes) / (PROGRESS_INTERVAL / 1000.0) / (1024 * 1024));
+                lastBytes = total;
+            }
+        }, "LoadProgress");
+        progress.setDaemon(true);
+        progress.start();
+        return progress;
+    }
+
+    private void report() {
+        double seconds = nanos / 1e9;
+        long completed = reads.sum() + writes.sum();
+        System.out.println("Sessions: " + (completed + failed.sum()) + " (" + reads.sum() + " reads, "
+                + writes.sum() + " writes completed), " + failed.sum() + " failed");
+        System.out.printf("Throughput: %.1f MB in %.2f s, %.1f MB/s, %.1f sessions/s%n",
+                bytes.sum() / (1024.0 * 1024), seconds, bytes.sum() / seconds / (1024 * 1024), completed / seconds);
+        System.out.printf("Latency: p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                latency.percentileMillis(0.5), latency.percentileMillis(0.99),
+                latency.percentileMillis(0.999), latency.percentileMillis(1));
+        if (!errors.isEmpty()) {
+            System.out.println("Errors:");
+            for (Map.Entry<String, LongAdder> error : new TreeMap<String, LongAdder>(errors).entrySet()) {
+                System.out.println("  " + error.getValue().sum() + " " + error.getKey());
+            }
+        }
+    }
+
+    public long getCompleted() {
+        return reads.sum() + writes.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return megabytes transferred per second over the whole run
+     */
+    public double getThroughput() {
+        return bytes.sum() / (nanos / 1e9) / (1024 * 1024);
+    }
+
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+}
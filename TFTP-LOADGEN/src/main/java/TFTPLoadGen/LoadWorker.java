@@ -0,0 +1,122 @@
+package TFTPLoadGen;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * LoadWorker - runs sessions one after another until the run is over
+ * Each session picks a read or a write and a file size at random, and the
+ * file transferred is checked against the checksum of its TestFile. Written
+ * files are checked by reading them back from the server's directory.
+ * @author 246644
+ * @version 2023
+ */
+public class LoadWorker implements Runnable {
+    // time for the server to finish storing a file after the last ACK, in ms
+    private final static int SETTLE_TIME = 1000;
+    private final static int SETTLE_INTERVAL = 20;
+
+    private final LoadGenerator generator;
+    private final Transfer transfer;
+    private final List<TestFile> files;
+    private final int reads;
+    private final File dir;
+    // name written to by this worker, one at a time
+    private final String writeName;
+    // wait before the first session, spreading workers over the ramp-up
+    private final long startDelay;
+    private final Random random;
+    private final LatencyRecorder latency;
+
+    public LoadWorker(LoadGenerator generator, int id, Transfer transfer, List<TestFile> files,
+                      int reads, File dir, long startDelay, long seed) {
+        this.generator = generator;
+        this.transfer = transfer;
+        this.files = files;
+        this.reads = reads;
+        this.dir = dir;
+        this.startDelay = startDelay;
+        writeName = "loadgen-write-" + id + ".bin";
+        random = new Random(seed + id);
+        latency = new LatencyRecorder();
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(startDelay);
+        } catch (InterruptedException e) {
+            return;
+        }
+        while (generator.nextSession()) {
+            TestFile file = files.get(random.nextInt(files.size()));
+            boolean read = random.nextInt(100) < reads;
+            long startedAt = System.nanoTime();
+            try {
+                if (read) {
+                    if (transfer.read(file.getName()) != file.getChecksum()) {
+                        throw new IOException("Checksum mismatch");
+                    }
+                } else {
+                    transfer.write(writeName, file.getData());
+                }
+                long nanos = System.nanoTime() - startedAt;
+                if (!read) {
+                    verify(file);
+                }
+                latency.record(nanos);
+                generator.completed(read, file.getData().length);
+            } catch (IOException e) {
+                generator.failed(read, e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check the file the server stored against the content sent
+     * The server may close the file just after acknowledging the last
+     * block, so it is read again until it matches or the settle time runs out.
+     */
+    private void verify(TestFile file) throws IOException, InterruptedException {
+        File written = new File(dir, writeName);
+        long giveUpAt = System.nanoTime() + SETTLE_TIME * 1000000L;
+        while (checksum(written) != file.getChecksum()) {
+            if (System.nanoTime() - giveUpAt > 0) {
+                throw new IOException("Written file differs from the data sent");
+            }
+            Thread.sleep(SETTLE_INTERVAL);
+        }
+    }
+
+    /**
+     * @return CRC-32 of the file, -1 if it cannot be read
+     */
+    private static long checksum(File file) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        try (InputStream input = new FileInputStream(file)) {
+            int read;
+            while ((read = input.read(chunk)) != -1) {
+                crc.update(chunk, 0, read);
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return crc.getValue();
+    }
+
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    public String getWriteName() {
+        return writeName;
+    }
+}
@@ -0,0 +1,91 @@
+package TFTPLoadGen;
+
+import TFTPCore.TcpFrame;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.zip.CRC32;
+
+/**
+ * TcpTransfer - TFTP session over a TCP connection
+ * Requests are framed by TcpFrame and always ask for a checksum, so the
+ * server checks written files and read files are checked here.
+ * @author 246644
+ * @version 2023
+ */
+public class TcpTransfer implements Transfer {
+    // time to wait for the server before the session fails, in ms
+    private final static int TIMEOUT = 5000;
+
+    private final InetSocketAddress server;
+
+    public TcpTransfer(InetSocketAddress server) {
+        this.server = server;
+    }
+
+    @Override
+    public long read(String filename) throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream send = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), TcpFrame.CHUNK));
+            DataInputStream receive = new DataInputStream(new BufferedInputStream(socket.getInputStream(), TcpFrame.CHUNK));
+            new TcpFrame(TcpFrame.OP_RRQ, TcpFrame.FLAG_CRC, filename, 0).writeHeader(send);
+            send.flush();
+            TcpFrame reply = reply(receive, TcpFrame.OP_DATA);
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[(int) Math.min(TcpFrame.CHUNK, Math.max(1, reply.getLength()))];
+            long remaining = reply.getLength();
+            while (remaining > 0) {
+                int read = receive.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Connection closed with " + remaining + " bytes outstanding");
+                }
+                crc.update(chunk, 0, read);
+                remaining -= read;
+            }
+            if (reply.hasChecksum() && receive.readInt() != (int) crc.getValue()) {
+                throw new IOException("Checksum mismatch");
+            }
+            return crc.getValue();
+        }
+    }
+
+    @Override
+    public void write(String filename, byte[] data) throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream send = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), TcpFrame.CHUNK));
+            DataInputStream receive = new DataInputStream(new BufferedInputStream(socket.getInputStream(), TcpFrame.CHUNK));
+            CRC32 crc = new CRC32();
+            new TcpFrame(TcpFrame.OP_WRQ, TcpFrame.FLAG_CRC, filename, data.length).writeHeader(send);
+            TcpFrame.writeData(new ByteArrayInputStream(data), send, data.length, crc);
+            send.writeInt((int) crc.getValue());
+            send.flush();
+            TcpFrame reply = reply(receive, TcpFrame.OP_ACK);
+            if (reply.getLength() != data.length) {
+                throw new IOException("Server acknowledged " + reply.getLength() + " of " + data.length + " bytes");
+            }
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(server, TIMEOUT);
+        socket.setSoTimeout(TIMEOUT);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * Read the server's answer, an ERROR frame fails the session
+     */
+    private static TcpFrame reply(DataInputStream receive, int expected) throws IOException {
+        TcpFrame reply = TcpFrame.readHeader(receive);
+        if (reply.getOpcode() == TcpFrame.OP_ERROR) {
+            throw new IOException("Server error: " + reply.getName());
+        }
+        if (reply.getOpcode() != expected) {
+            throw new IOException("Unexpected opcode " + reply.getOpcode());
+        }
+        return reply;
+    }
+}
@@ -0,0 +1,56 @@
+package TFTPLoadGen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * TestFile - content of one of the file sizes the load generator transfers
+ * Reads fetch a copy kept in the server's directory, writes send the same
+ * bytes under another name, so every transfer is checked against one checksum.
+ * @author 246644
+ * @version 2023
+ */
+public class TestFile {
+    private final String name;
+    private final byte[] data;
+    private final long checksum;
+
+    /**
+     * Make content of the given size and put a copy in the server's directory
+     * @param dir - directory the server serves files from
+     * @param size - bytes of content
+     * @param text - letters and line breaks only, otherwise any byte
+     * @param seed - the same seed gives the same content
+     */
+    public TestFile(File dir, int size, boolean text, long seed) throws IOException {
+        name = "loadgen-" + size + ".bin";
+        data = new byte[size];
+        Random random = new Random(seed + size);
+        if (text) {
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + random.nextInt(26));
+            }
+        } else {
+            random.nextBytes(data);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        checksum = crc.getValue();
+        Files.write(new File(dir, name).toPath(), data);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+}
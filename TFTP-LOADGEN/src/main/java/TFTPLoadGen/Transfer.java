@@ -0,0 +1,23 @@
+package TFTPLoadGen;
+
+import java.io.IOException;
+
+/**
+ * Transfer - one read or write session against a server
+ * A failed session throws an IOException whose message names the reason,
+ * which the report counts.
+ * @author 246644
+ * @version 2023
+ */
+public interface Transfer {
+    /**
+     * Fetch a file from the server
+     * @return CRC-32 of the bytes received
+     */
+    long read(String filename) throws IOException;
+
+    /**
+     * Send bytes to the server to store under the given name
+     */
+    void write(String filename, byte[] data) throws IOException;
+}
@@ -0,0 +1,321 @@
+package TFTPLoadGen;
+
+import TFTPCore.AckPacket;
+import TFTPCore.DataPacket;
+import TFTPCore.ErrorPacket;
+import TFTPCore.RetransmitTimer;
+import TFTPCore.TftpOptions;
+import TFTPCore.TftpPacket;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * UdpTransfer - TFTP session over UDP from an ephemeral port
+ * Works like TftpClient, with windows and the adaptive retransmission timer,
+ * but keeps file data in memory and reports failures instead of exiting, so
+ * many sessions can run side by side in one process.
+ * @author 246644
+ * @version 2023
+ */
+public class UdpTransfer implements Transfer {
+    private final InetAddress serverAddress;
+    private final int serverPort;
+    // options to request, 0 to leave out
+    private final int requestedBlksize;
+    private final int requestedWindowsize;
+
+    private DatagramSocket socket;
+    private byte[] buffer;
+    private DatagramPacket receivePacket;
+    // views of the packet received into the buffer
+    private ByteBuffer in;
+    private final DataPacket dataView;
+    private final AckPacket ackView;
+    private final ErrorPacket errorView;
+    private final byte[] ack;
+    private RetransmitTimer timer;
+    private int blksize;
+    private int windowsize;
+    // port of the server's transfer ID, -1 until it has answered
+    private int transferPort;
+
+    public UdpTransfer(InetAddress serverAddress, int serverPort, int blksize, int windowsize) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        requestedBlksize = blksize;
+        requestedWindowsize = windowsize;
+        dataView = new DataPacket();
+        ackView = new AckPacket();
+        errorView = new ErrorPacket();
+        ack = new byte[TftpPacket.HEADER];
+    }
+
+    @Override
+    public long read(String filename) throws IOException {
+        CRC32 crc = new CRC32();
+        open();
+        try {
+            byte[] request = request(TftpPacket.OP_RRQ, filename);
+            send(request, request.length, serverPort);
+            long ackSentAt = System.nanoTime();
+            boolean ackRetransmitted = false;
+            // block expected next, counted from 1 without wrapping
+            long block = 1;
+            boolean dataReceived = false;
+            boolean endOfFile = false;
+            int windowCount = 0;
+            boolean gapAcked = false;
+            int previousBlock = 0;
+            long deadline = ackSentAt + timer.timeout() * 1000000L;
+            while (!endOfFile) {
+                if (!receive(deadline)) {
+                    if (!timer.backoff()) {
+                        throw new IOException("Timed out");
+                    }
+                    if (transferPort < 0) {
+                        send(request, request.length, serverPort);
+                    } else {
+                        sendAck(block - 1);
+                    }
+                    ackRetransmitted = true;
+                    windowCount = 0;
+                    deadline = System.nanoTime() + timer.timeout() * 1000000L;
+                    continue;
+                }
+                int opcode = TftpPacket.opcode(received());
+                if (opcode == TftpPacket.OP_OACK && !dataReceived) {
+                    acceptOptionAck();
+                    if (!ackRetransmitted) {
+                        timer.sample(System.nanoTime() - ackSentAt);
+                    }
+                    timer.reset();
+                    sendAck(0);
+                    ackSentAt = System.nanoTime();
+                    ackRetransmitted = false;
+                    deadline = ackSentAt + timer.timeout() * 1000000L;
+                } else if (opcode == TftpPacket.OP_ERROR) {
+                    throw new IOException(errorMessage());
+                } else if (dataView.wrap(received()).isValid()) {
+                    int dataBlock = dataView.block();
+                    if (dataBlock == (block & 0xffff)) {
+                        if (windowCount == 0 && !ackRetransmitted) {
+                            timer.sample(System.nanoTime() - ackSentAt);
+                        }
+                        timer.reset();
+                        crc.update(buffer, dataView.dataStart(), dataView.dataLength());
+                        dataReceived = true;
+                        gapAcked = false;
+                        windowCount++;
+                        endOfFile = dataView.dataLength() < blksize;
+                        if (windowCount == windowsize || endOfFile) {
+                            sendAck(block);
+                            windowCount = 0;
+                            ackSentAt = System.nanoTime();
+                            ackRetransmitted = false;
+                        }
+                        deadline = System.nanoTime() + timer.timeout() * 1000000L;
+                        block++;
+                    } else if (((dataBlock - block) & 0xffff) < 0x8000) {
+                        // block missing, the server restarts after the last block held; a
+                        // block already held is not acknowledged (Sorcerer's Apprentice Syndrome)
+                        if (((dataBlock - previousBlock) & 0xffff) > 0x8000) {
+                            gapAcked = false;
+                        }
+                        if (!gapAcked) {
+                            sendAck(block - 1);
+                            gapAcked = true;
+                            windowCount = 0;
+                            ackSentAt = System.nanoTime();
+                            ackRetransmitted = true;
+                        }
+                    }
+                    previousBlock = dataBlock;
+                }
+            }
+        } finally {
+            socket.close();
+        }
+        return crc.getValue();
+    }
+
+    @Override
+    public void write(String filename, byte[] data) throws IOException {
+        open();
+        try {
+            byte[] request = request(TftpPacket.OP_WRQ, filename);
+            // the request is sent again each time the timer runs out
+            while (true) {
+                send(request, request.length, serverPort);
+                long sentAt = System.nanoTime();
+                if (receive(sentAt + timer.timeout() * 1000000L)) {
+                    if (timer.getRetries() == 0) {
+                        timer.sample(System.nanoTime() - sentAt);
+                    }
+                    break;
+                }
+                if (!timer.backoff()) {
+                    throw new IOException("Timed out");
+                }
+            }
+            timer.reset();
+            int opcode = TftpPacket.opcode(received());
+            if (opcode == TftpPacket.OP_ERROR) {
+                throw new IOException(errorMessage());
+            }
+            if (opcode == TftpPacket.OP_OACK) {
+                acceptOptionAck();
+            } else if (opcode != TftpPacket.OP_ACK) {
+                throw new IOException("Unexpected opcode " + opcode);
+            }
+            // the file ends with the first block shorter than blksize, which may be empty
+            long lastBlock = data.length / blksize + 1;
+            long base = 1;
+            long highestSent = 0;
+            while (true) {
+                long sent = Math.min(base + windowsize - 1, lastBlock);
+                boolean retransmission = base <= highestSent;
+                for (long block = base; block <= sent; block++) {
+                    int offset = (int) ((block - 1) * blksize);
+                    int length = Math.min(blksize, data.length - offset);
+                    DataPacket.putHeader(buffer, block);
+                    System.arraycopy(data, offset, buffer, TftpPacket.HEADER, length);
+                    send(buffer, TftpPacket.HEADER + length, transferPort);
+                }
+                highestSent = Math.max(highestSent, sent);
+                long sentAt = System.nanoTime();
+                long deadline = sentAt + timer.timeout() * 1000000L;
+                long acked = -1;
+                while (acked < 0 && receive(deadline)) {
+                    if (TftpPacket.opcode(received()) == TftpPacket.OP_ERROR) {
+                        throw new IOException(errorMessage());
+                    }
+                    if (ackView.wrap(received()).isValid()) {
+                        int ackBlock = ackView.block();
+                        long block = (base - 1) + ((ackBlock - (base - 1)) & 0xffff);
+                        // ACKs older than the window are duplicates
+                        if (block <= sent) {
+                            acked = block;
+                        }
+                    }
+                }
+                if (acked < 0) {
+                    if (!timer.backoff()) {
+                        throw new IOException("Timed out");
+                    }
+                    continue;
+                }
+                if (acked == sent && !retransmission && timer.getRetries() == 0) {
+                    timer.sample(System.nanoTime() - sentAt);
+                }
+                timer.reset();
+                if (acked == lastBlock) {
+                    return;
+                }
+                base = acked + 1;
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Open the socket of a new session and reset its state
+     */
+    private void open() throws SocketException {
+        socket = new DatagramSocket();
+        blksize = TftpOptions.DEFAULT_BLKSIZE;
+        windowsize = TftpOptions.DEFAULT_WINDOWSIZE;
+        buffer = new byte[TftpPacket.HEADER + Math.max(blksize, requestedBlksize)];
+        in = ByteBuffer.wrap(buffer);
+        receivePacket = new DatagramPacket(buffer, buffer.length);
+        timer = new RetransmitTimer();
+        transferPort = -1;
+        if (requestedWindowsize > 1) {
+            socket.setReceiveBufferSize(Math.max(socket.getReceiveBufferSize(), requestedWindowsize * buffer.length));
+        }
+    }
+
+    private byte[] request(int opcode, String filename) {
+        Map<String, String> options = new HashMap<String, String>();
+        if (requestedBlksize > 0) {
+            options.put(TftpOptions.OPT_BLKSIZE, Integer.toString(requestedBlksize));
+        }
+        if (requestedWindowsize > 0) {
+            options.put(TftpOptions.OPT_WINDOWSIZE, Integer.toString(requestedWindowsize));
+        }
+        byte[] request = new byte[Math.max(buffer.length, 512 + filename.length())];
+        int length = TftpOptions.writeRequest(request, opcode, filename, options);
+        return Arrays.copyOf(request, length);
+    }
+
+    /**
+     * Apply the options acknowledged in the OACK held in the buffer
+     */
+    private void acceptOptionAck() throws IOException {
+        Map<String, String> options = TftpOptions.parseOptionAck(buffer, receivePacket.getLength());
+        blksize = TftpOptions.blockSize(options, requestedBlksize);
+        windowsize = TftpOptions.windowSize(options, Math.max(1, requestedWindowsize));
+        if (blksize < 0 || windowsize < 0) {
+            throw new IOException("Invalid options acknowledged");
+        }
+    }
+
+    /**
+     * Receive a packet of this session before the deadline
+     * The first answer fixes the server's transfer ID, packets from other ports are dropped.
+     * @return false if the deadline passed
+     */
+    private boolean receive(long deadline) throws IOException {
+        while (true) {
+            long remaining = (deadline - System.nanoTime()) / 1000000;
+            if (remaining <= 0) {
+                return false;
+            }
+            socket.setSoTimeout((int) remaining);
+            receivePacket.setData(buffer);
+            try {
+                socket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            if (!receivePacket.getAddress().equals(serverAddress) || receivePacket.getLength() < 2) {
+                continue;
+            }
+            if (transferPort < 0) {
+                transferPort = receivePacket.getPort();
+            }
+            if (receivePacket.getPort() == transferPort) {
+                return true;
+            }
+        }
+    }
+
+    private void send(byte[] data, int length, int port) throws IOException {
+        socket.send(new DatagramPacket(data, length, serverAddress, port));
+    }
+
+    private void sendAck(long block) throws IOException {
+        send(ack, AckPacket.write(ack, block), transferPort);
+    }
+
+    /**
+     * @return the packet just received, between position and limit of a view of the buffer
+     */
+    private ByteBuffer received() {
+        in.limit(receivePacket.getLength()).position(0);
+        return in;
+    }
+
+    /**
+     * Message of the ERROR packet held in the buffer
+     */
+    private String errorMessage() {
+        return "Server error: " + errorView.wrap(received()).message();
+    }
+}
@@ -0,0 +1,57 @@
+package TFTPProxy;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery - a packet waiting in the proxy to be sent on
+ * Deliveries due at the same time leave in the order they were queued.
+ * @author 246644
+ * @version 2023
+ */
+public class Delivery implements Delayed {
+    private final long sendAt;
+    private final long sequence;
+    private final DatagramSocket socket;
+    private final DatagramPacket packet;
+
+    /**
+     * @param sendAt - System.nanoTime() at which to send
+     * @param sequence - order in which deliveries were queued
+     * @param socket - socket to send from
+     * @param data - copy of the packet data
+     * @param target - address to send to
+     */
+    public Delivery(long sendAt, long sequence, DatagramSocket socket, byte[] data, SocketAddress target) {
+        this.sendAt = sendAt;
+        this.sequence = sequence;
+        this.socket = socket;
+        packet = new DatagramPacket(data, data.length, target);
+    }
+
+    public DatagramSocket getSocket() {
+        return socket;
+    }
+
+    public DatagramPacket getPacket() {
+        return packet;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(sendAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+        Delivery delivery = (Delivery) other;
+        long difference = sendAt - delivery.sendAt;
+        if (difference == 0) {
+            return Long.compare(sequence, delivery.sequence);
+        }
+        return difference < 0 ? -1 : 1;
+    }
+}
@@ -0,0 +1,102 @@
+package TFTPProxy;
+
+import java.io.IOException;
+import java.net.*;
+
+/**
+ * Flow - the proxy's part in the transfers of one client address and port
+ * The client's requests arrive on the proxy's well known port and go to the
+ * server's well known port from the upstream socket. The server answers from
+ * a new port (its transfer ID), so the flow answers the client from a port
+ * of its own, the downstream socket, and passes whatever the client sends
+ * there on to the server's transfer ID. A new request makes the next
+ * answer from the server set the transfer ID again.
+ * @author 246644
+ * @version 2023
+ */
+public class Flow {
+    // flows nothing has passed through for this long are closed, in ms
+    private final static int IDLE_TIMEOUT = 30000;
+    private final static int POLL_INTERVAL = 1000;
+
+    private final ImpairmentProxy proxy;
+    private final SocketAddress client;
+    private final DatagramSocket upstream;
+    private final DatagramSocket downstream;
+    // server's transfer ID, null until the server answers the last request
+    private volatile SocketAddress transferId;
+    private volatile long lastActive;
+
+    public Flow(ImpairmentProxy proxy, SocketAddress client) throws SocketException {
+        this.proxy = proxy;
+        this.client = client;
+        upstream = new DatagramSocket();
+        downstream = new DatagramSocket();
+        transferId = null;
+        lastActive = System.nanoTime();
+    }
+
+    /**
+     * Start passing on packets from the server and from the client
+     */
+    public void start() {
+        Thread fromServer = new Thread(() -> relay(upstream, true), "FlowFromServer-" + client);
+        Thread fromClient = new Thread(() -> relay(downstream, false), "FlowFromClient-" + client);
+        fromServer.setDaemon(true);
+        fromClient.setDaemon(true);
+        fromServer.start();
+        fromClient.start();
+    }
+
+    /**
+     * Pass on a request the client sent to the proxy's well known port
+     */
+    public void request(byte[] data, int length, SocketAddress server) {
+        lastActive = System.nanoTime();
+        transferId = null;
+        proxy.toServer(data, length, upstream, server);
+    }
+
+    /**
+     * Receive on one of the flow's sockets until the flow has been idle too long
+     * @param fromServer - true for the upstream socket
+     */
+    private void relay(DatagramSocket socket, boolean fromServer) {
+        byte[] buffer = new byte[ImpairmentProxy.MAX_PACKET];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            socket.setSoTimeout(POLL_INTERVAL);
+            while (true) {
+                packet.setData(buffer);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    if ((System.nanoTime() - lastActive) / 1000000 > IDLE_TIMEOUT) {
+                        break;
+                    }
+                    continue;
+                }
+                lastActive = System.nanoTime();
+                if (fromServer) {
+                    // first answer to a request comes from the server's transfer ID
+                    if (transferId == null) {
+                        transferId = packet.getSocketAddress();
+                    }
+                    proxy.toClient(buffer, packet.getLength(), downstream, client);
+                } else if (transferId != null && packet.getSocketAddress().equals(client)) {
+                    proxy.toServer(buffer, packet.getLength(), upstream, transferId);
+                }
+            }
+        } catch (IOException e) {
+            // socket closed
+        } finally {
+            close();
+        }
+    }
+
+    private void close() {
+        proxy.remove(client, this);
+        upstream.close();
+        downstream.close();
+    }
+}
@@ -0,0 +1,164 @@
+package TFTPProxy;
+
+/**
+ * Impairment - what the proxy does to the packets it forwards
+ * Options: [--loss=percent] [--duplicate=percent] [--reorder=percent]
+ *          [--delay=ms] [--jitter=ms] [--rate=N[k|m]] [--queue=ms]
+ * Each packet is dropped, sent twice or held back so later packets overtake
+ * it with the given chances, then delayed by delay plus a random part of
+ * jitter; jitter alone also reorders packets. A rate in bytes per second
+ * limits each direction like a link of that speed, dropping packets which
+ * would wait longer than the queue time to be sent.
+ * @author 246644
+ * @version 2023
+ */
+public class Impairment {
+    // queue of a rate limited link, in ms
+    public final static int DEFAULT_QUEUE = 100;
+
+    private double loss;
+    private double duplicate;
+    private double reorder;
+    private int delay;
+    private int jitter;
+    // bytes per second in each direction, 0 for no limit
+    private long rate;
+    private int queue;
+
+    public Impairment() {
+        loss = 0;
+        duplicate = 0;
+        reorder = 0;
+        delay = 0;
+        jitter = 0;
+        rate = 0;
+        queue = DEFAULT_QUEUE;
+    }
+
+    public Impairment(Impairment other) {
+        loss = other.loss;
+        duplicate = other.duplicate;
+        reorder = other.reorder;
+        delay = other.delay;
+        jitter = other.jitter;
+        rate = other.rate;
+        queue = other.queue;
+    }
+
+    /**
+     * Set an option from the command line
+     * @param name - option name without the leading --
+     * @return false if the name is not an impairment option
+     * @throws IllegalArgumentException if the value is not valid
+     */
+    public boolean set(String name, String value) {
+        switch (name) {
+            case "loss":
+                loss = parsePercent(name, value);
+                return true;
+            case "duplicate":
+                duplicate = parsePercent(name, value);
+                return true;
+            case "reorder":
+                reorder = parsePercent(name, value);
+                return true;
+            case "delay":
+                delay = parseMillis(name, value);
+                return true;
+            case "jitter":
+                jitter = parseMillis(name, value);
+                return true;
+            case "rate":
+                rate = parseRate(name, value);
+                return true;
+            case "queue":
+                queue = parseMillis(name, value);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static double parsePercent(String name, String value) {
+        try {
+            double percent = Double.parseDouble(value);
+            if (percent >= 0 && percent <= 100) {
+                return percent;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " must be a percentage: " + value);
+    }
+
+    private static int parseMillis(String name, String value) {
+        try {
+            int millis = Integer.parseInt(value);
+            if (millis >= 0) {
+                return millis;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " must be a time in ms: " + value);
+    }
+
+    /**
+     * @param value - bytes per second with an optional k or m suffix
+     */
+    private static long parseRate(String name, String value) {
+        long unit = 1;
+        String number = value.toLowerCase();
+        if (number.endsWith("k")) {
+            unit = 1024;
+        } else if (number.endsWith("m")) {
+            unit = 1024 * 1024;
+        }
+        if (unit > 1) {
+            number = number.substring(0, number.length() - 1);
+        }
+        try {
+            long rate = Long.parseLong(number) * unit;
+            if (rate >= 0) {
+                return rate;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " must be bytes per second such as 512k: " + value);
+    }
+
+    public double getLoss() {
+        return loss;
+    }
+
+    public double getDuplicate() {
+        return duplicate;
+    }
+
+    public double getReorder() {
+        return reorder;
+    }
+
+    public int getDelay() {
+        return delay;
+    }
+
+    public int getJitter() {
+        return jitter;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public int getQueue() {
+        return queue;
+    }
+
+    @Override
+    public String toString() {
+        return "loss " + loss + "%, duplicate " + duplicate + "%, reorder " + reorder + "%, delay " + delay
+                + " ms, jitter " + jitter + " ms" + (rate > 0 ? ", rate " + rate + " B/s, queue " + queue + " ms" : "");
+    }
+}
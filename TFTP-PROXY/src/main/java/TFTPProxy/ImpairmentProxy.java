@@ -0,0 +1,229 @@
+package TFTPProxy;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ImpairmentProxy - UDP proxy between TFTP clients and TFTPServer which
+ * loses, duplicates, reorders, delays and rate limits packets
+ * Clients send requests to the proxy's port instead of the server's, and each
+ * client address gets a Flow which follows the server's change of port to
+ * the transfer ID. Packets to be delayed wait in a queue and are sent by
+ * one scheduler thread when they are due. Multicast transfers are not proxied.
+ * Usage: see ProxyConfig
+ * @author 246644
+ * @version 2023
+ */
+public class ImpairmentProxy {
+    // largest block size + 4 byte header
+    public final static int MAX_PACKET = 65468;
+    // packets held back for reordering wait this much longer than the delay, in ms
+    private final static int REORDER_HOLD = 10;
+
+    private final DatagramSocket listenSocket;
+    private final SocketAddress server;
+    private final Map<SocketAddress, Flow> flows;
+    private final DelayQueue<Delivery> queue;
+    private final AtomicLong sequence;
+    private final Link clientToServer;
+    private final Link serverToClient;
+    private volatile Impairment impairment;
+    private volatile Random random;
+
+    public ImpairmentProxy(int listenPort, SocketAddress server, Impairment impairment, long seed) throws SocketException {
+        listenSocket = new DatagramSocket(listenPort);
+        this.server = server;
+        this.impairment = impairment;
+        random = new Random(seed);
+        flows = new ConcurrentHashMap<SocketAddress, Flow>();
+        queue = new DelayQueue<Delivery>();
+        sequence = new AtomicLong();
+        clientToServer = new Link("client -> server");
+        serverToClient = new Link("server -> client");
+    }
+
+    public static void main(String[] args) throws IOException {
+        ProxyConfig config = null;
+        try {
+            config = ProxyConfig.parse(args, null);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java TFTPProxy.ImpairmentProxy [--listen-port=N] [--server-host=name] [--server-port=N]"
+                    + " [--seed=N] [--loss=percent] [--duplicate=percent] [--reorder=percent]"
+                    + " [--delay=ms] [--jitter=ms] [--rate=N[k|m]] [--queue=ms]");
+            System.exit(1);
+        }
+        ImpairmentProxy proxy = null;
+        try {
+            proxy = new ImpairmentProxy(config.getListenPort(),
+                    new InetSocketAddress(config.getServerHost(), config.getServerPort()), config.getImpairment(), config.getSeed());
+        } catch (SocketException e) {
+            System.err.println("Could not bind to port, may already be in use.");
+            System.exit(1);
+        }
+        // counts are printed when the proxy is stopped
+        ImpairmentProxy running = proxy;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(running.statistics())));
+        System.out.println("Proxying port " + config.getListenPort() + " to " + config.getServerHost() + ":"
+                + config.getServerPort() + " with " + config.getImpairment());
+        proxy.run();
+    }
+
+    /**
+     * Run the proxy in the background
+     */
+    public void start() {
+        Thread listener = new Thread(() -> {
+            try {
+                run();
+            } catch (IOException e) {
+                // socket closed
+            }
+        }, "ProxyListener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Pass on requests to the well known port until the socket is closed
+     */
+    public void run() throws IOException {
+        Thread scheduler = new Thread(this::schedule, "ProxyScheduler");
+        scheduler.setDaemon(true);
+        scheduler.start();
+        byte[] buffer = new byte[MAX_PACKET];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            packet.setData(buffer);
+            listenSocket.receive(packet);
+            SocketAddress client = packet.getSocketAddress();
+            Flow flow = flows.get(client);
+            if (flow == null) {
+                try {
+                    flow = new Flow(this, client);
+                } catch (SocketException e) {
+                    // out of sockets, the client will send the request again
+                    continue;
+                }
+                flows.put(client, flow);
+                flow.start();
+            }
+            flow.request(buffer, packet.getLength(), server);
+        }
+    }
+
+    /**
+     * Send packets from the queue when they are due
+     */
+    private void schedule() {
+        while (true) {
+            Delivery delivery;
+            try {
+                delivery = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            send(delivery.getSocket(), delivery.getPacket());
+        }
+    }
+
+    void toServer(byte[] data, int length, DatagramSocket socket, SocketAddress target) {
+        forward(clientToServer, data, length, socket, target);
+    }
+
+    void toClient(byte[] data, int length, DatagramSocket socket, SocketAddress target) {
+        forward(serverToClient, data, length, socket, target);
+    }
+
+    /**
+     * Apply the impairment to a packet and send it now or queue it
+     */
+    private void forward(Link link, byte[] data, int length, DatagramSocket socket, SocketAddress target) {
+        Impairment impairment = this.impairment;
+        Random random = this.random;
+        link.packets.increment();
+        link.bytes.add(length);
+        if (chance(random, impairment.getLoss())) {
+            link.dropped.increment();
+            return;
+        }
+        int copies = 1;
+        if (chance(random, impairment.getDuplicate())) {
+            link.duplicated.increment();
+            copies = 2;
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < copies; i++) {
+            long sendAt = now;
+            if (impairment.getRate() > 0) {
+                sendAt = link.transmit(now, length, impairment.getRate(), impairment.getQueue() * 1000000L);
+                if (sendAt == -1) {
+                    link.queueDrops.increment();
+                    continue;
+                }
+            }
+            long delay = impairment.getDelay();
+            if (impairment.getJitter() > 0) {
+                delay += random.nextInt(impairment.getJitter() + 1);
+            }
+            if (chance(random, impairment.getReorder())) {
+                link.reordered.increment();
+                delay += impairment.getDelay() + REORDER_HOLD;
+            }
+            sendAt += delay * 1000000L;
+            if (sendAt - now <= 0) {
+                send(socket, new DatagramPacket(data, length, target));
+            } else {
+                queue.add(new Delivery(sendAt, sequence.getAndIncrement(), socket, Arrays.copyOf(data, length), target));
+            }
+        }
+    }
+
+    private static boolean chance(Random random, double percent) {
+        return percent > 0 && random.nextDouble() * 100 < percent;
+    }
+
+    private static void send(DatagramSocket socket, DatagramPacket packet) {
+        try {
+            socket.send(packet);
+        } catch (IOException e) {
+            // flow closed while the packet waited
+        }
+    }
+
+    void remove(SocketAddress client, Flow flow) {
+        flows.remove(client, flow);
+    }
+
+    /**
+     * Change the impairment and start the counts and random choices again
+     */
+    public void reset(Impairment impairment, long seed) {
+        this.impairment = impairment;
+        random = new Random(seed);
+        clientToServer.reset();
+        serverToClient.reset();
+    }
+
+    public Link getClientToServer() {
+        return clientToServer;
+    }
+
+    public Link getServerToClient() {
+        return serverToClient;
+    }
+
+    public int getPort() {
+        return listenSocket.getLocalPort();
+    }
+
+    public String statistics() {
+        return clientToServer + "\n" + serverToClient;
+    }
+}
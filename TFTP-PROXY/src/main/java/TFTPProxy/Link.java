@@ -0,0 +1,74 @@
+package TFTPProxy;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Link - one direction through the proxy, client to server or back
+ * Holds the time the link is busy until when it is rate limited, and counts
+ * what happened to the packets sent over it.
+ * @author 246644
+ * @version 2023
+ */
+public class Link {
+    private final String name;
+    // System.nanoTime() at which the last packet queued has been sent
+    private long freeAt;
+    final LongAdder packets;
+    final LongAdder bytes;
+    final LongAdder dropped;
+    final LongAdder queueDrops;
+    final LongAdder duplicated;
+    final LongAdder reordered;
+
+    public Link(String name) {
+        this.name = name;
+        freeAt = System.nanoTime();
+        packets = new LongAdder();
+        bytes = new LongAdder();
+        dropped = new LongAdder();
+        queueDrops = new LongAdder();
+        duplicated = new LongAdder();
+        reordered = new LongAdder();
+    }
+
+    /**
+     * Queue a packet on a rate limited link
+     * @param now - System.nanoTime() when the packet arrived
+     * @param length - bytes in the packet
+     * @param rate - bytes per second
+     * @param queue - longest wait to be sent, in ns
+     * @return time the packet has been sent, or -1 if the queue is full
+     */
+    synchronized long transmit(long now, int length, long rate, long queue) {
+        long start = freeAt - now > 0 ? freeAt : now;
+        if (start - now > queue) {
+            return -1;
+        }
+        freeAt = start + length * 1000000000L / rate;
+        return freeAt;
+    }
+
+    public synchronized void reset() {
+        freeAt = System.nanoTime();
+        packets.reset();
+        bytes.reset();
+        dropped.reset();
+        queueDrops.reset();
+        duplicated.reset();
+        reordered.reset();
+    }
+
+    public long getPackets() {
+        return packets.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum() + queueDrops.sum();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + packets.sum() + " packets (" + bytes.sum() + " bytes), " + dropped.sum() + " lost, "
+                + queueDrops.sum() + " queue drops, " + duplicated.sum() + " duplicated, " + reordered.sum() + " reordered";
+    }
+}
@@ -0,0 +1,110 @@
+package TFTPProxy;
+
+import java.util.List;
+
+/**
+ * ProxyConfig - command line settings of the proxy
+ * Usage: java TFTPProxy.ImpairmentProxy [--listen-port=N] [--server-host=name] [--server-port=N]
+ *        [--seed=N] [--loss=percent] [--duplicate=percent] [--reorder=percent]
+ *        [--delay=ms] [--jitter=ms] [--rate=N[k|m]] [--queue=ms]
+ * The seed fixes which packets are impaired for the same sequence of packets.
+ * @author 246644
+ * @version 2023
+ */
+public class ProxyConfig {
+    public final static int DEFAULT_LISTEN_PORT = 1235;
+    // well known port of TFTPServer
+    public final static int DEFAULT_SERVER_PORT = 1234;
+
+    private int listenPort;
+    private String serverHost;
+    private int serverPort;
+    private long seed;
+    private Impairment impairment;
+
+    public ProxyConfig() {
+        listenPort = DEFAULT_LISTEN_PORT;
+        serverHost = "127.0.0.1";
+        serverPort = DEFAULT_SERVER_PORT;
+        seed = 1;
+        impairment = new Impairment();
+    }
+
+    /**
+     * Read settings from the command line
+     * @param args - arguments of the form --name=value
+     * @param others - collects arguments which are not proxy settings,
+     *               null if they are not allowed
+     * @return settings, defaults for anything not given
+     * @throws IllegalArgumentException if an argument is not recognised
+     */
+    public static ProxyConfig parse(String[] args, List<String> others) {
+        ProxyConfig config = new ProxyConfig();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "listen-port":
+                    config.listenPort = parsePositive(name, value);
+                    break;
+                case "server-host":
+                    config.serverHost = value;
+                    break;
+                case "server-port":
+                    config.serverPort = parsePositive(name, value);
+                    break;
+                case "seed":
+                    try {
+                        config.seed = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(name + " must be a number: " + value);
+                    }
+                    break;
+                default:
+                    if (!config.impairment.set(name, value)) {
+                        if (others == null) {
+                            throw new IllegalArgumentException("Unrecognised argument: " + arg);
+                        }
+                        others.add(arg);
+                    }
+            }
+        }
+        return config;
+    }
+
+    private static int parsePositive(String name, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " must be a positive number: " + value);
+    }
+
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    public String getServerHost() {
+        return serverHost;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public Impairment getImpairment() {
+        return impairment;
+    }
+}
@@ -0,0 +1,107 @@
+package TFTPProxy;
+
+import TFTPLoadGen.LatencyRecorder;
+import TFTPLoadGen.LoadConfig;
+import TFTPLoadGen.LoadGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ScenarioRunner - runs the load generator through the proxy under a list of impairments
+ * Each line of the scenario file is a name followed by proxy and load
+ * generator options for that scenario, which are added to the ones given on
+ * the command line; lines starting with # are comments. Every scenario
+ * starts from the same seed, so runs can be compared with each other and
+ * with runs of another version of the server. A table of the results is
+ * printed at the end.
+ * Usage: java TFTPProxy.ScenarioRunner --scenarios=file --dir=path [proxy options, see ProxyConfig]
+ *        [load generator options, see LoadConfig]
+ * The load generator runs 50 sessions one at a time unless told otherwise.
+ * @author 246644
+ * @version 2023
+ */
+public class ScenarioRunner {
+    private final static String[] DEFAULTS = {"--sessions=50", "--concurrency=1"};
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String scenarios = null;
+        List<String> common = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--scenarios=")) {
+                scenarios = arg.substring("--scenarios=".length());
+            } else {
+                common.add(arg);
+            }
+        }
+        ProxyConfig config = null;
+        try {
+            if (scenarios == null) {
+                throw new IllegalArgumentException("--scenarios is required");
+            }
+            config = ProxyConfig.parse(common.toArray(new String[0]), new ArrayList<String>());
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java TFTPProxy.ScenarioRunner --scenarios=file --dir=path"
+                    + " [proxy options] [load generator options]");
+            System.exit(1);
+        }
+        ImpairmentProxy proxy = new ImpairmentProxy(config.getListenPort(),
+                new InetSocketAddress(config.getServerHost(), config.getServerPort()), config.getImpairment(), config.getSeed());
+        proxy.start();
+
+        List<String> results = new ArrayList<String>();
+        boolean ok = true;
+        for (String line : Files.readAllLines(new File(scenarios).toPath())) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            String name = fields[0];
+            List<String> scenarioArgs = new ArrayList<String>(common);
+            scenarioArgs.addAll(Arrays.asList(fields).subList(1, fields.length));
+            List<String> loadArgs = new ArrayList<String>(Arrays.asList(DEFAULTS));
+            ProxyConfig scenario;
+            LoadConfig load;
+            try {
+                scenario = ProxyConfig.parse(scenarioArgs.toArray(new String[0]), loadArgs);
+                // transfers go through the proxy, whatever else was given
+                loadArgs.add("--protocol=" + LoadConfig.UDP);
+                loadArgs.add("--host=127.0.0.1");
+                loadArgs.add("--port=" + proxy.getPort());
+                load = LoadConfig.parse(loadArgs.toArray(new String[0]));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Scenario " + name + ": " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+
+            System.out.println();
+            System.out.println("Scenario " + name + ": " + scenario.getImpairment());
+            proxy.reset(scenario.getImpairment(), scenario.getSeed());
+            LoadGenerator generator = new LoadGenerator(load);
+            ok &= generator.run(new File(load.getDir()));
+            System.out.println(proxy.statistics());
+            LatencyRecorder latency = generator.getLatency();
+            results.add(String.format("%-24s %8d %7d %9.2f %9.2f %9.2f %9.2f %9d %9d %8d",
+                    name, generator.getCompleted(), generator.getFailed(), generator.getThroughput(),
+                    latency.percentileMillis(0.5), latency.percentileMillis(0.99), latency.percentileMillis(0.999),
+                    proxy.getClientToServer().getPackets(), proxy.getServerToClient().getPackets(),
+                    proxy.getClientToServer().getDropped() + proxy.getServerToClient().getDropped()));
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-24s %8s %7s %9s %9s %9s %9s %9s %9s %8s",
+                "scenario", "done", "failed", "MB/s", "p50 ms", "p99 ms", "p99.9 ms", "packets>", "<packets", "dropped"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.exit(ok ? 0 : 1);
+    }
+}
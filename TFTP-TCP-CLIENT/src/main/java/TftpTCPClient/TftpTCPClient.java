@@ -1,19 +1,47 @@
 package TftpTCPClient;
 
+import TFTPCore.Codec;
+import TFTPCore.Compression;
+import TFTPCore.Log;
+import TFTPCore.TcpFrame;
+
 import java.net.*;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
 
 /**
  * TFTP TCP Client - implementation of the TFTP on top of TCP for a client
  * Operation request and filename read from client via command line
  * Sends request to server and either reads a file from or writes a file to server
+ * Requests and answers are framed by TcpFrame, file data is checked with CRC-32
+ * Requests given on the command line are pipelined over one connection: all
+ * of them are sent, tagged with request IDs, while the answers are read as
+ * they come back, so a batch of small files does not wait a round trip each.
+ * With --compress the known codecs are offered for RRQs, and WRQ data from
+ * the threshold up is sent compressed as chunks of Compression.
+ * With --resume a transfer which broke off carries on where it stopped: an
+ * RRQ is received into filename.part and asks for the file from the length
+ * of that part on, a WRQ asks the server how much of the file it kept first.
+ * Such requests wait for each other's answers, so a batch is not pipelined.
  * @param args[0] address
  * @param args[1] portNumber
- * Usage: java TftpTCPClient <address> <portNumber>
+ * Usage: java TftpTCPClient <address> <portNumber> [--log-level=error|warn|info|debug|trace] [--compress] [--resume] [<op_code><filename> ...]
+ * @author 246644
+ * @version 2023
  */
 public class TftpTCPClient {
     private static final String OP_RRQ = "01";
     private static final String OP_WRQ = "02";
+    // offer compressed data and compress the files written
+    private static boolean compress = false;
+    // carry on from where a broken transfer stopped
+    private static boolean resume = false;
+    // suffix of the file an RRQ is received into until it is complete
+    private static final String PART = ".part";
 
     public static void main(String[] args) throws IOException {
         Socket clientSocket;
@@ -24,97 +52,68 @@ public class TftpTCPClient {
         String userRequest;
         // write to socket using send and receive objects below
         DataOutputStream send;
-        BufferedReader receive;
+        DataInputStream receive;
         // to get requests, use stdIn
         BufferedReader stdIn;
-        // to write/read to/from files use FileReader and BufferedWriter
-        BufferedWriter bufferedWriter;
-        FileReader fileReader;
+        // requests given on the command line, pipelined if there are any
+        List<String> batch = new ArrayList<String>();
 
-        if (args.length != 2) {
-            System.err.println("Usage: java TftpTCPClient <address> <port>");
-            System.exit(1);
+        if (args.length < 2) {
+            usage();
+        }
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("--log-level=")) {
+                Log.configure(Log.parseLevel(args[i].substring("--log-level=".length())), false);
+            } else if (args[i].equals("--compress")) {
+                compress = true;
+            } else if (args[i].equals("--resume")) {
+                resume = true;
+            } else if (args[i].length() > 2 && (args[i].startsWith(OP_RRQ) || args[i].startsWith(OP_WRQ))) {
+                batch.add(args[i]);
+            } else {
+                usage();
+            }
         }
         address = args[0];
         portNumber = Integer.parseInt(args[1]);
 
         try {
             clientSocket = new Socket(address, portNumber);
-            send = new DataOutputStream(clientSocket.getOutputStream());
-            receive = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            bufferedWriter = null;
-            fileReader = null;
+            send = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(), TcpFrame.CHUNK));
+            receive = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream(), TcpFrame.CHUNK));
+
+            if (!batch.isEmpty() && resume) {
+                sequence(batch, send, receive);
+                clientSocket.close();
+                return;
+            }
+            if (!batch.isEmpty()) {
+                pipeline(batch, send, receive);
+                clientSocket.close();
+                return;
+            }
             stdIn = new BufferedReader(new InputStreamReader(System.in));
 
             // get user request
             op_code = filename = null;
             System.out.println("----OPCODES-------\n----<01> Read-----\n----<02> Write----\n<op_code><filename>\nExample: 01file.txt\nEnter request and filename:");
-            if ((userRequest = stdIn.readLine()).compareTo("exit") != 0) {
+            if ((userRequest = stdIn.readLine()) != null && userRequest.compareTo("exit") != 0 && userRequest.length() >= 2) {
                 op_code = userRequest.substring(0,2);
                 filename = userRequest.substring(2);
             }
-            if (!op_code.equals(OP_RRQ) && !op_code.equals(OP_WRQ)) {
+            if (op_code == null || (!op_code.equals(OP_RRQ) && !op_code.equals(OP_WRQ))) {
                 System.err.println("Not valid opcodes");
                 System.exit(1);
             }
-            // add request to send packet to send to server
-            send.writeUTF(op_code+filename+"\n");
-            System.out.println("Sending request to server...");
-            char[] chars = new char[1024];
             // read request
             if (op_code.equals(OP_RRQ)) {
-                System.out.println("Requesting data...");
-                try {
-                    bufferedWriter = new BufferedWriter(new FileWriter(filename));
-                    int charsRead;
-                    // check to see if data received; if not file may not exist on the server
-                    boolean dataReceived = false;
-                    // read chars from received packet while data in packet to read
-                    while ((charsRead = receive.read(chars)) != -1) {
-                        // write to file
-                        // exclude trailing null chars
-                        String stringToWrite = new String(chars, 0, charsRead).replace("\u0000", "");
-                        bufferedWriter.write(stringToWrite);
-                        dataReceived = true;
-                    }
-                    bufferedWriter.close();
-                    // server has not sent data; delete file
-                    if (!dataReceived) {
-                        File file = new File(filename);
-                        file.delete();
-                        System.err.println("Nothing received - the requested file may not exist.");
-                    } else {
-                        System.out.println("File has been received.");
-                    }
-                } catch (IOException e) {
-                    System.err.println("Filename error.");
-                }
+                readRequest(filename, 0, send, receive);
             }
             // write request
             else if (op_code.equals(OP_WRQ)) {
-                // read chars from file
-                try {
-                    fileReader = new FileReader(filename);
-                    System.out.println("Sending data...");
-                    // write chars to sendPacket until end of file
-                    int read;
-                    while ((read = fileReader.read(chars)) != -1) {
-                        String charString = new String(chars);
-                        send.writeChars(charString);
-                    }
-                    fileReader.close();
-                    System.out.println("File has been sent.");
-                } catch (FileNotFoundException e) {
-                    System.err.println("Filename not found");
-                }
-                if (bufferedWriter != null) {
-                    bufferedWriter.close();
-                }
-                if (fileReader != null) {
-                    fileReader.close();
-                }
-                clientSocket.close();
+                writeRequest(filename, 0, send, receive);
             }
+            clientSocket.close();
         } catch (UnknownHostException e) {
             System.err.println("Problem with address " + address);
             System.exit(1);
@@ -123,4 +122,334 @@ public class TftpTCPClient {
             System.exit(1);
         }
     }
-}
\ No newline at end of file
+
+    private static void usage() {
+        System.err.println("Usage: java TftpTCPClient <address> <port> [--log-level=error|warn|info|debug|trace] [--compress] [--resume] [<op_code><filename> ...]");
+        System.exit(1);
+    }
+
+    /**
+     * @return codecs offered with an RRQ, null to ask for the file as it is
+     */
+    private static String offered() {
+        return compress ? Compression.names() : null;
+    }
+
+    /**
+     * Request a file from the server and write it to disk
+     * @param id - request ID, 0 for a request which is the only one on its connection
+     * @return bytes received, -1 if the file was not received
+     */
+    private static long readRequest(String filename, int id, DataOutputStream send, DataInputStream receive) throws IOException {
+        // add request to send packet to send to server
+        int flags = TcpFrame.FLAG_CRC | (id != 0 ? TcpFrame.FLAG_ID : 0);
+        TcpFrame request = new TcpFrame(TcpFrame.OP_RRQ, flags, filename, 0, id, offered());
+        if (resume) {
+            // ask for the file from what an earlier attempt left on, 0 if nothing
+            request = request.atOffset(new File(filename + PART).length());
+        }
+        request.writeHeader(send);
+        send.flush();
+        Log.debug("Sending request to server...");
+        long startedAt = System.nanoTime();
+        return receiveFile(filename, TcpFrame.readHeader(receive), receive, startedAt);
+    }
+
+    /**
+     * Write the file answering an RRQ to disk
+     * The file is deleted again if it does not arrive complete and intact.
+     * @return bytes received, -1 if the file was not received
+     */
+    private static long receiveFile(String filename, TcpFrame answer, DataInputStream receive, long startedAt) throws IOException {
+        if (answer.getOpcode() == TcpFrame.OP_ERROR) {
+            Log.error("Server error: ", answer.getName());
+            return -1;
+        }
+        if (answer.getOpcode() != TcpFrame.OP_DATA) {
+            throw new IOException("Unexpected answer from server: " + answer.getOpcode());
+        }
+        Codec codec = null;
+        if (answer.getEncoding() != null) {
+            codec = Compression.codec(answer.getEncoding());
+            if (codec == null) {
+                throw new IOException("Unknown encoding from server: " + answer.getEncoding());
+            }
+        }
+        if (answer.hasOffset()) {
+            return receivePart(filename, answer, codec, receive, startedAt);
+        }
+        File file = new File(filename);
+        boolean received = false;
+        CRC32 crc = answer.hasChecksum() ? new CRC32() : null;
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            if (codec != null) {
+                Compression.decode(codec, receive, output, answer.getLength(), crc);
+            } else {
+                TcpFrame.readData(receive, output, answer.getLength(), crc);
+            }
+            received = crc == null || receive.readInt() == (int) crc.getValue();
+        } catch (FileNotFoundException e) {
+            // the data still has to be read past for the answers after it
+            Log.error("Filename error.");
+            if (codec != null) {
+                Compression.skip(codec, receive, answer.getLength());
+            } else {
+                receive.skipNBytes(answer.getLength());
+            }
+            receive.skipNBytes(answer.hasChecksum() ? 4 : 0);
+            return -1;
+        } finally {
+            if (!received) {
+                file.delete();
+            }
+        }
+        if (!received) {
+            Log.error("Checksum mismatch, file deleted.");
+            return -1;
+        }
+        logSummary(codec != null ? "File has been received compressed" : "File has been received", filename, answer.getLength(), startedAt);
+        return answer.getLength();
+    }
+
+    /**
+     * Write the file answering a resumable RRQ to its .part file, from the
+     * offset the server carries on from, and rename it once it is complete
+     * The part is kept if the connection breaks, so the next attempt starts
+     * from there, and deleted if the file does not match its checksum.
+     * @return bytes received, -1 if the file was not received
+     */
+    private static long receivePart(String filename, TcpFrame answer, Codec codec, DataInputStream receive, long startedAt) throws IOException {
+        File part = new File(filename + PART);
+        // the server only compresses a file it sends from the start
+        long offset = codec != null ? 0 : answer.getOffset();
+        if (offset < 0 || offset > answer.getLength()) {
+            throw new IOException("Server resumes at " + offset + " of " + answer.getLength() + " bytes");
+        }
+        boolean received = false;
+        CRC32 crc = answer.hasChecksum() ? new CRC32() : null;
+        try (RandomAccessFile output = new RandomAccessFile(part, "rw")) {
+            if (codec != null) {
+                Compression.decode(codec, receive, output, answer.getLength(), crc);
+            } else {
+                output.setLength(offset);
+                if (crc != null) {
+                    TcpFrame.checksum(output.getChannel(), offset, crc);
+                }
+                TcpFrame.readData(receive, output, offset, answer.getLength() - offset, crc);
+            }
+            received = crc == null || receive.readInt() == (int) crc.getValue();
+        } catch (FileNotFoundException e) {
+            Log.error("Filename error.");
+            if (codec != null) {
+                Compression.skip(codec, receive, answer.getLength());
+            } else {
+                receive.skipNBytes(answer.getLength() - offset);
+            }
+            receive.skipNBytes(answer.hasChecksum() ? 4 : 0);
+            return -1;
+        } catch (IOException e) {
+            // decoding sets the whole length up front, so such a part cannot be resumed
+            if (codec != null) {
+                part.delete();
+            } else {
+                Log.error("Transfer broke off, kept " + part.length() + " bytes in ", part);
+            }
+            throw e;
+        }
+        if (!received) {
+            part.delete();
+            Log.error("Checksum mismatch, file deleted.");
+            return -1;
+        }
+        Files.move(part.toPath(), new File(filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logSummary(offset > 0 ? "File has been received from " + offset : "File has been received", filename, answer.getLength(), startedAt);
+        return answer.getLength();
+    }
+
+    /**
+     * Log the one line describing a finished transfer
+     */
+    private static void logSummary(String outcome, String filename, long bytes, long startedAt) {
+        if (Log.isEnabled(Log.INFO)) {
+            Log.info(outcome + ": " + filename + ", " + bytes + " bytes in "
+                    + (System.nanoTime() - startedAt) / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * Send a file to the server and wait for it to be stored
+     * @param id - request ID, 0 for a request which is the only one on its connection
+     * @return bytes stored by the server, -1 if it failed
+     */
+    private static long writeRequest(String filename, int id, DataOutputStream send, DataInputStream receive) throws IOException {
+        File file = new File(filename);
+        long startedAt = System.nanoTime();
+        try {
+            if (resume) {
+                return resumeFile(file, id, send, receive, startedAt);
+            }
+            sendFile(file, id, send);
+            send.flush();
+        } catch (FileNotFoundException e) {
+            Log.error("Filename not found");
+            return -1;
+        }
+        return storedFile(filename, TcpFrame.readHeader(receive), startedAt);
+    }
+
+    /**
+     * Send a resumable WRQ: the header goes first, on its own, and the server
+     * answers with how much of the file it kept from an earlier attempt; only
+     * the rest is sent after that, with the checksum of the whole file
+     * The data is not compressed.
+     * @return bytes stored by the server, -1 if it failed
+     */
+    private static long resumeFile(File file, int id, DataOutputStream send, DataInputStream receive, long startedAt) throws IOException {
+        try (FileInputStream input = new FileInputStream(file)) {
+            long length = file.length();
+            int flags = TcpFrame.FLAG_CRC | (id != 0 ? TcpFrame.FLAG_ID : 0);
+            new TcpFrame(TcpFrame.OP_WRQ, flags, file.getPath(), length, id).atOffset(0).writeHeader(send);
+            send.flush();
+            Log.debug("Asking server where to resume...");
+            TcpFrame answer = TcpFrame.readHeader(receive);
+            if (answer.getOpcode() != TcpFrame.OP_ACK) {
+                return storedFile(file.getPath(), answer, startedAt);
+            }
+            long offset = answer.getOffset();
+            if (offset < 0 || offset > length) {
+                throw new IOException("Server resumes at " + offset + " of " + length + " bytes");
+            }
+            Log.debug("Server has kept bytes: ", offset);
+            CRC32 crc = new CRC32();
+            TcpFrame.checksum(input.getChannel(), offset, crc);
+            input.getChannel().position(offset);
+            TcpFrame.writeData(input, send, length - offset, crc);
+            send.writeInt((int) crc.getValue());
+            send.flush();
+        }
+        return storedFile(file.getPath(), TcpFrame.readHeader(receive), startedAt);
+    }
+
+    /**
+     * Write a WRQ frame with the file's data and checksum
+     * The data is compressed with the first known codec when asked to and the
+     * file is large enough for it to be worth it.
+     * @param id - request ID, 0 for a request which is the only one on its connection
+     */
+    private static void sendFile(File file, int id, DataOutputStream send) throws IOException {
+        // read bytes from file
+        try (FileInputStream input = new FileInputStream(file)) {
+            long length = file.length();
+            int flags = TcpFrame.FLAG_CRC | (id != 0 ? TcpFrame.FLAG_ID : 0);
+            Codec codec = compress && length >= Compression.DEFAULT_THRESHOLD ? Compression.choose(Compression.names()) : null;
+            new TcpFrame(TcpFrame.OP_WRQ, flags, file.getPath(), length, id, codec != null ? codec.getName() : null).writeHeader(send);
+            Log.debug("Sending request to server...");
+            CRC32 crc = new CRC32();
+            if (codec != null) {
+                long sent = Compression.encode(codec, input, length, send, crc);
+                Log.debug("Compressed data sent: ", sent);
+            } else {
+                TcpFrame.writeData(input, send, length, crc);
+            }
+            send.writeInt((int) crc.getValue());
+        }
+    }
+
+    /**
+     * Check the answer to a WRQ
+     * @return bytes stored by the server, -1 if it failed
+     */
+    private static long storedFile(String filename, TcpFrame answer, long startedAt) {
+        if (answer.getOpcode() != TcpFrame.OP_ACK) {
+            Log.error("Server error: ", answer.getName());
+            return -1;
+        }
+        logSummary("File has been sent", filename, answer.getLength(), startedAt);
+        return answer.getLength();
+    }
+
+    /**
+     * Send the requests of a batch over the connection one at a time, each
+     * after the answer to the one before, as resumed requests need
+     * They carry request IDs all the same, so the server keeps the connection open.
+     */
+    private static void sequence(List<String> batch, DataOutputStream send, DataInputStream receive) throws IOException {
+        long startedAt = System.nanoTime();
+        long bytes = 0;
+        int done = 0;
+        for (int id = 1; id <= batch.size(); id++) {
+            String request = batch.get(id - 1);
+            String filename = request.substring(2);
+            long received = request.startsWith(OP_RRQ)
+                    ? readRequest(filename, id, send, receive)
+                    : writeRequest(filename, id, send, receive);
+            if (received >= 0) {
+                done++;
+                bytes += received;
+            }
+        }
+        if (Log.isEnabled(Log.INFO)) {
+            Log.info("Batch of " + batch.size() + " requests, " + done + " done: " + bytes + " bytes in "
+                    + (System.nanoTime() - startedAt) / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * Send all requests of a batch over the connection and read their answers
+     * Requests and the data of WRQs are written by a thread of their own, so
+     * the server's answers are read while the later requests are still going out.
+     */
+    private static void pipeline(List<String> batch, DataOutputStream send, DataInputStream receive) throws IOException {
+        List<String> requests = new ArrayList<String>();
+        for (String request : batch) {
+            if (request.startsWith(OP_WRQ) && !new File(request.substring(2)).isFile()) {
+                Log.error("Filename not found: ", request.substring(2));
+            } else {
+                requests.add(request);
+            }
+        }
+        long startedAt = System.nanoTime();
+        // request IDs start at 1, an answer with ID n belongs to requests.get(n - 1)
+        Thread sender = new Thread(() -> {
+            try {
+                for (int id = 1; id <= requests.size(); id++) {
+                    String request = requests.get(id - 1);
+                    String filename = request.substring(2);
+                    if (request.startsWith(OP_RRQ)) {
+                        new TcpFrame(TcpFrame.OP_RRQ, TcpFrame.FLAG_CRC | TcpFrame.FLAG_ID, filename, 0, id, offered()).writeHeader(send);
+                    } else {
+                        sendFile(new File(filename), id, send);
+                    }
+                }
+                send.flush();
+                Log.debug("All requests sent: ", requests.size());
+            } catch (IOException e) {
+                Log.error("Could not send requests: ", e.getMessage());
+            }
+        }, "TftpTCPClient-sender");
+        sender.setDaemon(true);
+        sender.start();
+
+        long bytes = 0;
+        int done = 0;
+        for (int id = 1; id <= requests.size(); id++) {
+            String request = requests.get(id - 1);
+            String filename = request.substring(2);
+            TcpFrame answer = TcpFrame.readHeader(receive);
+            if (answer.getId() != id) {
+                throw new IOException("Answer for request " + answer.getId() + " where " + id + " was expected");
+            }
+            long received = request.startsWith(OP_RRQ)
+                    ? receiveFile(filename, answer, receive, startedAt)
+                    : storedFile(filename, answer, startedAt);
+            if (received >= 0) {
+                done++;
+                bytes += received;
+            }
+        }
+        if (Log.isEnabled(Log.INFO)) {
+            Log.info("Batch of " + batch.size() + " requests, " + done + " done: " + bytes + " bytes in "
+                    + (System.nanoTime() - startedAt) / 1000000 + " ms");
+        }
+    }
+}
@@ -1,126 +1,408 @@
 package TftpTCPServer;
 
+import TFTPCore.Codec;
+import TFTPCore.Compression;
+import TFTPCore.EncodedCache;
+import TFTPCore.EncodedFile;
+import TFTPCore.Log;
+import TFTPCore.TcpFrame;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
 
-public class ClientHandler extends Thread {
+/**
+ * ClientHandler - serves one TCP connection, run as a task on the server's executor
+ * Requests and answers are framed by TcpFrame. A request carrying an ID
+ * keeps the connection open, and the requests a client pipelines are
+ * answered in order; answers are only flushed once no further request is
+ * waiting, so a batch of small files shares as few segments as possible.
+ * A client which takes compressed data gets files above the threshold as
+ * chunks of Compression, from EncodedCache or compressed as they are sent.
+ * A transfer can be resumed from an offset: a RRQ gets the rest of the file,
+ * and a resumable WRQ is stored in a .part file, kept if the connection
+ * breaks, which the next attempt carries on from.
+ * @author 246644
+ * @version 2023
+ */
+public class ClientHandler implements Runnable {
+    // suffix of a file being received by a resumable WRQ
+    public final static String PART = ".part";
 
-    private static final String OP_RRQ = "01";
-    private static final String OP_WRQ = "02";
     private Socket slaveSocket;
-    private String op_code;
     private String filename;
-    private String userRequest;
     // write to socket using send and receive objects below
     private DataOutputStream send;
-    private BufferedReader receive;
-    // to write/read to/from files use FileReader and BufferedWriter
-    BufferedWriter bufferedWriter;
-    FileReader fileReader;
+    private DataInputStream receive;
+    // what happened to the file and its size, for the line logged when the request ends
+    private String summary;
+    private long bytes;
 
     public ClientHandler(Socket socket) {
-        super("ClientHandler");
         this.slaveSocket = socket;
-        bufferedWriter = null;
-        fileReader = null;
-        op_code = filename = userRequest = null;
+        filename = null;
     }
 
     @Override
     /**
-     * Overriding run() from Thread class
+     * Called when the executor runs the task
      * This method gets requests from clients and responds to them
      */
     public void run() {
+        long startedAt = System.nanoTime();
+        Metrics.connectionStarted();
+        // requests answered on this connection
+        int served = 0;
+        boolean keepAlive = true;
         try {
             slaveSocket.setSoTimeout(5000);
-            send = new DataOutputStream(slaveSocket.getOutputStream());
-            receive = new BufferedReader(new InputStreamReader(slaveSocket.getInputStream()));
-
-            // get request from client
-            userRequest = receive.readLine().trim();
-            op_code = userRequest.substring(0, 2);
-            filename = userRequest.substring(2);
-            // check if opcode is valid
-//            if (!op_code.equals(OP_RRQ) || !op_code.equals(OP_WRQ))
-//            {
-//                System.err.println("Incorrect opcode");
-//                slaveSocket.close();
-//            }
-
-            // process requests
-            char[] chars = new char[1024];
-
-            // read request
-            // get data from file and send to client
-            // check if a filename has been given
-            if (op_code.equals(OP_RRQ) && !filename.isEmpty()) {
-                System.out.println("Processing read request...");
+            send = new DataOutputStream(new BufferedOutputStream(slaveSocket.getOutputStream(), TcpFrame.CHUNK));
+            receive = new DataInputStream(new BufferedInputStream(slaveSocket.getInputStream(), TcpFrame.CHUNK));
+
+            while (keepAlive) {
+                // get request from client
+                TcpFrame request;
                 try {
-                    fileReader = new FileReader(filename);
-                    System.out.println("Sending data...");
-                    // write chars to sendPacket until end of file
-                    int read;
-                    while ((read = fileReader.read(chars)) != -1) {
-                        String charString = new String(chars);
-                        send.writeChars(charString);
+                    request = TcpFrame.readHeader(receive);
+                } catch (EOFException | SocketTimeoutException e) {
+                    // client closed, or went quiet, between requests of a session
+                    if (served == 0) {
+                        throw e;
                     }
-                    System.out.println("File has been sent.");
-                    fileReader.close();
-                } catch (FileNotFoundException e) {
-                    System.err.println("Filename not found");
+                    Log.debug("Session ended after requests: ", served);
+                    break;
+                }
+                keepAlive = request.hasId();
+                serve(request);
+                served++;
+                // answer every request already waiting before the batch is flushed
+                if (!keepAlive || receive.available() == 0) {
+                    send.flush();
                 }
             }
-            // write request
-            // get data from client and write to file
-            // check if a filename has been given
-            else if (op_code.equals(OP_WRQ) && !filename.isEmpty()) {
-                System.out.println("Processing write request...");
-                try {
-                    bufferedWriter = new BufferedWriter(new BufferedWriter(new FileWriter(filename)));
-                    System.out.println("Awaiting data from client...");
-                    int charsRead;
-                    // to ensure client has sent data, creating boolean flag to check
-                    boolean dataReceived = false;
-                    // read chars from received packet until end
-                    while ((charsRead = receive.read(chars)) != -1) {
-                        // write to file
-                        // excluding any trailing null characters
-                        String stringToWrite = new String(chars, 0, charsRead).replace("\u0000", "");
-                        bufferedWriter.write(stringToWrite);
-                        dataReceived = true;
-                    }
-                    bufferedWriter.close();
-                    // client has not sent data; delete the file
-                    if (!dataReceived) {
-                        File file = new File(filename);
-                        file.delete();
-                        System.err.println("No data received.");
-                    } else {
-                        System.out.println("File received.");
-                    }
-                } catch (SocketTimeoutException e) {
-                    System.err.println("Socket timeout");
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    System.err.println("Filename error.");
-                    e.printStackTrace();
+        }
+        catch (SocketTimeoutException e) {
+            Log.warn("Client stopped sending: ", slaveSocket.getRemoteSocketAddress());
+            Metrics.timeout();
+            Metrics.connectionFailed();
+            logRequest(startedAt);
+        }
+        catch (IOException e) {
+            Log.warn("Client terminated or sent an invalid request: ", slaveSocket.getRemoteSocketAddress());
+            Metrics.connectionFailed();
+            logRequest(startedAt);
+        }
+        finally {
+            Metrics.connectionEnded(System.nanoTime() - startedAt);
+            try {
+                slaveSocket.close();
+            } catch (IOException e) {
+                Log.warn("Could not close socket");
+            }
+        }
+    }
+
+    /**
+     * Answer one request
+     */
+    private void serve(TcpFrame request) throws IOException {
+        long startedAt = System.nanoTime();
+        filename = request.getName();
+        summary = "Failed request for";
+        bytes = 0;
+        Metrics.requestStarted();
+        // check if a filename has been given
+        if (filename.isEmpty()) {
+            Log.warn("No filename given.");
+            skipData(request, encoding(request));
+            writeError(request, "No filename given.");
+        }
+        // read request
+        // get data from file and send to client
+        else if (request.getOpcode() == TcpFrame.OP_RRQ) {
+            Log.debug("Processing read request...");
+            readRequest(request);
+        }
+        // write request
+        // get data from client and write to file
+        else if (request.getOpcode() == TcpFrame.OP_WRQ) {
+            Log.debug("Processing write request...");
+            writeRequest(request);
+        }
+        else {
+            // the rest of the stream cannot be made sense of
+            Log.warn("Incorrect opcode ", request.getOpcode());
+            writeError(request, "Incorrect opcode " + request.getOpcode());
+            throw new IOException("Incorrect opcode " + request.getOpcode());
+        }
+        logRequest(startedAt);
+        filename = null;
+    }
+
+    /**
+     * Log the one line describing a request, unless it has been logged already
+     */
+    private void logRequest(long startedAt) {
+        if (filename != null && Log.isEnabled(Log.INFO)) {
+            Log.info(summary + " " + filename + " (" + slaveSocket.getRemoteSocketAddress() + "): "
+                    + bytes + " bytes in " + (System.nanoTime() - startedAt) / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * Send the requested file in a DATA frame
+     * Files smaller than a chunk are copied into the stream with the other
+     * answers of a batch, larger ones are sent with transferTo.
+     */
+    private void readRequest(TcpFrame request) throws IOException {
+        // send the file bytes as they are, the kernel copies them
+        // straight from the file to the socket where it can (sendfile)
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            Log.trace("Sending data...");
+            long size = fileChannel.size();
+            int flags = request.hasChecksum() ? TcpFrame.FLAG_CRC : 0;
+            // client has the start of the file, an offset past its end starts over
+            long offset = request.getOffset() <= size ? request.getOffset() : 0;
+            // compress if the client takes it and the file is worth it
+            Codec codec = null;
+            EncodedFile encoded = null;
+            if (request.getEncoding() != null && offset == 0 && EncodedCache.wants(size)) {
+                codec = Compression.choose(request.getEncoding());
+                encoded = codec != null ? EncodedCache.get(new File(filename), codec) : null;
+                if (encoded != null && !encoded.isWorthwhile()) {
+                    codec = null;
+                    encoded = null;
+                }
+            }
+            if (codec != null) {
+                sendEncoded(request, fileChannel, codec, encoded);
+                return;
+            }
+            long checksum = 0;
+            TcpFrame answer = request.answer(TcpFrame.OP_DATA, flags, "", size);
+            (request.hasOffset() ? answer.atOffset(offset) : answer).writeHeader(send);
+            if (size - offset < TcpFrame.CHUNK) {
+                // the checksum covers the part the client kept as well
+                CRC32 crc = request.hasChecksum() ? new CRC32() : null;
+                if (crc != null) {
+                    TcpFrame.checksum(fileChannel, offset, crc);
+                }
+                fileChannel.position(offset);
+                TcpFrame.writeData(Channels.newInputStream(fileChannel), send, size - offset, crc);
+                checksum = crc != null ? crc.getValue() : 0;
+            } else {
+                checksum = request.hasChecksum() ? TcpFrame.checksum(fileChannel) : 0;
+                send.flush();
+                WritableByteChannel target = slaveSocket.getChannel();
+                if (target == null) {
+                    target = Channels.newChannel(send);
+                }
+                long position = offset;
+                // transferTo may send less than asked, loop until the whole file is sent
+                while (position < size) {
+                    position += fileChannel.transferTo(position, size - position, target);
+                }
+            }
+            Metrics.dataSent(size - offset);
+            if (request.hasChecksum()) {
+                send.writeInt((int) checksum);
+            }
+            Log.debug("File has been sent.");
+            summary = offset > 0 ? "Sent from " + offset + " of" : "Sent";
+            bytes = size;
+        } catch (NoSuchFileException e) {
+            Log.warn("Filename not found: ", filename);
+            writeError(request, "File not found: " + filename);
+        }
+    }
+
+    /**
+     * Send the file as compressed chunks, held by EncodedCache or compressed as they go
+     * @param encoded - encoded file from the cache, null if it is too large to be held
+     */
+    private void sendEncoded(TcpFrame request, FileChannel fileChannel, Codec codec, EncodedFile encoded) throws IOException {
+        long size = fileChannel.size();
+        int flags = request.hasChecksum() ? TcpFrame.FLAG_CRC : 0;
+        request.answer(TcpFrame.OP_DATA, flags, "", size, codec.getName()).writeHeader(send);
+        long sent;
+        long checksum;
+        if (encoded != null) {
+            ByteBuffer data = encoded.data();
+            sent = data.remaining();
+            checksum = encoded.checksum();
+            if (sent < TcpFrame.CHUNK) {
+                byte[] chunks = new byte[(int) sent];
+                data.get(chunks);
+                send.write(chunks);
+            } else {
+                send.flush();
+                WritableByteChannel target = slaveSocket.getChannel();
+                if (target == null) {
+                    target = Channels.newChannel(send);
+                }
+                while (data.hasRemaining()) {
+                    target.write(data);
                 }
             }
-            else if (filename.isEmpty()) {
-                System.err.println("No filename given.");
+        } else {
+            CRC32 crc = new CRC32();
+            sent = Compression.encode(codec, Channels.newInputStream(fileChannel), size, send, crc);
+            checksum = crc.getValue();
+        }
+        if (request.hasChecksum()) {
+            send.writeInt((int) checksum);
+        }
+        Metrics.dataSent(sent);
+        Metrics.compressed(size - sent);
+        Log.debug("File has been sent compressed: ", sent);
+        summary = "Sent " + sent + " compressed bytes of";
+        bytes = size;
+    }
+
+    /**
+     * Store the file sent in the WRQ frame and answer with ACK
+     * A file which does not arrive complete is deleted.
+     */
+    private void writeRequest(TcpFrame request) throws IOException {
+        if (request.hasOffset()) {
+            resumeWrite(request);
+            return;
+        }
+        File file = new File(filename);
+        Codec codec = encoding(request);
+        boolean received = false;
+        CRC32 crc = request.hasChecksum() ? new CRC32() : null;
+        // readers starting from now must not get a compressed form of the old contents
+        EncodedCache.invalidate(file);
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            Log.trace("Awaiting data from client...");
+            if (codec != null) {
+                Compression.decode(codec, receive, output, request.getLength(), crc);
+            } else {
+                TcpFrame.readData(receive, output, request.getLength(), crc);
             }
-            if (bufferedWriter != null) {
-                bufferedWriter.close();
+            received = true;
+            Metrics.dataReceived(request.getLength());
+        } catch (FileNotFoundException e) {
+            Log.warn("Cannot create ", filename);
+            skipData(request, codec);
+            writeError(request, "Cannot create file: " + filename);
+            return;
+        } finally {
+            if (!received) {
+                file.delete();
             }
-            if (fileReader != null) {
-                fileReader.close();
+        }
+        if (crc != null && receive.readInt() != (int) crc.getValue()) {
+            file.delete();
+            Log.warn("Checksum mismatch, file deleted: ", filename);
+            writeError(request, "Checksum mismatch.");
+            return;
+        }
+        request.answer(TcpFrame.OP_ACK, 0, "", request.getLength()).writeHeader(send);
+        Log.debug("File received.");
+        summary = "Received";
+        bytes = request.getLength();
+    }
+
+    /**
+     * Store the file of a resumable WRQ, carrying on from what an earlier
+     * attempt left in the .part file
+     * The client is told how much is there and sends the rest; the file only
+     * takes its name once all of it has arrived and the checksum of the whole
+     * file matches. If the connection breaks the .part file is kept.
+     */
+    private void resumeWrite(TcpFrame request) throws IOException {
+        if (request.getEncoding() != null) {
+            // no data follows the header, so there is nothing to skip
+            writeError(request, "Resumed data cannot be compressed.");
+            return;
+        }
+        File file = new File(filename);
+        File part = new File(filename + PART);
+        CRC32 crc = request.hasChecksum() ? new CRC32() : null;
+        long offset;
+        try (RandomAccessFile output = new RandomAccessFile(part, "rw")) {
+            // a part longer than the file announced belongs to another file, start over
+            offset = output.length() <= request.getLength() ? output.length() : 0;
+            output.setLength(offset);
+            if (crc != null) {
+                TcpFrame.checksum(output.getChannel(), offset, crc);
             }
-            slaveSocket.close();
+            request.answer(TcpFrame.OP_ACK, 0, "", request.getLength()).atOffset(offset).writeHeader(send);
+            send.flush();
+            Log.trace("Awaiting data from client from ", offset);
+            TcpFrame.readData(receive, output, offset, request.getLength() - offset, crc);
+            Metrics.dataReceived(request.getLength() - offset);
+        } catch (FileNotFoundException e) {
+            Log.warn("Cannot create ", part);
+            writeError(request, "Cannot create file: " + filename);
+            return;
+        }
+        if (crc != null && receive.readInt() != (int) crc.getValue()) {
+            part.delete();
+            Log.warn("Checksum mismatch, file deleted: ", filename);
+            writeError(request, "Checksum mismatch.");
+            return;
+        }
+        // readers starting from now must not get a compressed form of the old contents
+        EncodedCache.invalidate(file);
+        Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        request.answer(TcpFrame.OP_ACK, 0, "", request.getLength()).writeHeader(send);
+        Log.debug("File received.");
+        summary = offset > 0 ? "Received from " + offset + " of" : "Received";
+        bytes = request.getLength();
+    }
 
+    /**
+     * Codec the data of a WRQ is compressed with
+     * @return codec, or null if the data is sent as it is
+     * @throws IOException if the codec is not known, after telling the client;
+     * the end of the data cannot be found so the connection is closed
+     */
+    private Codec encoding(TcpFrame request) throws IOException {
+        if (request.getOpcode() != TcpFrame.OP_WRQ || request.getEncoding() == null) {
+            return null;
         }
-        catch (IOException e) {
-            System.err.println("Error: Client terminated or sent an invalid request");
+        Codec codec = Compression.codec(request.getEncoding());
+        if (codec == null) {
+            Log.warn("Unknown encoding ", request.getEncoding());
+            writeError(request, "Unknown encoding: " + request.getEncoding());
+            throw new IOException("Unknown encoding " + request.getEncoding());
         }
+        return codec;
+    }
+
+    /**
+     * Read past the data of a WRQ which is not being stored, so the next
+     * request of the session is found
+     * @param codec - codec the data is compressed with, null if it is not
+     */
+    private void skipData(TcpFrame request, Codec codec) throws IOException {
+        // the data of a resumable WRQ only follows the server's answer
+        if (request.getOpcode() != TcpFrame.OP_WRQ || request.hasOffset()) {
+            return;
+        }
+        if (codec != null) {
+            Compression.skip(codec, receive, request.getLength());
+        } else {
+            receive.skipNBytes(request.getLength());
+        }
+        if (request.hasChecksum()) {
+            receive.skipNBytes(4);
+        }
+    }
+
+    private void writeError(TcpFrame request, String message) throws IOException {
+        request.answer(TcpFrame.OP_ERROR, 0, message, 0).writeHeader(send);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,831 @@
+package TftpTCPServer;
+
+import TFTPCore.BlockWriter;
+import TFTPCore.ChunkDecoder;
+import TFTPCore.Codec;
+import TFTPCore.Compression;
+import TFTPCore.EncodedCache;
+import TFTPCore.EncodedFile;
+import TFTPCore.Log;
+import TFTPCore.TcpFrame;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Connection - one TCP connection served by an EventLoop
+ * The connection never waits on its socket. Each time the socket is ready it
+ * moves through the states of the transfer as far as it can and then tells
+ * the selector what it is waiting for:
+ *   HEADER - reading the request frame header
+ *   SEND   - writing a frame header, checksum or answer, then going on to next
+ *   PREFIX - adding the part of the file kept from an earlier attempt to the
+ *            checksum, a step per pass, before the answer to a resumed RRQ
+ *            or WRQ goes out
+ *   FILE   - sending the requested file with transferTo; when a checksum was
+ *            asked for it is worked out from a mapping of what has been sent
+ *   CHUNKS - sending the file compressed, all of it from EncodedCache or
+ *            a chunk at a time compressed as it goes, while the cache
+ *            compresses the whole file on another thread
+ *   DATA   - receiving the file of a WRQ and handing it to a BlockWriter
+ *   CRC    - reading the checksum that follows the data
+ *   SKIP   - reading past the data of a WRQ that is not being stored
+ *   END    - the request is answered; a request with an ID goes back to
+ *            HEADER for the next one, any other closes the connection
+ * Received data is only read from the socket while the writer has room for
+ * it, so a slow disk makes TCP slow the client down rather than the data
+ * piling up in memory. Requests and answers are the same as ClientHandler's,
+ * resumed transfers included: a resumable WRQ is answered with the offset
+ * its .part file has reached before its DATA state, and a connection which
+ * breaks off keeps the .part file.
+ * @author 246644
+ * @version 2023
+ */
+public class Connection {
+    private final static int HEADER = 0;
+    private final static int SEND = 1;
+    private final static int FILE = 2;
+    private final static int DATA = 3;
+    private final static int CRC = 4;
+    private final static int SKIP = 5;
+    private final static int END = 6;
+    private final static int CHUNKS = 7;
+    private final static int CLOSE = 8;
+    private final static int PREFIX = 9;
+    // received data is read and written in pieces of this size, a few at a time
+    public final static int WRITE_CHUNK = 32 * 1024;
+    private final static int WRITE_RING = 4;
+    // bytes of a resumed file's start added to the checksum per pass of the loop
+    private final static long CHECKSUM_STEP = 4L * 1024 * 1024;
+
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private int state;
+    // state entered once out has been written
+    private int next;
+    // frame header or checksum being read, frame being written
+    private ByteBuffer in;
+    private ByteBuffer out;
+    private TcpFrame request;
+    private String filename;
+    // file being sent, or the .part file of a resumed WRQ while its start is checksummed,
+    // its size and how much has gone
+    private FileChannel file;
+    private long size;
+    private long position;
+    // where a resumed transfer started, 0 for a whole file
+    private long offset;
+    // how much of the part before the offset has been added to the checksum
+    private long checked;
+    // checksum of the data so far, null if none was asked for
+    private CRC32 crc;
+    // part of the file being sent mapped to work out its checksum
+    private MappedByteBuffer region;
+    private long regionStart;
+    // codec of a compressed file, the encoded file if it is held by the cache,
+    // and the buffers of a file compressed as it is sent
+    private Codec codec;
+    private EncodedFile encoded;
+    private byte[] chunk;
+    private byte[] chunkOut;
+    // compressed data sent
+    private long sentEncoded;
+    // chunks of a compressed WRQ are decoded into the writer
+    private ChunkDecoder decoder;
+    // file being received and the bytes of it still to come
+    private BlockWriter writer;
+    private long remaining;
+    // .part file a resumable WRQ is stored in, null for any other request
+    private Path part;
+    // error sent once the data of a WRQ has been skipped
+    private String skipped;
+    // data is waiting for room in the writer, the socket is not being read
+    private boolean waiting;
+    private boolean closed;
+    // what happened to the file and its size, for the line logged when the request ends
+    private String summary;
+    private long bytes;
+    private final long startedAt;
+    private long requestedAt;
+    private long lastActive;
+    // requests answered on this connection
+    private int served;
+
+    public Connection(SocketChannel channel) {
+        this.channel = channel;
+        state = HEADER;
+        // the first 4 bytes give the length of the rest of the header
+        in = ByteBuffer.allocate(TcpFrame.HEADER);
+        in.limit(4);
+        filename = null;
+        startedAt = System.nanoTime();
+        lastActive = startedAt;
+        Metrics.connectionStarted();
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Move the transfer on as far as the socket and the writer allow
+     * @param buffer - buffer of the event loop to read data into, only used during the call
+     */
+    void handle(ByteBuffer buffer) throws IOException {
+        lastActive = System.nanoTime();
+        waiting = false;
+        while (!closed) {
+            switch (state) {
+                case HEADER:
+                    if (!fillHeader()) {
+                        return;
+                    }
+                    if (in.limit() == 4) {
+                        int length = TcpFrame.headerLength(in);
+                        if (length > in.capacity()) {
+                            ByteBuffer header = ByteBuffer.allocate(length);
+                            in.flip();
+                            header.put(in);
+                            in = header;
+                        }
+                        in.limit(length);
+                        break;
+                    }
+                    request = TcpFrame.readHeader(in);
+                    filename = request.getName();
+                    summary = "Failed request for";
+                    bytes = 0;
+                    requestedAt = System.nanoTime();
+                    Metrics.requestStarted();
+                    start();
+                    break;
+                case SEND:
+                    channel.write(out);
+                    if (out.hasRemaining()) {
+                        interest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    state = next;
+                    break;
+                case PREFIX:
+                    if (!checksumPrefix()) {
+                        // the socket is writable, so the loop comes straight back
+                        interest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    break;
+                case FILE:
+                    if (!sendFile()) {
+                        interest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    break;
+                case DATA:
+                    if (!receiveData(buffer)) {
+                        return;
+                    }
+                    break;
+                case CRC:
+                    if (!fill(in)) {
+                        return;
+                    }
+                    stored(in.getInt(0) == (int) crc.getValue());
+                    break;
+                case CHUNKS:
+                    sendChunk();
+                    break;
+                case SKIP:
+                    if (!skipData(buffer)) {
+                        return;
+                    }
+                    sendError(skipped);
+                    break;
+                case END:
+                    end();
+                    break;
+                default:
+                    close();
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Answer the request header
+     */
+    private void start() throws IOException {
+        codec = null;
+        decoder = null;
+        part = null;
+        offset = 0;
+        if (request.getOpcode() == TcpFrame.OP_WRQ && request.getEncoding() != null) {
+            codec = Compression.codec(request.getEncoding());
+            if (codec == null) {
+                // the end of the data cannot be found without the codec
+                Log.warn("Unknown encoding ", request.getEncoding());
+                send(request.answer(TcpFrame.OP_ERROR, 0, "Unknown encoding: " + request.getEncoding(), 0).headerBuffer(), CLOSE);
+                return;
+            }
+        }
+        // check if a filename has been given
+        if (filename.isEmpty()) {
+            Log.warn("No filename given.");
+            skip("No filename given.");
+        }
+        // read request
+        // get data from file and send to client
+        else if (request.getOpcode() == TcpFrame.OP_RRQ) {
+            Log.debug("Processing read request...");
+            try {
+                file = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                Log.warn("Filename not found: ", filename);
+                sendError("File not found: " + filename);
+                return;
+            }
+            size = file.size();
+            // client has the start of the file, an offset past its end starts over
+            offset = request.getOffset() <= size ? request.getOffset() : 0;
+            position = offset;
+            crc = request.hasChecksum() ? new CRC32() : null;
+            int flags = request.hasChecksum() ? TcpFrame.FLAG_CRC : 0;
+            // compress if the client takes it and the file is worth it
+            encoded = null;
+            if (request.getEncoding() != null && offset == 0 && EncodedCache.wants(size)) {
+                codec = Compression.choose(request.getEncoding());
+                // the loop does not wait for the cache to compress the whole file
+                encoded = codec != null ? EncodedCache.getIfReady(new File(filename), codec) : null;
+                if (encoded != null && !encoded.isWorthwhile()) {
+                    codec = null;
+                    encoded = null;
+                }
+            }
+            if (codec != null) {
+                sentEncoded = 0;
+                send(request.answer(TcpFrame.OP_DATA, flags, "", size, codec.getName()).headerBuffer(), CHUNKS);
+                return;
+            }
+            TcpFrame answer = request.answer(TcpFrame.OP_DATA, flags, "", size);
+            ByteBuffer header = (request.hasOffset() ? answer.atOffset(offset) : answer).headerBuffer();
+            if (crc != null && offset > 0) {
+                // the checksum covers the part the client kept as well
+                sendAfterPrefix(header, FILE);
+                return;
+            }
+            send(header, FILE);
+        }
+        // resumable write request, carry on from the .part file
+        else if (request.getOpcode() == TcpFrame.OP_WRQ && request.hasOffset()) {
+            Log.debug("Processing resumable write request...");
+            resumeWrite();
+        }
+        // write request
+        // get data from client and write to file
+        else if (request.getOpcode() == TcpFrame.OP_WRQ) {
+            Log.debug("Processing write request...");
+            crc = request.hasChecksum() ? new CRC32() : null;
+            // readers starting from now must not get a compressed form of the old contents
+            EncodedCache.invalidate(new File(filename));
+            try {
+                // a compressed chunk is decoded into one piece of the file
+                int piece = codec != null ? Compression.CHUNK : WRITE_CHUNK;
+                writer = new BlockWriter(Paths.get(filename), piece, WRITE_RING, BlockWriter.SYNC_NONE);
+                writer.preallocate(request.getLength());
+            } catch (IOException e) {
+                Log.warn("Cannot create ", filename);
+                if (writer != null) {
+                    writer.abort();
+                    writer = null;
+                }
+                skip("Cannot create file: " + filename);
+                return;
+            }
+            remaining = request.getLength();
+            if (codec != null && remaining > 0) {
+                decoder = new ChunkDecoder(codec, this::decoded);
+            }
+            state = DATA;
+        }
+        else {
+            // the rest of the stream cannot be made sense of
+            Log.warn("Incorrect opcode ", request.getOpcode());
+            send(request.answer(TcpFrame.OP_ERROR, 0, "Incorrect opcode " + request.getOpcode(), 0).headerBuffer(), CLOSE);
+        }
+    }
+
+    /**
+     * Send as much of the file as the socket takes
+     * @return true once the whole file is sent
+     */
+    private boolean sendFile() throws IOException {
+        while (position < size) {
+            long sent = file.transferTo(position, size - position, channel);
+            if (sent == 0) {
+                return false;
+            }
+            if (crc != null) {
+                checksum(position, position + sent);
+            }
+            position += sent;
+            Metrics.dataSent(sent);
+        }
+        sent(offset > 0 ? "Sent from " + offset + " of" : "Sent", crc != null ? crc.getValue() : 0);
+        return true;
+    }
+
+    /**
+     * The whole file has gone, follow it with the checksum if one was asked for
+     */
+    private void sent(String outcome, long checksum) {
+        Log.debug("File has been sent.");
+        summary = outcome;
+        bytes = size;
+        if (request.hasChecksum()) {
+            ByteBuffer trailer = ByteBuffer.allocate(4).putInt((int) checksum);
+            trailer.flip();
+            send(trailer, END);
+        } else {
+            state = END;
+        }
+    }
+
+    /**
+     * Send the frame once the first offset bytes of file are added to the
+     * checksum, a step per pass, then go on to the given state
+     */
+    private void sendAfterPrefix(ByteBuffer frame, int then) {
+        send(frame, then);
+        checked = 0;
+        state = PREFIX;
+    }
+
+    /**
+     * Add the next step of the part kept from before to the checksum, so
+     * other connections on the loop are served in between
+     * @return true once all of it is added and the answer in out can go
+     */
+    private boolean checksumPrefix() throws IOException {
+        long to = Math.min(checked + CHECKSUM_STEP, offset);
+        checksum(checked, to);
+        checked = to;
+        if (checked < offset) {
+            return false;
+        }
+        // the .part file of a WRQ was only opened for its checksum
+        if (next == DATA) {
+            file.close();
+            file = null;
+            region = null;
+        }
+        state = SEND;
+        return true;
+    }
+
+    /**
+     * Add part of the file to the checksum, mapping it a region at a time
+     */
+    private void checksum(long from, long to) throws IOException {
+        while (from < to) {
+            if (region == null || from >= regionStart + region.capacity()) {
+                regionStart = from;
+                region = file.map(FileChannel.MapMode.READ_ONLY, from, Math.min(TcpFrame.MAP_REGION, size - from));
+            }
+            int end = (int) Math.min(to - regionStart, region.capacity());
+            region.limit(end).position((int) (from - regionStart));
+            crc.update(region);
+            from = regionStart + end;
+        }
+    }
+
+    /**
+     * Send the next part of a compressed file: all of it when the cache holds
+     * it, or the next chunk compressed from the file
+     */
+    private void sendChunk() throws IOException {
+        if (encoded != null && position < size) {
+            ByteBuffer data = encoded.data();
+            sentEncoded = data.remaining();
+            Metrics.dataSent(sentEncoded);
+            position = size;
+            send(data, CHUNKS);
+            return;
+        }
+        if (position < size) {
+            if (chunk == null) {
+                chunk = new byte[Compression.CHUNK];
+                chunkOut = new byte[Compression.maxEncoded()];
+            }
+            int length = (int) Math.min(Compression.CHUNK, size - position);
+            ByteBuffer into = ByteBuffer.wrap(chunk, 0, length);
+            while (into.hasRemaining()) {
+                if (file.read(into, position + into.position()) < 0) {
+                    throw new EOFException("File shorter than " + size + " bytes");
+                }
+            }
+            if (crc != null) {
+                crc.update(chunk, 0, length);
+            }
+            int count = Compression.encodeChunk(codec, chunk, length, chunkOut);
+            position += length;
+            sentEncoded += count;
+            Metrics.dataSent(count);
+            send(ByteBuffer.wrap(chunkOut, 0, count), CHUNKS);
+            return;
+        }
+        Metrics.compressed(size - sentEncoded);
+        // the cache worked out the checksum of the file when it compressed it
+        long checksum = encoded != null ? encoded.checksum() : crc != null ? crc.getValue() : 0;
+        encoded = null;
+        sent("Sent " + sentEncoded + " compressed bytes of", checksum);
+    }
+
+    /**
+     * Tell the client how much of the file an earlier attempt left in the
+     * .part file and get ready to receive the rest, after it
+     */
+    private void resumeWrite() throws IOException {
+        if (codec != null) {
+            // no data follows the header, so there is nothing to skip
+            sendError("Resumed data cannot be compressed.");
+            return;
+        }
+        Path kept = Paths.get(filename + ClientHandler.PART);
+        long length = kept.toFile().length();
+        // a part longer than the file announced belongs to another file, start over
+        offset = length <= request.getLength() ? length : 0;
+        crc = request.hasChecksum() ? new CRC32() : null;
+        try {
+            // the part kept is added to the checksum before the answer goes out
+            if (crc != null && offset > 0) {
+                file = FileChannel.open(kept, StandardOpenOption.READ);
+                size = offset;
+            }
+            writer = new BlockWriter(kept, WRITE_CHUNK, WRITE_RING, BlockWriter.SYNC_NONE, offset);
+        } catch (IOException e) {
+            Log.warn("Cannot create ", kept);
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+            sendError("Cannot create file: " + filename);
+            return;
+        }
+        part = kept;
+        remaining = request.getLength() - offset;
+        ByteBuffer answer = request.answer(TcpFrame.OP_ACK, 0, "", request.getLength()).atOffset(offset).headerBuffer();
+        if (file != null) {
+            sendAfterPrefix(answer, DATA);
+            return;
+        }
+        send(answer, DATA);
+    }
+
+    /**
+     * Read the data of a WRQ while the writer has room for it
+     * @return true once all of it has arrived
+     */
+    private boolean receiveData(ByteBuffer buffer) throws IOException {
+        while (remaining > 0) {
+            if (writer.isFull()) {
+                // stop reading until the writer catches up, TCP holds the client back
+                waiting = true;
+                interest(0);
+                return false;
+            }
+            // compressed data is read no further than the chunk being decoded,
+            // which fills at most the one slot of the writer known to be free
+            int read = read(buffer, decoder != null ? decoder.needed() : (int) Math.min(WRITE_CHUNK, remaining));
+            if (read == 0) {
+                return false;
+            }
+            Metrics.dataReceived(read);
+            if (decoder != null) {
+                decoder.feed(buffer.array(), 0, read);
+                remaining = request.getLength() - decoder.getDecoded();
+                continue;
+            }
+            if (crc != null) {
+                crc.update(buffer.array(), 0, read);
+            }
+            if (!writer.offer(request.getLength() - remaining, buffer.array(), 0, read)) {
+                throw new IOException("No room in the writer for data of " + filename);
+            }
+            remaining -= read;
+        }
+        if (crc != null) {
+            in = ByteBuffer.allocate(4);
+            state = CRC;
+        } else {
+            stored(true);
+        }
+        return true;
+    }
+
+    /**
+     * Hand a decoded chunk of a compressed WRQ to the writer
+     */
+    private void decoded(long at, byte[] data, int length) throws IOException {
+        if (at + length > request.getLength()) {
+            throw new IOException("More than the " + request.getLength() + " bytes announced");
+        }
+        if (crc != null) {
+            crc.update(data, 0, length);
+        }
+        // the chunk was read into the one slot known to be free
+        if (!writer.offer(at, data, 0, length)) {
+            throw new IOException("No room in the writer for data of " + filename);
+        }
+    }
+
+    /**
+     * Read into the buffer, no more than limit bytes so the next frame stays in the socket
+     * @return bytes read, 0 if the socket has nothing more for now
+     */
+    private int read(ByteBuffer buffer, int limit) throws IOException {
+        buffer.clear().limit(Math.min(buffer.capacity(), limit));
+        int read = channel.read(buffer);
+        if (read < 0) {
+            throw new EOFException("Connection closed with " + remaining + " bytes outstanding");
+        }
+        if (read == 0) {
+            interest(SelectionKey.OP_READ);
+        }
+        return read;
+    }
+
+    /**
+     * All the data of a WRQ has arrived, keep the file and answer with ACK
+     * if it is intact and could be written
+     */
+    private void stored(boolean intact) throws IOException {
+        if (!intact) {
+            discard();
+            Log.warn("Checksum mismatch, file deleted: ", filename);
+            sendError("Checksum mismatch.");
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Log.warn("Could not write " + filename + ": ", e.getMessage());
+            writer = null;
+            new File(part != null ? part.toString() : filename).delete();
+            sendError("Could not write file: " + filename);
+            return;
+        }
+        writer = null;
+        if (part != null) {
+            // whole file arrived, it takes the place of the old one
+            EncodedCache.invalidate(new File(filename));
+            try {
+                Files.move(part, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                Log.warn("Could not rename " + part + ": ", e.getMessage());
+                sendError("Could not write file: " + filename);
+                return;
+            }
+        }
+        Log.debug("File received.");
+        summary = offset > 0 ? "Received from " + offset + " of" : "Received";
+        bytes = request.getLength();
+        send(request.answer(TcpFrame.OP_ACK, 0, "", request.getLength()).headerBuffer(), END);
+    }
+
+    /**
+     * Answer with an error once the data of the request, if any, has been read past
+     */
+    private void skip(String message) throws IOException {
+        // no data follows a resumable WRQ until it is answered
+        if (request.getOpcode() != TcpFrame.OP_WRQ || request.hasOffset()) {
+            sendError(message);
+            return;
+        }
+        remaining = request.getLength();
+        if (codec != null && remaining > 0) {
+            // the chunks are decoded to find where they end, and dropped
+            decoder = new ChunkDecoder(codec, (at, data, length) -> { });
+        } else {
+            remaining += request.hasChecksum() ? 4 : 0;
+        }
+        skipped = message;
+        state = SKIP;
+    }
+
+    /**
+     * Read and drop the data of a WRQ
+     * @return true once all of it has been read
+     */
+    private boolean skipData(ByteBuffer buffer) throws IOException {
+        while (remaining > 0) {
+            int read = read(buffer, decoder != null ? decoder.needed() : (int) Math.min(buffer.capacity(), remaining));
+            if (read == 0) {
+                return false;
+            }
+            if (decoder == null) {
+                remaining -= read;
+                continue;
+            }
+            decoder.feed(buffer.array(), 0, read);
+            remaining = request.getLength() - decoder.getDecoded();
+            // the checksum after the chunks is dropped as it is
+            if (remaining == 0 && request.hasChecksum()) {
+                decoder = null;
+                remaining = 4;
+            }
+        }
+        return true;
+    }
+
+    private void sendError(String message) throws IOException {
+        send(request.answer(TcpFrame.OP_ERROR, 0, message, 0).headerBuffer(), END);
+    }
+
+    /**
+     * The request has been answered, log it and wait for the next one if the
+     * client keeps the connection open
+     */
+    private void end() throws IOException {
+        logRequest();
+        filename = null;
+        served++;
+        if (file != null) {
+            file.close();
+            file = null;
+            region = null;
+        }
+        if (!request.hasId()) {
+            state = CLOSE;
+            return;
+        }
+        in = ByteBuffer.allocate(TcpFrame.HEADER);
+        in.limit(4);
+        state = HEADER;
+    }
+
+    private void logRequest() {
+        if (filename != null && Log.isEnabled(Log.INFO)) {
+            Log.info(summary + " " + filename + " (" + channel.socket().getRemoteSocketAddress() + "): "
+                    + bytes + " bytes in " + (System.nanoTime() - requestedAt) / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * Read the request header, a client closing the connection between
+     * requests of a session is the normal end of it
+     * @return false if the socket has nothing more for now
+     */
+    private boolean fillHeader() throws IOException {
+        try {
+            return fill(in);
+        } catch (EOFException e) {
+            if (!betweenRequests()) {
+                throw e;
+            }
+            Log.debug("Session ended after requests: ", served);
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * @return true if at least one request has been answered and nothing of the next has arrived
+     */
+    private boolean betweenRequests() {
+        return state == HEADER && served > 0 && in.position() == 0;
+    }
+
+    private void send(ByteBuffer frame, int then) {
+        out = frame;
+        next = then;
+        state = SEND;
+    }
+
+    /**
+     * Read into the buffer until it is full
+     * @return false if the socket has nothing more for now
+     */
+    private boolean fill(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                throw new EOFException("Connection closed");
+            }
+            if (read == 0) {
+                interest(SelectionKey.OP_READ);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void interest(int ops) {
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * @return true if the connection is waiting for room in the writer
+     */
+    boolean isWaiting() {
+        return waiting;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return time since the socket last moved the transfer on
+     */
+    long idleNanos(long now) {
+        return now - lastActive;
+    }
+
+    /**
+     * Client stopped sending or receiving
+     */
+    void timeout() {
+        if (betweenRequests()) {
+            Log.debug("Session ended after requests: ", served);
+            close();
+            return;
+        }
+        Log.warn("Client stopped sending: ", channel.socket().getRemoteSocketAddress());
+        Metrics.timeout();
+        Metrics.connectionFailed();
+        close();
+    }
+
+    /**
+     * Connection broke or the client sent something that is not a frame
+     */
+    void fail(IOException e) {
+        Log.warn("Client terminated or sent an invalid request: ", channel.socket().getRemoteSocketAddress());
+        Log.debug("Reason: ", e);
+        Metrics.connectionFailed();
+        close();
+    }
+
+    /**
+     * Drop a file that did not arrive complete
+     */
+    private void discard() {
+        if (writer != null) {
+            writer.abort();
+            writer = null;
+            new File(part != null ? part.toString() : filename).delete();
+        }
+    }
+
+    /**
+     * Keep what arrived of a resumable WRQ in its .part file, so the client
+     * can carry on from there
+     */
+    private void keepPart() {
+        if (writer != null && part != null) {
+            try {
+                writer.close();
+                Log.debug("Kept " + (request.getLength() - remaining) + " bytes in ", part);
+            } catch (IOException e) {
+                Log.warn("Could not keep " + part + ": ", e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        keepPart();
+        discard();
+        Metrics.connectionEnded(System.nanoTime() - startedAt);
+        logRequest();
+        try {
+            if (file != null) {
+                file.close();
+            }
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Could not close socket");
+        }
+        if (key != null) {
+            key.cancel();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package TftpTCPServer;
+
+import TFTPCore.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * EventLoop - serves many TCP connections on one thread
+ * Every connection is a non-blocking channel registered with the loop's
+ * selector and driven by its Connection state machine. Connections waiting
+ * for room in their file writer are tried again on each pass, a millisecond
+ * apart, and connections which have not moved for IDLE_TIMEOUT are closed,
+ * as the thread engine does with SO_TIMEOUT.
+ * @author 246644
+ * @version 2023
+ */
+public class EventLoop extends Thread {
+    // connection closed when nothing moves for this long = 5 seconds
+    public final static long IDLE_TIMEOUT = 5000000000L;
+    // how often connections are checked for the idle timeout = 1 second
+    private final static long IDLE_CHECK = 1000000000L;
+
+    private final Selector selector;
+    // connections handed over by the acceptor, registered by the loop itself
+    private final Queue<SocketChannel> pending;
+    // connections waiting for room in their writer
+    private List<Connection> waiting;
+    private List<Connection> retry;
+    // data is read into this buffer one connection at a time
+    private final ByteBuffer buffer;
+    private long checkedAt;
+
+    public EventLoop(int id) throws IOException {
+        super("EventLoop-" + id);
+        setDaemon(true);
+        selector = Selector.open();
+        pending = new ConcurrentLinkedQueue<SocketChannel>();
+        waiting = new ArrayList<Connection>();
+        retry = new ArrayList<Connection>();
+        buffer = ByteBuffer.allocate(Connection.WRITE_CHUNK);
+        checkedAt = System.nanoTime();
+    }
+
+    /**
+     * Hand a new connection to the loop, may be called from any thread
+     */
+    public void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                startPending();
+                // wake up for the idle check, or soon for connections waiting on their writer
+                selector.select(waiting.isEmpty() ? IDLE_CHECK / 1000000 : 1);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        handle((Connection) key.attachment());
+                    }
+                }
+                retryWaiting();
+                closeIdle();
+            }
+        } catch (ClosedSelectorException e) {
+            // server shut down
+        } catch (IOException e) {
+            Log.error("Event loop stopped: ", e);
+        }
+    }
+
+    /**
+     * Register connections handed over since the last pass
+     */
+    private void startPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            Connection connection = new Connection(channel);
+            try {
+                channel.configureBlocking(false);
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                connection.fail(e);
+            }
+        }
+    }
+
+    private void handle(Connection connection) {
+        try {
+            connection.handle(buffer);
+        } catch (IOException e) {
+            connection.fail(e);
+            return;
+        }
+        if (connection.isWaiting()) {
+            waiting.add(connection);
+        }
+    }
+
+    /**
+     * Give connections waiting for their writer another go
+     */
+    private void retryWaiting() {
+        if (waiting.isEmpty()) {
+            return;
+        }
+        List<Connection> again = waiting;
+        waiting = retry;
+        retry = again;
+        for (Connection connection : again) {
+            if (!connection.isClosed()) {
+                handle(connection);
+            }
+        }
+        again.clear();
+    }
+
+    /**
+     * Close connections which have not moved for IDLE_TIMEOUT, once a second
+     */
+    private void closeIdle() {
+        long now = System.nanoTime();
+        if (now - checkedAt < IDLE_CHECK) {
+            return;
+        }
+        checkedAt = now;
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (key.isValid() && !connection.isWaiting() && connection.idleNanos(now) > IDLE_TIMEOUT) {
+                connection.timeout();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package TftpTCPServer;
+
+import TFTPCore.Histogram;
+import TFTPCore.MetricsExport;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics - counters of all connections of the server
+ * Counters are LongAdders so handlers on many threads can record without
+ * contending or allocating. They are read through JMX (TftpTCPServer:type=Metrics)
+ * and, when a port is set, over HTTP in the Prometheus text format (MetricsEndpoint).
+ * Retransmissions and round trips are left to TCP and not counted here.
+ * @author 246644
+ * @version 2023
+ */
+public class Metrics {
+    private final static LongAdder active = new LongAdder();
+    private final static LongAdder accepted = new LongAdder();
+    private final static LongAdder failed = new LongAdder();
+    // requests answered, more than connections when clients keep them open
+    private final static LongAdder requests = new LongAdder();
+    private final static LongAdder bytesIn = new LongAdder();
+    private final static LongAdder bytesOut = new LongAdder();
+    // file data left out of what was sent by compressing it
+    private final static LongAdder bytesSaved = new LongAdder();
+    private final static LongAdder timeouts = new LongAdder();
+    // connection durations from 1ms
+    private final static Histogram duration = new Histogram(1000000L, 22);
+
+    /**
+     * Make the counters visible through JMX, called once at startup
+     */
+    public static void register() {
+        MetricsExport.register(new Bean(), "TftpTCPServer");
+    }
+
+    public static void connectionStarted() {
+        active.increment();
+        accepted.increment();
+    }
+
+    /**
+     * @param nanos - time from the handler starting to the connection closing
+     */
+    public static void connectionEnded(long nanos) {
+        active.decrement();
+        duration.record(nanos);
+    }
+
+    public static void requestStarted() {
+        requests.increment();
+    }
+
+    public static void connectionFailed() {
+        failed.increment();
+    }
+
+    public static void dataReceived(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public static void dataSent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public static void compressed(long saved) {
+        // a file the chunk headers made larger saved nothing, the counter never goes down
+        if (saved > 0) {
+            bytesSaved.add(saved);
+        }
+    }
+
+    public static void timeout() {
+        timeouts.increment();
+    }
+
+    /**
+     * @return all counters in the Prometheus text format
+     */
+    public static String prometheus() {
+        StringBuilder text = new StringBuilder(2048);
+        MetricsExport.gauge(text, "tftp_tcp_active_connections", "Connections being served", active.sum());
+        MetricsExport.counter(text, "tftp_tcp_connections_total", "Connections handled", accepted.sum());
+        MetricsExport.counter(text, "tftp_tcp_connections_failed_total", "Connections ended by an error", failed.sum());
+        MetricsExport.counter(text, "tftp_tcp_requests_total", "Requests answered", requests.sum());
+        MetricsExport.counter(text, "tftp_tcp_bytes_in_total", "File data received", bytesIn.sum());
+        MetricsExport.counter(text, "tftp_tcp_bytes_out_total", "File data sent", bytesOut.sum());
+        MetricsExport.counter(text, "tftp_tcp_bytes_saved_total", "File data not sent thanks to compression", bytesSaved.sum());
+        MetricsExport.counter(text, "tftp_tcp_timeouts_total", "Reads from clients which timed out", timeouts.sum());
+        duration.write(text, "tftp_tcp_connection_seconds", "Duration of a connection");
+        return text.toString();
+    }
+
+    /**
+     * Read only view of the counters registered with JMX
+     */
+    private static class Bean implements MetricsMXBean {
+        public long getActiveConnections() {
+            return active.sum();
+        }
+
+        public long getConnectionsAccepted() {
+            return accepted.sum();
+        }
+
+        public long getConnectionsFailed() {
+            return failed.sum();
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public long getBytesSaved() {
+            return bytesSaved.sum();
+        }
+
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        public double getTransferMeanMillis() {
+            return duration.meanMillis();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package TftpTCPServer;
+
+/**
+ * MetricsMXBean - connection counters of the server as seen through JMX
+ * @author 246644
+ * @version 2023
+ */
+public interface MetricsMXBean {
+    long getActiveConnections();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsFailed();
+
+    long getRequests();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getBytesSaved();
+
+    long getTimeouts();
+
+    double getTransferMeanMillis();
+}
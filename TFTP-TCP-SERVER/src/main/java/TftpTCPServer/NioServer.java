@@ -0,0 +1,52 @@
+package TftpTCPServer;
+
+import TFTPCore.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * NioServer - event loop engine of the server
+ * Connections are accepted on one thread and handed to a fixed number of
+ * event loops in turn, so the number of threads does not grow with the
+ * number of clients; an idle or slow client costs a socket and a Connection,
+ * not a thread.
+ * @author 246644
+ * @version 2023
+ */
+public class NioServer {
+    // connections the kernel queues before they are accepted
+    private final static int BACKLOG = 1024;
+
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+
+    public NioServer(ServerConfig config) throws IOException {
+        this.config = config;
+        loops = new EventLoop[config.getLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Start the event loops and accept connections until the process is stopped
+     */
+    public void run() throws IOException {
+        ServerSocketChannel masterSocket = ServerSocketChannel.open();
+        masterSocket.bind(new InetSocketAddress(config.getPort()), BACKLOG);
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        Log.info("Starting server with " + loops.length + " event loops...");
+        int next = 0;
+        while (true) {
+            SocketChannel slaveSocket = masterSocket.accept();
+            Log.debug("Accepted TCP connection from: ", slaveSocket.getRemoteAddress());
+            loops[next].register(slaveSocket);
+            next = (next + 1) % loops.length;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package TftpTCPServer;
+
+import TFTPCore.Compression;
+import TFTPCore.EncodedCache;
+import TFTPCore.HandlerExecutor;
+import TFTPCore.Log;
+
+/**
+ * ServerConfig - command line settings of the server
+ * Usage: java TftpTCPServer [--engine=thread|nio] [--loops=N] [--port=N]
+ *        [--executor=virtual|pool] [--threads=N] [--queue=N] [--metrics-port=N]
+ *        [--log-level=error|warn|info|debug|trace] [--log-async=true|false]
+ *        [--compress=off|N[k|m]] [--compress-cache=N[k|m|g]]
+ * The thread engine handles each connection with a ClientHandler run on an
+ * executor (HandlerExecutor); the nio engine runs all connections on a few
+ * event loops (NioServer).
+ * Connection metrics are registered with JMX, and served over HTTP on localhost
+ * when a metrics port is given (MetricsEndpoint).
+ * Messages below the log level are dropped before they are built (Log); at
+ * info each connection logs one summary line.
+ * Files from the compress size up are sent compressed to clients which offer
+ * a codec, their compressed forms kept in a cache of the given size (EncodedCache).
+ * @author 246644
+ * @version 2023
+ */
+public class ServerConfig {
+    public final static String ENGINE_THREAD = "thread";
+    public final static String ENGINE_NIO = "nio";
+    public final static int DEFAULT_PORT = 10000;
+    // pool size and number of connections waiting for a pool thread
+    public final static int DEFAULT_THREADS = 256;
+    public final static int DEFAULT_QUEUE = 1024;
+
+    private String engine;
+    private int loops;
+    private int port;
+    private String executor;
+    private int threads;
+    private int queue;
+    // local port of the metrics endpoint, 0 if it is disabled
+    private int metricsPort;
+    private int logLevel;
+    // write log messages on a background thread (LogAppender)
+    private boolean logAsync;
+    // smallest file sent compressed, -1 if never, and byte budget of the compressed forms
+    private long compressThreshold;
+    private long compressCache;
+
+    public ServerConfig() {
+        engine = ENGINE_THREAD;
+        // one event loop per core
+        loops = Runtime.getRuntime().availableProcessors();
+        port = DEFAULT_PORT;
+        // falls back to the pool before JDK 21
+        executor = HandlerExecutor.VIRTUAL;
+        threads = DEFAULT_THREADS;
+        queue = DEFAULT_QUEUE;
+        metricsPort = 0;
+        logLevel = Log.INFO;
+        logAsync = true;
+        compressThreshold = Compression.DEFAULT_THRESHOLD;
+        compressCache = EncodedCache.DEFAULT_BUDGET;
+    }
+
+    /**
+     * Read settings from the command line
+     * @param args - arguments of the form --name=value
+     * @return settings, defaults for anything not given
+     * @throws IllegalArgumentException if an argument is not recognised
+     */
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "engine":
+                    if (!value.equals(ENGINE_THREAD) && !value.equals(ENGINE_NIO)) {
+                        throw new IllegalArgumentException("Unknown engine: " + value);
+                    }
+                    config.engine = value;
+                    break;
+                case "loops":
+                    config.loops = parsePositive(name, value);
+                    break;
+                case "port":
+                    config.port = parsePositive(name, value);
+                    break;
+                case "executor":
+                    if (!value.equals(HandlerExecutor.VIRTUAL) && !value.equals(HandlerExecutor.POOL)) {
+                        throw new IllegalArgumentException("Unknown executor: " + value);
+                    }
+                    config.executor = value;
+                    break;
+                case "threads":
+                    config.threads = parsePositive(name, value);
+                    break;
+                case "queue":
+                    config.queue = parsePositive(name, value);
+                    break;
+                case "metrics-port":
+                    config.metricsPort = parsePositive(name, value);
+                    break;
+                case "log-level":
+                    config.logLevel = Log.parseLevel(value);
+                    break;
+                case "log-async":
+                    if (!value.equals("true") && !value.equals("false")) {
+                        throw new IllegalArgumentException(name + " must be true or false: " + value);
+                    }
+                    config.logAsync = Boolean.parseBoolean(value);
+                    break;
+                case "compress":
+                    config.compressThreshold = EncodedCache.parseThreshold(value);
+                    break;
+                case "compress-cache":
+                    config.compressCache = parseSize(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            }
+        }
+        return config;
+    }
+
+    private static int parsePositive(String name, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " must be a positive number: " + value);
+    }
+
+    private static long parseSize(String name, String value) {
+        long unit = 1;
+        String digits = value;
+        switch (value.isEmpty() ? ' ' : Character.toLowerCase(value.charAt(value.length() - 1))) {
+            case 'k': unit = 1024L; break;
+            case 'm': unit = 1024L * 1024; break;
+            case 'g': unit = 1024L * 1024 * 1024; break;
+            default: break;
+        }
+        if (unit != 1) {
+            digits = value.substring(0, value.length() - 1);
+        }
+        try {
+            long number = Long.parseLong(digits);
+            if (number >= 0) {
+                return number * unit;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " must be a size in bytes: " + value);
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public int getLoops() {
+        return loops;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getExecutor() {
+        return executor;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getQueue() {
+        return queue;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public int getLogLevel() {
+        return logLevel;
+    }
+
+    public boolean isLogAsync() {
+        return logAsync;
+    }
+
+    public long getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public long getCompressCache() {
+        return compressCache;
+    }
+}
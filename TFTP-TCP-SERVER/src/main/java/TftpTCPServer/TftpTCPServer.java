@@ -1,30 +1,70 @@
 package TftpTCPServer;
 
-import com.sun.security.ntlm.Server;
+import TFTPCore.EncodedCache;
+import TFTPCore.HandlerExecutor;
+import TFTPCore.Log;
+import TFTPCore.MetricsEndpoint;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * TFTP TCP Server - implements a TFTP server built on top of TCP
  * Accepts incoming read and write requests from clients
  * Sends or receives files to/from client and in the latter case, writes them to file on the server
+ * Each connection is handled on an executor, virtual threads or a bounded pool (HandlerExecutor)
+ * Run with --engine=nio to serve connections from event loops (NioServer)
+ * instead of a thread per connection.
+ * @author 246644
+ * @version 2023
  */
 public class TftpTCPServer {
 
     public static void main(String[] args) throws IOException {
 
-        int portNumber = 10000;
-        ServerSocket masterSocket = new ServerSocket(portNumber);
+        ServerConfig config = null;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java TftpTCPServer [--engine=thread|nio] [--loops=N] [--port=N] [--executor=virtual|pool] [--threads=N] [--queue=N] [--metrics-port=N]"
+                    + " [--log-level=error|warn|info|debug|trace] [--log-async=true|false] [--compress=off|N[k|m]] [--compress-cache=N[k|m|g]]");
+            System.exit(1);
+        }
+        Log.configure(config.getLogLevel(), config.isLogAsync());
+        EncodedCache.configure(config.getCompressThreshold(), config.getCompressCache());
+        Metrics.register();
+        if (config.getMetricsPort() > 0) {
+            MetricsEndpoint.start(config.getMetricsPort(), Metrics::prometheus);
+        }
+        if (config.getEngine().equals(ServerConfig.ENGINE_NIO)) {
+            new NioServer(config).run();
+            return;
+        }
+        int portNumber = config.getPort();
+        // accept through a channel so that each socket has a SocketChannel
+        // which FileChannel.transferTo can write to directly
+        ServerSocketChannel masterSocket = ServerSocketChannel.open();
+        masterSocket.bind(new InetSocketAddress(portNumber));
         Socket slaveSocket;
+        ExecutorService executor = HandlerExecutor.create(config.getExecutor(), config.getThreads(), config.getQueue(),
+                "clients", "ClientHandler");
 
-        System.out.println("Starting server...");
+        Log.info("Starting server...");
 
         while (true) {
-            slaveSocket = masterSocket.accept();
-            System.out.println("\nAccepted TCP connection from: " +
-                    slaveSocket.getInetAddress() + ", " + slaveSocket.getPort());
-            new ClientHandler(slaveSocket).start();
+            slaveSocket = masterSocket.accept().socket();
+            Log.debug("Accepted TCP connection from: ", slaveSocket.getRemoteSocketAddress());
+            try {
+                executor.execute(new ClientHandler(slaveSocket));
+            } catch (RejectedExecutionException e) {
+                // pool and queue full, client sees the connection closed
+                Log.warn("Server busy, connection rejected.");
+                slaveSocket.close();
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,301 @@
+package TFTPClient;
+
+import TFTPCore.AckPacket;
+import TFTPCore.DataPacket;
+import TFTPCore.ErrorPacket;
+import TFTPCore.Log;
+import TFTPCore.RetransmitTimer;
+import TFTPCore.TftpOptions;
+import TFTPCore.TftpPacket;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Enumeration;
+
+/**
+ * MulticastReceiver - receives a file sent to a multicast group (RFC 2090)
+ * Blocks arrive on the group from wherever the transfer has got to, so they
+ * are written at their place in the file and the ones missing are remembered.
+ * Only the master client acknowledges blocks, naming the last block it holds
+ * in order so the server sends the next one it is missing. The server makes
+ * a client master by sending it an OACK with the master flag set. A client
+ * which has the whole file before it becomes master tells the server with
+ * an ACK of the last block and leaves.
+ * The file is only created when the first block arrives, so an existing file
+ * is left as it was by a transfer that never starts, and deleted again if
+ * the transfer fails.
+ * @author 246644
+ * @version 2023
+ */
+public class MulticastReceiver {
+    // time to wait for the group while another client is master, in ms
+    private final static int IDLE_TIMEOUT = RetransmitTimer.MAX_TIMEOUT * RetransmitTimer.MAX_RETRIES;
+
+    private final DatagramSocket clientSocket;
+    private final InetAddress transferAddress;
+    private final int transferPort;
+    private final int blksize;
+    private final RetransmitTimer timer;
+    private MulticastSocket groupSocket;
+    // blocks received, bit n is block n + 1; only set by the receiving thread,
+    // and set and read by the listener's acknowledge() under this object's lock
+    private final BitSet received;
+    // highest block received, counting from 1 without wrapping
+    private long highest;
+    // short block ending the file, -1 until it has arrived
+    private long lastBlock;
+    private volatile boolean master;
+    private volatile String error;
+    // ACKs sent to the server, from this thread and the listener
+    private final byte[] ackBuffer;
+    private final DatagramPacket ackPacket;
+
+    /**
+     * @param clientSocket - socket the request was sent from
+     * @param transferAddress - address of the server's transfer ID
+     * @param transferPort - port of the server's transfer ID
+     * @param blksize - negotiated block size
+     * @param timer - retransmission timer of the transfer
+     */
+    public MulticastReceiver(DatagramSocket clientSocket, InetAddress transferAddress, int transferPort, int blksize, RetransmitTimer timer) {
+        this.clientSocket = clientSocket;
+        this.transferAddress = transferAddress;
+        this.transferPort = transferPort;
+        this.blksize = blksize;
+        this.timer = timer;
+        received = new BitSet();
+        highest = 0;
+        lastBlock = -1;
+        ackBuffer = new byte[TftpPacket.HEADER];
+        ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length, transferAddress, transferPort);
+    }
+
+    /**
+     * Receive the file from the group
+     * @param filename - file to write
+     * @param option - value of the multicast option in the OACK: address,port,master
+     * @return true if the whole file was received, false if it failed and
+     * the file was deleted
+     */
+    public boolean receive(String filename, String option) throws IOException {
+        String[] fields = option.split(",");
+        if (fields.length != 3) {
+            Log.error("Invalid multicast option: ", option);
+            return false;
+        }
+        InetAddress group = InetAddress.getByName(fields[0].trim());
+        int port = Integer.parseInt(fields[1].trim());
+        master = fields[2].trim().equals("1");
+        Log.info("Joining multicast group " + group.getHostAddress() + ":" + port + (master ? " as master" : ""));
+
+        // other clients on this machine may listen to the same group
+        groupSocket = new MulticastSocket(null);
+        groupSocket.setReuseAddress(true);
+        groupSocket.bind(new InetSocketAddress(port));
+        joinGroup(new InetSocketAddress(group, port));
+        byte[] buffer = new byte[TftpPacket.HEADER + blksize];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        DataPacket data = new DataPacket();
+        Thread listener = listenForServer();
+
+        RandomAccessFile output = null;
+        boolean done = false;
+        try {
+            if (master) {
+                acknowledge();
+            }
+            long ackSentAt = System.nanoTime();
+            boolean ackRetransmitted = false;
+            while (!complete()) {
+                packet.setData(buffer);
+                try {
+                    groupSocket.setSoTimeout(master ? timer.timeout() : IDLE_TIMEOUT);
+                    groupSocket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    if (!master || !timer.backoff()) {
+                        Log.error("Multicast transfer timed out.");
+                        return false;
+                    }
+                    // acknowledge again so the server resends its last block
+                    acknowledge();
+                    ackSentAt = System.nanoTime();
+                    ackRetransmitted = true;
+                    continue;
+                } catch (SocketException e) {
+                    // closed by the listener after an error from the server
+                    break;
+                }
+                // the server may send to the group from another of its addresses,
+                // but always from the port of its transfer ID
+                view.limit(packet.getLength()).position(0);
+                if (!data.wrap(view).isValid() || packet.getPort() != transferPort) {
+                    continue;
+                }
+                long block = unwrap(data.block());
+                if (block > 0) {
+                    if (output == null) {
+                        output = new RandomAccessFile(filename, "rw");
+                        output.setLength(0);
+                    }
+                    output.seek((block - 1) * blksize);
+                    output.write(buffer, data.dataStart(), data.dataLength());
+                    synchronized (this) {
+                        received.set((int) (block - 1));
+                    }
+                    highest = Math.max(highest, block);
+                    // packet smaller than negotiated packet size; end of data
+                    if (data.dataLength() < blksize) {
+                        lastBlock = block;
+                    }
+                }
+                if (master) {
+                    if (!ackRetransmitted) {
+                        timer.sample(System.nanoTime() - ackSentAt);
+                    }
+                    timer.reset();
+                    acknowledge();
+                    ackSentAt = System.nanoTime();
+                    ackRetransmitted = false;
+                }
+            }
+            if (error != null) {
+                Log.error(error);
+                return false;
+            }
+            // let the server drop this client from its queue
+            if (!master) {
+                acknowledge();
+            }
+            done = true;
+            return true;
+        } finally {
+            listener.interrupt();
+            groupSocket.close();
+            try {
+                listener.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (output != null) {
+                output.close();
+                if (!done) {
+                    new File(filename).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true once every block up to the last has been received
+     */
+    private boolean complete() {
+        return error == null && lastBlock > 0 && received.nextClearBit(0) >= lastBlock;
+    }
+
+    /**
+     * Work out the full block number from the two bytes in the packet
+     * The master is sent the first block it is missing. Otherwise the block
+     * is taken to be the one closest to the highest block received which is
+     * still missing. A client joining after the block number has wrapped
+     * round cannot tell which round the first blocks it sees belong to and
+     * takes them to be in the first; RFC 2090 has no way to say.
+     * @return block number counting from 1, or -1 for a block already received
+     */
+    private long unwrap(int block) {
+        long next = received.nextClearBit(0) + 1;
+        if (master && (next & 0xffff) == block) {
+            return next;
+        }
+        long first = block == 0 ? 0x10000 : block;
+        long limit = lastBlock > 0 ? lastBlock : Math.max(first, highest + 0x8000);
+        long best = -1;
+        for (long candidate = first; candidate <= limit; candidate += 0x10000) {
+            if (!received.get((int) (candidate - 1))
+                    && (best < 0 || Math.abs(candidate - highest) < Math.abs(best - highest))) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Acknowledge the last block held in order, or the last block of the file once it is complete
+     */
+    private synchronized void acknowledge() throws IOException {
+        long block = received.nextClearBit(0);
+        AckPacket.write(ackBuffer, block);
+        clientSocket.send(ackPacket);
+    }
+
+    /**
+     * Listen on the unicast socket for the server making this client master
+     * or ending the transfer with an error
+     */
+    private Thread listenForServer() {
+        Thread listener = new Thread(() -> {
+            byte[] buffer = new byte[TftpPacket.PACKET];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            ByteBuffer view = ByteBuffer.wrap(buffer);
+            ErrorPacket errorPacket = new ErrorPacket();
+            try {
+                // wake up now and then to see if the transfer is over
+                clientSocket.setSoTimeout(200);
+                while (!Thread.currentThread().isInterrupted()) {
+                    packet.setData(buffer);
+                    try {
+                        clientSocket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    if (!packet.getAddress().equals(transferAddress) || packet.getPort() != transferPort || packet.getLength() < 2) {
+                        continue;
+                    }
+                    view.limit(packet.getLength()).position(0);
+                    int opcode = TftpPacket.opcode(view);
+                    if (opcode == TftpPacket.OP_OACK) {
+                        String option = TftpOptions.parseOptionAck(buffer, packet.getLength()).get(TftpOptions.OPT_MULTICAST);
+                        if (option != null && option.endsWith(",1") && !master) {
+                            Log.info("Now master client.");
+                            master = true;
+                            acknowledge();
+                        }
+                    } else if (opcode == TftpPacket.OP_ERROR) {
+                        error = "Server error: " + errorPacket.wrap(view).message();
+                        groupSocket.close();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // socket closed or transfer over
+            }
+        }, "MulticastListener");
+        listener.setDaemon(true);
+        listener.start();
+        return listener;
+    }
+
+    /**
+     * Join the group on every interface which can receive multicast
+     */
+    private void joinGroup(InetSocketAddress group) throws IOException {
+        boolean joined = false;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            try {
+                if (networkInterface.isUp() && networkInterface.supportsMulticast()) {
+                    groupSocket.joinGroup(group, networkInterface);
+                    joined = true;
+                }
+            } catch (IOException e) {
+                // interface has no address for this group's family
+            }
+        }
+        if (!joined) {
+            groupSocket.joinGroup(group, null);
+        }
+    }
+}
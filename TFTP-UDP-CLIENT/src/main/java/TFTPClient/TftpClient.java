@@ -1,7 +1,26 @@
 package TFTPClient;
 
+import TFTPCore.AckPacket;
+import TFTPCore.BlockWriter;
+import TFTPCore.ChunkDecoder;
+import TFTPCore.Codec;
+import TFTPCore.Compression;
+import TFTPCore.DataPacket;
+import TFTPCore.ErrorPacket;
+import TFTPCore.Log;
+import TFTPCore.RetransmitTimer;
+import TFTPCore.TftpOptions;
+import TFTPCore.TftpPacket;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.net.*;
 
@@ -12,22 +31,8 @@ import java.net.*;
  * @version 2023
  */
 public class TftpClient {
-    // buffer[1] is the significant byte for the opcode, so offset = 1
-    public final int OFFSET_REQUEST = 1;
-    // op-code for Read Request
-    public final int OP_RRQ = 1;
-    // op-code for Write Request
-    public final int OP_WRQ = 2;
-    // op-code for Data Request
-    public final int OP_DATA = 3;
-    // op-code for Acknowledgement
-    public final int OP_ACK = 4;
-    // op-code for Error
-    public final int OP_ERROR = 5;
-    // Set datagram socket timeout = 5 seconds = 5,000 ms
-    public final static int TIMEOUT = 5000;
     // packet size = opcode (2 bytes) + block number (2 bytes) + data (512 bytes)
-    protected final static int PACKET = 516;
+    protected final static int PACKET = TftpPacket.PACKET;
     protected InetAddress serverAddress;
     protected String server;
     private int serverPort;
@@ -35,25 +40,112 @@ public class TftpClient {
     protected DatagramSocket clientSocket;
     protected DatagramPacket receivePacket, sendPacket;
     protected byte buffer[];
+    // views of the packet received into the buffer
+    private ByteBuffer in;
+    private final DataPacket data;
+    private final AckPacket ack;
+    private final ErrorPacket error;
+    // errors for other transfer IDs, kept apart from the transfer buffer
+    private final ByteBuffer control;
     //declare fields
     private Scanner scanner;
     private String filename;
     private int instruction;
+    // block size to request from the server, 0 to use the default without options
+    private int requestedBlksize;
+    // block size used by the current transfer
+    private int blksize;
+    // window size to request from the server, 0 to send one block per ACK without options
+    private int requestedWindowsize;
+    // window size used by the current transfer
+    private int windowsize;
+    // timeout in seconds to request from the server, 0 to measure the round trip instead
+    private int requestedTimeout;
+    // retransmission timeout of the current transfer
+    private RetransmitTimer timer;
+    // System.nanoTime() when the current transfer was requested
+    private long startedAt;
+    // server transfer ID (address and port of the thread serving the request)
+    private InetAddress transferAddress;
+    private int transferPort;
+    // ask the server to send read requests to a multicast group (RFC 2090)
+    private boolean requestMulticast;
+    // multicast option acknowledged by the server, null for a normal transfer
+    private String multicastOption;
+    // bytes written between syncs of a received file, or BlockWriter.SYNC_NONE / SYNC_AT_END
+    private long syncInterval;
+    // send the tsize option (RFC 2349) with requests
+    private boolean requestTsize;
+    // offer compression with requests, and the codec acknowledged for the current transfer
+    private boolean requestCompress;
+    private Codec codec;
+    // size of the file being moved, -1 until it is known, and bytes moved so far
+    private long transferSize;
+    private long transferred;
+    // progress reported so far, in tenths of the file
+    private int reportedTenths;
+    // local port the client sends from
+    public final static int DEFAULT_LOCAL_PORT = 2345;
 
     /**
      * Main program that runs the network client
      *
      * @param args[0] address of server
      * @param args[1] port number of server
+     * @param args[2] optional block size to negotiate (8 - 65464)
+     * @param args[3] optional window size to negotiate (1 - 65535)
+     * @param args[4] optional retransmission timeout to negotiate in seconds (1 - 255)
+     * Flags may be given anywhere: --multicast to read from a multicast group,
+     * --local-port=N to send from another port than 2345,
+     * --fsync=none|end|N[k|m|g] to force received files to disk,
+     * --tsize to exchange the size of the file before it is sent and
+     * --compress to move files compressed where the server agrees
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
+        boolean multicast = false;
+        boolean tsize = false;
+        boolean compress = false;
+        int localPort = DEFAULT_LOCAL_PORT;
+        long syncInterval = BlockWriter.SYNC_NONE;
+        List<String> positional = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.equals("--multicast")) {
+                multicast = true;
+            } else if (arg.equals("--tsize")) {
+                tsize = true;
+            } else if (arg.equals("--compress")) {
+                compress = true;
+            } else if (arg.startsWith("--log-level=")) {
+                Log.configure(Log.parseLevel(arg.substring("--log-level=".length())), false);
+            } else if (arg.startsWith("--local-port=")) {
+                localPort = Integer.parseInt(arg.substring("--local-port=".length()));
+            } else if (arg.startsWith("--fsync=")) {
+                syncInterval = BlockWriter.parseSyncInterval(arg.substring("--fsync=".length()));
+            } else {
+                positional.add(arg);
+            }
+        }
+        args = positional.toArray(new String[0]);
         // Check that both required input arguments are passed.
-        if (args.length != 2) {
-            System.err.println("Usage: java TftpClient <address> <port>");
+        if (args.length < 2 || args.length > 5) {
+            System.err.println("Usage: java TftpClient <address> <port> [blksize [windowsize [timeout]]] [--multicast] [--tsize] [--compress] [--local-port=N] [--fsync=none|end|N[k|m|g]] [--log-level=error|warn|info|debug|trace]");
             System.exit(1);
         }
-        TftpClient client = new TftpClient(args[0], args[1]);
+        TftpClient client = new TftpClient(args[0], args[1], localPort);
+        client.setMulticast(multicast);
+        client.setSyncInterval(syncInterval);
+        client.setTransferSize(tsize);
+        client.setCompress(compress);
+        if (args.length >= 3) {
+            client.setBlockSize(Integer.parseInt(args[2]));
+        }
+        if (args.length >= 4) {
+            client.setWindowSize(Integer.parseInt(args[3]));
+        }
+        if (args.length == 5) {
+            client.setTimeout(Integer.parseInt(args[4]));
+        }
         client.run();
     }
 
@@ -63,15 +155,251 @@ public class TftpClient {
      * @param port - port number of the server
      */
     public TftpClient(String address, String port) throws IOException {
-        System.out.println("Creating client...");
+        this(address, port, DEFAULT_LOCAL_PORT);
+    }
+
+    /**
+     * Create new TFTP client sending from the given local port
+     * @param address - address of the server
+     * @param port - port number of the server
+     * @param localPort - port to bind, 0 for any free port
+     */
+    public TftpClient(String address, String port, int localPort) throws IOException {
+        Log.debug("Creating client...");
         serverAddress = InetAddress.getByName(address);
         serverPort = Integer.parseInt(port);
-        clientSocket = new DatagramSocket(2345);
-        // set timeout for socket to 5 seconds
-        clientSocket.setSoTimeout(TIMEOUT);
+        clientSocket = new DatagramSocket(localPort);
         buffer = new byte[PACKET];
+        in = ByteBuffer.wrap(buffer);
+        data = new DataPacket();
+        ack = new AckPacket();
+        error = new ErrorPacket();
+        control = ByteBuffer.allocate(64);
         receivePacket = new DatagramPacket(buffer, PACKET);
         sendPacket = new DatagramPacket(buffer, PACKET, serverAddress, serverPort);
+        requestedBlksize = 0;
+        blksize = TftpOptions.DEFAULT_BLKSIZE;
+        requestedWindowsize = 0;
+        windowsize = TftpOptions.DEFAULT_WINDOWSIZE;
+        requestedTimeout = 0;
+        timer = new RetransmitTimer();
+        requestMulticast = false;
+        multicastOption = null;
+        syncInterval = BlockWriter.SYNC_NONE;
+        requestTsize = false;
+        requestCompress = false;
+        codec = null;
+        transferSize = -1;
+        transferred = 0;
+    }
+
+    /**
+     * Set block size to negotiate with the server (RFC 2348)
+     * @param blksize - block size between 8 and 65464 bytes
+     */
+    public void setBlockSize(int blksize) {
+        if (blksize < TftpOptions.MIN_BLKSIZE || blksize > TftpOptions.MAX_BLKSIZE) {
+            throw new IllegalArgumentException("Block size must be between "
+                    + TftpOptions.MIN_BLKSIZE + " and " + TftpOptions.MAX_BLKSIZE);
+        }
+        requestedBlksize = blksize;
+    }
+
+    /**
+     * Set window size to negotiate with the server (RFC 7440)
+     * @param windowsize - number of blocks sent before an ACK, 1 to 65535
+     */
+    public void setWindowSize(int windowsize) {
+        if (windowsize < TftpOptions.MIN_WINDOWSIZE || windowsize > TftpOptions.MAX_WINDOWSIZE) {
+            throw new IllegalArgumentException("Window size must be between "
+                    + TftpOptions.MIN_WINDOWSIZE + " and " + TftpOptions.MAX_WINDOWSIZE);
+        }
+        requestedWindowsize = windowsize;
+    }
+
+    /**
+     * Set retransmission timeout to negotiate with the server (RFC 2349)
+     * Without it the timeout is worked out from the measured round trip time
+     * @param seconds - timeout in seconds, 1 to 255
+     */
+    public void setTimeout(int seconds) {
+        if (seconds < TftpOptions.MIN_TIMEOUT || seconds > TftpOptions.MAX_TIMEOUT) {
+            throw new IllegalArgumentException("Timeout must be between "
+                    + TftpOptions.MIN_TIMEOUT + " and " + TftpOptions.MAX_TIMEOUT + " seconds");
+        }
+        requestedTimeout = seconds;
+    }
+
+    /**
+     * Ask the server to send read requests to a multicast group (RFC 2090)
+     * shared with other clients reading the same file
+     */
+    public void setMulticast(boolean multicast) {
+        requestMulticast = multicast;
+    }
+
+    /**
+     * Set how often a received file is forced to disk; the ACK of a block
+     * is only sent once the file is synced as far as asked for
+     * @param interval - BlockWriter.SYNC_NONE, SYNC_AT_END or a number of bytes
+     */
+    public void setSyncInterval(long interval) {
+        syncInterval = interval;
+    }
+
+    /**
+     * Exchange the size of the file with the server (RFC 2349): a read
+     * request asks for it, so the file can be checked against the free space
+     * and laid out at its full size; a write request announces it, so the
+     * server can refuse a file which would not fit before any data is sent
+     */
+    public void setTransferSize(boolean tsize) {
+        requestTsize = tsize;
+    }
+
+    /**
+     * Offer compression with requests: a read request names every known
+     * codec, and a write request of a file from Compression.DEFAULT_THRESHOLD
+     * up the codec it was compressed with; the server agrees in the OACK,
+     * and the blocks then carry the chunks of Compression
+     */
+    public void setCompress(boolean compress) {
+        requestCompress = compress;
+    }
+
+    /**
+     * @return size of the file being moved, -1 if it is not known
+     */
+    public long getTransferSize() {
+        return transferSize;
+    }
+
+    /**
+     * @return bytes received, or acknowledged by the server, so far
+     */
+    public long getTransferred() {
+        return transferred;
+    }
+
+    /**
+     * Options sent with each request
+     * @param compress - codec names to offer, null to ask for none
+     */
+    private Map<String, String> requestOptions(long tsize, String compress) {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        if (requestedBlksize > 0) {
+            options.put(TftpOptions.OPT_BLKSIZE, Integer.toString(requestedBlksize));
+        }
+        if (requestedTimeout > 0) {
+            options.put(TftpOptions.OPT_TIMEOUT, Integer.toString(requestedTimeout));
+        }
+        if (requestedWindowsize > 0) {
+            options.put(TftpOptions.OPT_WINDOWSIZE, Integer.toString(requestedWindowsize));
+        }
+        if (requestTsize) {
+            options.put(TftpOptions.OPT_TSIZE, Long.toString(tsize));
+        }
+        if (compress != null) {
+            options.put(TftpOptions.OPT_COMPRESS, compress);
+        }
+        // the option has no value of its own, the server answers with the group
+        if (requestMulticast) {
+            options.put(TftpOptions.OPT_MULTICAST, "");
+        }
+        return options;
+    }
+
+    /**
+     * Apply options acknowledged by the server in the OACK held in the buffer
+     * Buffers are resized to the negotiated block size
+     * @return true if the options are acceptable
+     */
+    private boolean acceptOptionAck() {
+        Map<String, String> options = TftpOptions.parseOptionAck(buffer, receivePacket.getLength());
+        Log.debug("OACK received: ", options);
+        int acknowledged = TftpOptions.blockSize(options, requestedBlksize);
+        int window = TftpOptions.windowSize(options, requestedWindowsize);
+        int timeout = TftpOptions.timeout(options, requestedTimeout);
+        if (acknowledged < 0 || window < 0 || timeout < 0) {
+            return false;
+        }
+        if (requestTsize && transferSize < 0) {
+            transferSize = TftpOptions.transferSize(options);
+        }
+        multicastOption = options.get(TftpOptions.OPT_MULTICAST);
+        if (multicastOption != null && !requestMulticast) {
+            return false;
+        }
+        try {
+            codec = TftpOptions.compression(options);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (codec != null && !requestCompress) {
+            return false;
+        }
+        // server refused the timeout option, measure the round trip instead
+        if (timeout == 0) {
+            timer = new RetransmitTimer();
+        }
+        useBlockSize(acknowledged);
+        windowsize = window;
+        if (windowsize > 1) {
+            // room for a full window in the socket buffer, the kernel may cap it
+            try {
+                clientSocket.setReceiveBufferSize(Math.max(clientSocket.getReceiveBufferSize(), windowsize * (4 + blksize)));
+                clientSocket.setSendBufferSize(Math.max(clientSocket.getSendBufferSize(), windowsize * (4 + blksize)));
+            } catch (SocketException e) {
+                Log.warn("Could not resize socket buffers.");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Size buffers for the block size of the transfer
+     */
+    private void useBlockSize(int size) {
+        blksize = size;
+        if (buffer.length < 4 + blksize) {
+            buffer = new byte[TftpPacket.HEADER + blksize];
+            in = ByteBuffer.wrap(buffer);
+            receivePacket.setData(buffer);
+            sendPacket.setData(buffer);
+        }
+    }
+
+    /**
+     * @return the packet just received, between position and limit of a view of the buffer
+     */
+    private ByteBuffer received() {
+        in.limit(receivePacket.getLength()).position(0);
+        return in;
+    }
+
+    /**
+     * @return opcode of the packet just received, -1 if it is too short
+     */
+    private int receivedOpcode() {
+        return TftpPacket.opcode(received());
+    }
+
+    /**
+     * Read a block of the file into the buffer after the header
+     * @param channel - channel of the file being sent
+     * @param block - block number, counting from 1 without wrapping
+     * @return number of bytes read, 0 at the end of the file
+     */
+    private int readBlock(FileChannel channel, long block) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(buffer, 4, blksize);
+        long position = (block - 1) * blksize;
+        while (data.hasRemaining()) {
+            int read = channel.read(data, position + data.position() - 4);
+            if (read == -1) {
+                break;
+            }
+        }
+        return data.position() - 4;
     }
 
     /**
@@ -79,7 +407,7 @@ public class TftpClient {
      * Simple console based system to get request and filename from client
      */
     public void run() throws IOException {
-        System.out.println("Client running...");
+        Log.debug("Client running...");
 
         // get user instructions
         scanner = new Scanner(System.in);
@@ -115,207 +443,528 @@ public class TftpClient {
     /**
      * Build tftp read request packet in buffer to send to server
      * Get packets from server until a smaller one arrives, indicating end of file
-     * Send ACK back to server upon receipt of packets
+     * Send ACK back to server at the end of each window of packets (RFC 7440),
+     * or as soon as a packet arrives out of order so the server restarts
+     * after the last one received in order
+     * When nothing arrives before the timer runs out the request or the
+     * last ACK is sent again
+     * Blocks are stored as raw bytes by a BlockWriter while the next ones arrive,
+     * or decoded a chunk at a time into it when the server sends the file compressed
+     * The local file is only created once the server answers with an OACK or
+     * the first block, so a refused request leaves an existing file as it was,
+     * and it is deleted again if the transfer fails
      *
      * @param filename
      */
     public void readRequest(String filename) throws IOException {
-        BufferedWriter bufferedWriter = null;
+        BlockWriter writer = null;
         try {
-            bufferedWriter = new BufferedWriter(new FileWriter(filename));
-
-            System.out.println("Request file: " + filename);
-            // set opcode to read request
-            buffer[0] = 0; // read request - opcode: 01
-            buffer[OFFSET_REQUEST] = OP_RRQ;
-            // length of data in buffer
-            int length = 2;
-            // convert filename string to bytes in buffer
-            byte[] filenameBytes = filename.getBytes();
-            // add bytes to buffer
-            for (int i = 0; i < filenameBytes.length; i++) {
-                buffer[i + 2] = filenameBytes[i];
-                length++;
-            }
-            // send RRW to server
+            Log.debug("Request file: ", filename);
+            // build read request - opcode: 01, filename, mode and options
+            startTransfer();
+            int length = TftpOptions.writeRequest(buffer, TftpPacket.OP_RRQ, filename,
+                    requestOptions(0, requestCompress ? Compression.names() : null));
+            byte[] request = Arrays.copyOf(buffer, length);
+            // send RRQ to server
             sendPacket.setLength(length);
             clientSocket.send(sendPacket);
+            long ackSentAt = System.nanoTime();
+            // request or last ACK has been sent again, the next block cannot be timed
+            boolean ackRetransmitted = false;
 
             //  loop reading packets received from server until small one arrives
             // write packets to file and send ACK back to server
             int block = 1;
             // creating flag to check if data has been received
             boolean dataReceived = false;
+            boolean endOfFile = false;
+            // blocks received in order since the last ACK
+            int windowCount = 0;
+            // set once the server has been told about a missing block, so that
+            // the rest of the window does not trigger an ACK each
+            boolean gapAcked = false;
+            // block number of the previous data packet
+            int previousBlock = 0;
+            // chunks of a compressed file, decoded into the writer as each one completes
+            ChunkDecoder decoder = null;
+            long deadline = ackSentAt + timer.timeout() * 1000000L;
             do {
                 // receive packet from server
-                try {
-                    clientSocket.receive(receivePacket);
-                } catch (SocketTimeoutException e) {
-                    System.err.println("Socket timed out - the server may not be reachable.");
-                    System.exit(1);
+                if (!receive(deadline)) {
+                    if (!timer.backoff()) {
+                        Log.error("Socket timed out - the server may not be reachable.");
+                        discard(writer, filename);
+                        System.exit(1);
+                    }
+                    Log.debug("Socket timed out");
+                    // no answer yet, send the request again
+                    if (transferPort < 0) {
+                        System.arraycopy(request, 0, buffer, 0, request.length);
+                        sendPacket.setData(buffer);
+                        sendPacket.setLength(request.length);
+                        sendPacket.setAddress(serverAddress);
+                        sendPacket.setPort(serverPort);
+                        clientSocket.send(sendPacket);
+                    }
+                    // acknowledge the last block (or the OACK) again so the server resends the window
+                    else {
+                        sendAck((block - 1) & 0xffff, transferAddress, transferPort);
+                    }
+                    ackRetransmitted = true;
+                    windowCount = 0;
+                    deadline = System.nanoTime() + timer.timeout() * 1000000L;
+                    continue;
+                }
+                // options acknowledged by the server, answer with ACK block 0
+                int opcode = receivedOpcode();
+                if (opcode == TftpPacket.OP_OACK && block == 1 && !dataReceived) {
+                    if (!acceptOptionAck()) {
+                        Log.error("Server acknowledged invalid options.");
+                        System.exit(1);
+                    }
+                    // server sends the file to a multicast group
+                    if (multicastOption != null) {
+                        MulticastReceiver receiver = new MulticastReceiver(clientSocket, transferAddress, transferPort, blksize, timer);
+                        if (receiver.receive(filename, multicastOption)) {
+                            logSummary("File received", filename);
+                        } else {
+                            System.exit(1);
+                        }
+                        return;
+                    }
+                    // size announced by the server, refuse a file which would not fit
+                    if (transferSize >= 0) {
+                        if (!BlockWriter.fits(new File(filename).toPath(), transferSize)) {
+                            Log.error("Not enough space for " + transferSize + " bytes of ", filename);
+                            sendError(TftpPacket.ERR_DISK_FULL, "Disk full or allocation exceeded.", transferAddress, transferPort);
+                            System.exit(1);
+                        }
+                    }
+                    writer = openWriter(filename);
+                    if (transferSize >= 0) {
+                        writer.preallocate(transferSize);
+                    }
+                    // server sends the file compressed
+                    if (codec != null) {
+                        BlockWriter target = writer;
+                        decoder = new ChunkDecoder(codec, (position, chunk, count) -> target.write(position, chunk, 0, count));
+                    }
+                    if (!ackRetransmitted) {
+                        timer.sample(System.nanoTime() - ackSentAt);
+                    }
+                    timer.reset();
+                    sendAck(0, transferAddress, transferPort);
+                    ackSentAt = System.nanoTime();
+                    ackRetransmitted = false;
+                    deadline = ackSentAt + timer.timeout() * 1000000L;
+                    continue;
                 }
                 // check if error code received
-                if (buffer[OFFSET_REQUEST] == OP_ERROR) {
-                    System.out.write(buffer, 2, receivePacket.getLength() - 2);
+                if (opcode == TftpPacket.OP_ERROR) {
+                    Log.error("Server error: " + error.wrap(received()).message());
+                    discard(writer, filename);
                     System.exit(1);
                 }
                 // data received from server
-                else if (buffer[OFFSET_REQUEST] == OP_DATA) {
-                    System.out.println("Data packet received: " + (receivePacket.getLength()-4));
-                    int dataBlock = ((buffer[2] & 0xff) << 8 | buffer[3] & 0xff);
-                    // Correct data, write to file and send ACK
+                else if (data.wrap(received()).isValid()) {
+                    Log.trace("Data packet received: ", data.dataLength());
+                    int dataBlock = data.block();
+                    // Correct data, write to file
                     // received block number in buffer is same as expected
                     if (dataBlock == block) {
-                        System.out.println("Correct block");
-                        // write data from buffer to file
-                        String bufferData = new String(buffer, 4, receivePacket.getLength() - 4);
-                        bufferedWriter.write(bufferData);
+                        Log.trace("Correct block");
+                        // first block after an ACK measures the round trip
+                        if (windowCount == 0 && !ackRetransmitted) {
+                            timer.sample(System.nanoTime() - ackSentAt);
+                        }
+                        timer.reset();
+                        // server sent the file without an OACK
+                        if (writer == null) {
+                            writer = openWriter(filename);
+                        }
+                        // write data from buffer to file, at its place in the file
+                        if (decoder != null) {
+                            decoder.feed(buffer, data.dataStart(), data.dataLength());
+                        } else {
+                            writer.write(writer.getWritten(), buffer, data.dataStart(), data.dataLength());
+                        }
+                        transferred = writer.getWritten();
+                        reportProgress();
                         dataReceived = true;
-                        // send ACK packet to server
-                        // data block number in buffer is already correct, no need to change
-                        buffer[0] = 0;
-                        buffer[OFFSET_REQUEST] = OP_ACK;
-                        sendPacket.setLength(4);
-                        sendPacket.setPort(receivePacket.getPort());
-                        sendPacket.setAddress(receivePacket.getAddress());
-                        clientSocket.send(sendPacket);
-                        block++;
+                        gapAcked = false;
+                        windowCount++;
+                        // packet smaller than negotiated packet size; end of data
+                        endOfFile = data.dataLength() < blksize;
+                        // send ACK packet to server at the end of a window or of the file
+                        if (windowCount == windowsize || endOfFile) {
+                            // the file must be on disk as far as the policy asks before the ACK
+                            if (endOfFile) {
+                                if (decoder != null && !decoder.atBoundary()) {
+                                    throw new IOException("compressed data ends inside a chunk");
+                                }
+                                writer.close();
+                            } else if (writer.syncDue()) {
+                                writer.sync();
+                            }
+                            sendAck(block, transferAddress, transferPort);
+                            windowCount = 0;
+                            ackSentAt = System.nanoTime();
+                            ackRetransmitted = false;
+                        }
+                        // the timer runs from the last packet received in order
+                        deadline = System.nanoTime() + timer.timeout() * 1000000L;
+                        // max size of two bytes reached, start at zero again
+                        block = (block + 1) & 0xffff;
                     }
-                    // incorrect data received, send error
-                    else {
-                        buffer[0] = 0;
-                        buffer[OFFSET_REQUEST] = OP_ERROR;
-                        clientSocket.send(sendPacket);
+                    // block after a missing one, acknowledge the last block received
+                    // in order so the server restarts from there; a block already held
+                    // is not acknowledged, as the server would send the window again
+                    // for every copy (Sorcerer's Apprentice Syndrome), and a lost ACK
+                    // is sent again when the timer runs out
+                    else if (((dataBlock - block) & 0xffff) < 0x8000) {
+                        // block number went backwards, the server restarted its window
+                        // and its first block went missing again
+                        if (((dataBlock - previousBlock) & 0xffff) > 0x8000) {
+                            gapAcked = false;
+                        }
+                        if (!gapAcked) {
+                            Log.trace("Unexpected block ", dataBlock);
+                            sendAck((block - 1) & 0xffff, transferAddress, transferPort);
+                            gapAcked = true;
+                            windowCount = 0;
+                            ackSentAt = System.nanoTime();
+                            ackRetransmitted = true;
+                        }
                     }
+                    previousBlock = dataBlock;
                 }
 
-            } while (receivePacket.getLength() == PACKET);
-            // close bufferWriter
-            bufferedWriter.close();
+            } while (!endOfFile);
+            // close writer
+            writer.close();
             // check if data was received
             // empty file may have been created; delete it
             if (!dataReceived) {
                 File file = new File(filename);
                 file.delete();
-                System.err.println("No data received - file was empty or may not exist on the server");
+                Log.error("No data received - file was empty or may not exist on the server");
             } else {
-                System.out.println("File received.");
+                logSummary(decoder != null ? "File received compressed" : "File received", filename);
             }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            Log.error("Could not receive " + filename + ": ", e.getMessage());
+            discard(writer, filename);
             System.exit(1);
         }
     }
 
     /**
-     * Process write request opcode
-     * Build tftp write request packet in buffer to send to server
-     * Send packets from file and wait for ACKs from the server until end of file
-     *
-     * @param filename
+     * Create the file a read request is received into, once the server has
+     * answered and the block size and codec are known
      */
-    public void writeRequest(String filename) throws IOException {
-        // build write request
-        buffer[0] = 0;
-        buffer[OFFSET_REQUEST] = OP_WRQ;
-        // length of data in buffer
-        int length = 2; // already contains header: opcode = 2
-        // convert string filename to bytes and add to buffer
-        byte[] filenameBytes = filename.getBytes();
-        for (int i = 0; i < filenameBytes.length; i++) {
-            buffer[i + 2] = filenameBytes[i];
-            length++;
-        }
-        // send write request to server
+    private BlockWriter openWriter(String filename) throws IOException {
+        // a slot holds a block, or a decoded chunk when the file comes compressed
+        int capacity = codec != null ? Math.max(blksize, Compression.CHUNK) : blksize;
+        return new BlockWriter(new File(filename).toPath(), capacity,
+                BlockWriter.ringBlocks(capacity, windowsize), syncInterval);
+    }
+
+    /**
+     * Drop a file left incomplete by a failed read request; nothing is
+     * deleted if the file was never opened
+     */
+    private void discard(BlockWriter writer, String filename) {
+        if (writer != null) {
+            writer.abort();
+            new File(filename).delete();
+        }
+    }
+
+    /**
+     * Reset per transfer state before sending a request
+     */
+    private void startTransfer() {
+        startedAt = System.nanoTime();
+        blksize = TftpOptions.DEFAULT_BLKSIZE;
+        windowsize = TftpOptions.DEFAULT_WINDOWSIZE;
+        timer = new RetransmitTimer();
+        if (requestedTimeout > 0) {
+            timer.setFixedTimeout(requestedTimeout);
+        }
+        transferAddress = null;
+        transferPort = -1;
+        multicastOption = null;
+        codec = null;
+        transferSize = -1;
+        transferred = 0;
+        reportedTenths = 0;
         sendPacket.setData(buffer);
         sendPacket.setAddress(serverAddress);
         sendPacket.setPort(serverPort);
-        sendPacket.setLength(length);
+    }
+
+    /**
+     * Log how far the transfer has got each time another tenth of the file has moved
+     */
+    private void reportProgress() {
+        if (transferSize <= 0) {
+            return;
+        }
+        int tenths = (int) (transferred * 10 / transferSize);
+        if (tenths > reportedTenths) {
+            reportedTenths = tenths;
+            if (Log.isEnabled(Log.INFO)) {
+                Log.info("Progress: " + transferred + " of " + transferSize + " bytes (" + tenths * 10 + "%)");
+            }
+        }
+    }
+
+    /**
+     * Log the one line describing a finished transfer
+     */
+    private void logSummary(String outcome, String filename) {
+        if (Log.isEnabled(Log.INFO)) {
+            Log.info(outcome + ": " + filename + ", " + new File(filename).length() + " bytes in "
+                    + (System.nanoTime() - startedAt) / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * Receive a packet from the server before the deadline
+     * The first answer to a request fixes the server's transfer ID (address
+     * and port); packets from anywhere else are answered with an error and dropped.
+     * @param deadline - System.nanoTime() value to wait until
+     * @return false if the deadline passed without a packet from the server
+     */
+    private boolean receive(long deadline) throws IOException {
+        while (true) {
+            long remaining = (deadline - System.nanoTime()) / 1000000;
+            if (remaining <= 0) {
+                return false;
+            }
+            clientSocket.setSoTimeout((int) remaining);
+            receivePacket.setData(buffer);
+            try {
+                clientSocket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            if (transferPort < 0 && serverAddress.equals(receivePacket.getAddress())) {
+                transferAddress = receivePacket.getAddress();
+                transferPort = receivePacket.getPort();
+                return true;
+            }
+            if (receivePacket.getPort() == transferPort && receivePacket.getAddress().equals(transferAddress)) {
+                return true;
+            }
+            Log.warn("Packet from unknown transfer ID ", receivePacket.getSocketAddress());
+            sendUnknownTransferError(receivePacket.getAddress(), receivePacket.getPort());
+        }
+    }
+
+    /**
+     * Answer a packet which does not belong to this transfer
+     * A separate small packet is used so the transfer buffer is left alone
+     */
+    private void sendUnknownTransferError(InetAddress address, int port) throws IOException {
+        sendError(TftpPacket.ERR_UNKNOWN_TID, "Unknown transfer ID.", address, port);
+    }
+
+    /**
+     * Send an error to the server, from the small control buffer
+     */
+    private void sendError(int code, String errorMessage, InetAddress address, int port) throws IOException {
+        ErrorPacket.write(control, code, errorMessage);
+        clientSocket.send(new DatagramPacket(control.array(), control.limit(), address, port));
+    }
+
+    /**
+     * Send ACK for the given block number to the server
+     */
+    private void sendAck(int block, InetAddress address, int port) throws IOException {
+        sendPacket.setData(buffer);
+        sendPacket.setLength(AckPacket.write(buffer, block));
+        sendPacket.setPort(port);
+        sendPacket.setAddress(address);
         clientSocket.send(sendPacket);
-        System.out.println("Sent WRQ to server: " + sendPacket.getAddress() + ", " + sendPacket.getPort());
+    }
 
-        // wait for ACK from server; when received begin sending data
-        try {
-            clientSocket.receive(receivePacket);
-        } catch (SocketTimeoutException e) {
-            System.err.println("Socket has timed out...");
+    /**
+     * Process write request opcode
+     * Build tftp write request packet in buffer to send to server
+     * Send packets from file a window at a time and wait for ACKs from the
+     * server until end of file; sending restarts after the last acknowledged block
+     * A window which is not acknowledged before the timer runs out is sent again
+     * With compression the file is compressed before the request, and the
+     * compressed copy is sent instead if the server agrees to it
+     *
+     * @param filename
+     */
+    public void writeRequest(String filename) throws IOException {
+        // build write request - opcode: 02, filename, mode and options
+        startTransfer();
+        transferSize = new File(filename).length();
+        Codec offered = null;
+        File compressed = null;
+        if (requestCompress && transferSize >= Compression.DEFAULT_THRESHOLD) {
+            offered = Compression.choose(Compression.names());
+            compressed = compress(new File(filename), offered);
+        }
+        int length = TftpOptions.writeRequest(buffer, TftpPacket.OP_WRQ, filename,
+                requestOptions(transferSize, offered != null ? offered.getName() : null));
+        byte[] request = Arrays.copyOf(buffer, length);
+        // wait for ACK (or OACK if options were accepted) from server; when received begin sending data
+        // the request is sent again each time the timer runs out
+        boolean answered = false;
+        while (!answered) {
+            System.arraycopy(request, 0, buffer, 0, request.length);
+            sendPacket.setData(buffer);
+            sendPacket.setAddress(serverAddress);
+            sendPacket.setPort(serverPort);
+            sendPacket.setLength(length);
+            clientSocket.send(sendPacket);
+            Log.debug("Sent WRQ to server: ", sendPacket.getSocketAddress());
+            long sentAt = System.nanoTime();
+            answered = receive(sentAt + timer.timeout() * 1000000L);
+            if (!answered) {
+                Log.debug("Socket has timed out...");
+                if (!timer.backoff()) {
+                    Log.error("No answer from server.");
+                    System.exit(1);
+                }
+            } else if (timer.getRetries() == 0) {
+                timer.sample(System.nanoTime() - sentAt);
+            }
+        }
+        timer.reset();
+        // buffer is resized when the OACK is accepted, keep the opcode
+        int opcode = receivedOpcode();
+        if (opcode == TftpPacket.OP_OACK && (!acceptOptionAck() || (codec != null && codec != offered))) {
+            Log.error("Server acknowledged invalid options.");
+            System.exit(1);
         }
         // ACK received, begin sending data to server
-        if (buffer[OFFSET_REQUEST] == OP_ACK) {
-            System.out.println("Received ACK from server - beginning to send data...");
-            FileInputStream inputStream = null;
+        if (opcode == TftpPacket.OP_ACK || opcode == TftpPacket.OP_OACK) {
+            Log.debug("Received ACK from server - beginning to send data...");
+            RandomAccessFile inputFile = null;
             // try to get file
             try {
-                inputStream = new FileInputStream(filename);
-
-                boolean endOfFile = false;
-                int block = 1;
-                // loop sending packets to server until a shorter packet is built
-                // this indicates the end of file and raises endOfFile flag
-                do {
-                    // set buffer opcode to data
-                    buffer[0] = 0;
-                    buffer[OFFSET_REQUEST] = OP_DATA; // opcode for data = 03
-                    // set buffer block number
-                    buffer[2] = (byte) (block >> 8);
-                    buffer[3] = (byte) block;
-                    // read data into the buffer 512 bytes at a time
-                    int read = inputStream.read(buffer, 4, buffer.length - 4);
-                    System.out.println("Bytes read: " + read);
-
-                    // if less than 512 bytes read, end of file has been reached
-                    if (read < 512) {
-                        endOfFile = true;
+                // the compressed copy goes in place of the file if the server took it
+                inputFile = new RandomAccessFile(codec != null ? compressed : new File(filename), "r");
+                FileChannel channel = inputFile.getChannel();
+                long dataSize = channel.size();
+
+                // blocks are counted from 1 without wrapping, the block number
+                // in a packet is the lower two bytes of the count
+                long base = 1; // first block not yet acknowledged
+                long lastBlock = -1; // short block ending the file, once it has been read
+                long highestSent = 0; // blocks up to this one have been sent at least once
+                // loop sending windows of packets to server until the shorter packet
+                // which indicates the end of file has been acknowledged
+                while (true) {
+                    long sent = base - 1;
+                    // window contains blocks sent before, its ACK cannot be timed
+                    boolean retransmission = base <= highestSent;
+                    for (int i = 0; i < windowsize && sent != lastBlock; i++) {
+                        long block = base + i;
+                        // read data into the buffer blksize bytes at a time
+                        int read = readBlock(channel, block);
+                        Log.trace("Bytes read: ", read);
+
+                        // if less than blksize bytes read, end of file has been reached
+                        if (read < blksize) {
+                            lastBlock = block;
+                        }
+                        // set buffer opcode to data and block number
+                        DataPacket.putHeader(buffer, block);
+                        // send packet to server
+                        sendPacket.setAddress(transferAddress);
+                        sendPacket.setPort(transferPort);
+                        sendPacket.setData(buffer);
+                        sendPacket.setLength(4 + read); // header (opcode=2 + blockNo=2) + data (bytes read)
+                        Log.trace("Sending packet ", block);
+                        clientSocket.send(sendPacket);
+                        sent = block;
                     }
-                    // send packet to server
-                    sendPacket.setAddress(receivePacket.getAddress());
-                    sendPacket.setPort(receivePacket.getPort());
-                    sendPacket.setData(buffer);
-                    sendPacket.setLength(4 + read); // header (opcode=2 + blockNo=2) + data (bytes read)
-                    System.out.println("Sending packet " + block + " to server...");
-                    clientSocket.send(sendPacket);
-                    System.out.println(sendPacket.getAddress() + ", " + sendPacket.getPort() + ": " + (sendPacket.getLength() - 4) + " bytes.");
+                    highestSent = Math.max(highestSent, sent);
+                    long sentAt = System.nanoTime();
+                    long deadline = sentAt + timer.timeout() * 1000000L;
                     // wait for ACK from server
-                    System.out.println("Waiting for ACK from server...");
-                    try {
-                        clientSocket.receive(receivePacket);
-                    } catch (SocketTimeoutException e) {
-                        System.err.println("Socket has timed out...");
-                    }
-                    // check what opcode has been sent
-                    if (buffer[OFFSET_REQUEST] == OP_ERROR) {
-                        System.err.println(new String(buffer, 2, sendPacket.getLength() - 2));
-                        System.exit(1);
-                    }
-                    // ACK received, can move on to next block
-                    else if (buffer[OFFSET_REQUEST] == OP_ACK) {
-                        System.out.println("ACK received");
-                        // get block number
-                        int ackBlock = ((buffer[2] & 0xff) << 8) | (buffer[3] & 0xff);
-                        // server has acknowledged the last block, move to next block
-                        if (ackBlock == block) {
-                            // if block == 65535, max size reached; start a 0 again
-                            if (block == 65535) {
-                                block = 0;
-                            } else {
-                                block++;
+                    Log.trace("Waiting for ACK from server...");
+                    long acked = -1;
+                    while (acked < 0) {
+                        if (!receive(deadline)) {
+                            // nothing acknowledged, window is sent again
+                            Log.debug("Socket has timed out...");
+                            break;
+                        }
+                        // check what opcode has been sent
+                        if (receivedOpcode() == TftpPacket.OP_ERROR) {
+                            Log.error("Server error: " + error.wrap(received()).message());
+                            System.exit(1);
+                        }
+                        // ACK received, can move on to next window
+                        else if (ack.wrap(received()).isValid()) {
+                            Log.trace("ACK received");
+                            // get block number and find which block of the window it acknowledges
+                            int ackBlock = ack.block();
+                            long block = (base - 1) + ((ackBlock - (base - 1)) & 0xffff);
+                            // ACKs older than the window are duplicates, ignore them
+                            if (block <= sent) {
+                                acked = block;
                             }
                         }
                     }
-                } while (!endOfFile);
+                    if (acked < 0) {
+                        if (!timer.backoff()) {
+                            Log.error("No response from server after " + RetransmitTimer.MAX_RETRIES + " retries.");
+                            System.exit(1);
+                        }
+                        continue;
+                    }
+                    // whole window acknowledged first time round, measure the round trip
+                    if (acked == sent && !retransmission && timer.getRetries() == 0) {
+                        timer.sample(System.nanoTime() - sentAt);
+                    }
+                    timer.reset();
+                    // progress through the data sent, as a part of the file itself
+                    transferred = dataSize > 0 ? (long) ((double) Math.min(acked * blksize, dataSize) / dataSize * transferSize) : 0;
+                    reportProgress();
+                    // server has acknowledged the last block, file sent
+                    if (acked == lastBlock) {
+                        break;
+                    }
+                    // continue after the last block received in order by the server
+                    base = acked + 1;
+                }
 
-                inputStream.close();
-                System.out.println("File sent to server.");
+                inputFile.close();
+                logSummary(codec != null ? "File sent to server compressed" : "File sent to server", filename);
                 System.exit(0);
             } catch (FileNotFoundException e) {
-                System.err.println("File not found");
+                Log.error("File not found");
                 System.exit(1);
             }
         }
         // No ACK received from server
         else {
-            System.err.write(buffer, 2, receivePacket.getLength() - 2);
+            Log.error("Server error: " + error.wrap(received()).message());
             System.exit(1);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Compress a file into a temporary copy, deleted when the client exits
+     * @return the copy, its blocks are the chunks of Compression
+     */
+    private File compress(File file, Codec with) throws IOException {
+        File copy = File.createTempFile("tftp", ".chunks");
+        copy.deleteOnExit();
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file));
+             OutputStream output = new BufferedOutputStream(new FileOutputStream(copy))) {
+            long written = Compression.encode(with, input, file.length(), output, null);
+            Log.debug("Compressed for sending: ", written);
+        }
+        return copy;
+    }
+}
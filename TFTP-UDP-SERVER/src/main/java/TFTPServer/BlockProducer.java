@@ -0,0 +1,140 @@
+package TFTPServer;
+
+import TFTPCore.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * BlockProducer - reads a file once for all the transfers reading it
+ * The file is read from disk in segments of many blocks which are kept for
+ * every transfer attached to the producer. Transfers of the same file started
+ * at about the same time ask for the same blocks, so each segment is read
+ * once and served to all of them; each transfer still keeps its own ACK
+ * progress. The most recently used segments are kept, a transfer which has
+ * fallen further behind than that reads its segment again.
+ * Instances are handed out and counted by BlockProducerRegistry.
+ * @author 246644
+ * @version 2023
+ */
+public class BlockProducer implements BlockSource {
+    // bytes read from disk at a time
+    private final static int SEGMENT = 256 * 1024;
+    // segments kept in memory for each file = 8MB
+    private final static int MAX_SEGMENTS = 32;
+
+    private final String key;
+    private final long size;
+    private final long lastModified;
+    private final RandomAccessFile input;
+    private final FileChannel channel;
+    // segments by index, least recently used first
+    private final LinkedHashMap<Long, ByteBuffer> segments;
+    // transfers attached, guarded by BlockProducerRegistry
+    int references;
+    // blocks served and segments read from disk, reported when the producer closes
+    private long blocksServed;
+    private long segmentsRead;
+
+    BlockProducer(String key, File file) throws IOException {
+        this.key = key;
+        input = new RandomAccessFile(file, "r");
+        channel = input.getChannel();
+        size = channel.size();
+        lastModified = file.lastModified();
+        segments = new LinkedHashMap<Long, ByteBuffer>(MAX_SEGMENTS * 2, 0.75f, true);
+        references = 0;
+        blocksServed = 0;
+        segmentsRead = 0;
+    }
+
+    /**
+     * @return true if the file on disk is still the one being read
+     */
+    boolean matches(File file) {
+        return file.length() == size && file.lastModified() == lastModified;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int read(long position, ByteBuffer dst) throws IOException {
+        int copied = 0;
+        while (dst.hasRemaining() && position < size) {
+            ByteBuffer segment = segment(position / SEGMENT);
+            int offset = (int) (position % SEGMENT);
+            int length = Math.min(dst.remaining(), segment.limit() - offset);
+            if (length <= 0) {
+                break; // file shrank since it was opened
+            }
+            dst.put(segment.slice(offset, length));
+            position += length;
+            copied += length;
+        }
+        blocksServed++;
+        return copied;
+    }
+
+    /**
+     * Get a segment, reading it from disk if no transfer has asked for it recently
+     */
+    private ByteBuffer segment(long index) throws IOException {
+        ByteBuffer segment = segments.get(index);
+        if (segment != null) {
+            return segment;
+        }
+        // reuse the buffer of the least recently used segment once all are in use
+        if (segments.size() >= MAX_SEGMENTS) {
+            Iterator<Map.Entry<Long, ByteBuffer>> eldest = segments.entrySet().iterator();
+            segment = eldest.next().getValue();
+            eldest.remove();
+            segment.clear();
+        } else {
+            segment = ByteBuffer.allocate(SEGMENT);
+        }
+        long position = index * SEGMENT;
+        while (segment.hasRemaining()) {
+            if (channel.read(segment, position + segment.position()) == -1) {
+                break;
+            }
+        }
+        segment.flip();
+        segments.put(index, segment);
+        segmentsRead++;
+        return segment;
+    }
+
+    @Override
+    public void close() {
+        BlockProducerRegistry.release(this);
+    }
+
+    /**
+     * Close the file once the last transfer has let go
+     */
+    synchronized void shutdown() {
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("Shared reads of " + key + ": " + blocksServed + " blocks served, "
+                    + segmentsRead + " segments read from disk");
+        }
+        segments.clear();
+        try {
+            input.close();
+        } catch (IOException e) {
+            Log.warn("Could not close ", key);
+        }
+    }
+}
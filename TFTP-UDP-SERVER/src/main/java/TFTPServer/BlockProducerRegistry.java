@@ -0,0 +1,61 @@
+package TFTPServer;
+
+import TFTPCore.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BlockProducerRegistry - one block producer per file for all concurrent readers
+ * A read request for a file which other transfers are already reading is
+ * attached to their producer instead of opening the file again. The
+ * producer is closed with the last transfer. A file written since it was
+ * opened gets a new producer; transfers attached to the old one carry on with it.
+ * @author 246644
+ * @version 2023
+ */
+public class BlockProducerRegistry {
+    // producers in use by canonical path
+    private final static Map<String, BlockProducer> producers = new HashMap<String, BlockProducer>();
+
+    /**
+     * Attach to the producer of a file, starting one if no transfer is reading it
+     * The caller detaches with close().
+     */
+    public static synchronized BlockProducer acquire(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        BlockProducer producer = producers.get(key);
+        if (producer == null || !producer.matches(file)) {
+            producer = new BlockProducer(key, file);
+            producers.put(key, producer);
+        }
+        producer.references++;
+        return producer;
+    }
+
+    /**
+     * Stop attaching new transfers to the current producer of a file, called before it is rewritten
+     */
+    public static synchronized void invalidate(File file) {
+        try {
+            BlockProducer producer = producers.remove(file.getCanonicalPath());
+            if (producer != null && producer.references == 0) {
+                producer.shutdown();
+            }
+        } catch (IOException e) {
+            Log.warn("Could not resolve ", file);
+        }
+    }
+
+    static synchronized void release(BlockProducer producer) {
+        producer.references--;
+        if (producer.references == 0) {
+            if (producers.get(producer.getKey()) == producer) {
+                producers.remove(producer.getKey());
+            }
+            producer.shutdown();
+        }
+    }
+}
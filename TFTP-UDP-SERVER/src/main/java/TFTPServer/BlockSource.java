@@ -0,0 +1,31 @@
+package TFTPServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * BlockSource - contents of a file served by a read request
+ * Blocks are read at absolute positions, so one source can be shared by
+ * every transfer of the same file.
+ * @author 246644
+ * @version 2023
+ */
+public interface BlockSource {
+    /**
+     * @return length of the file in bytes
+     */
+    long size();
+
+    /**
+     * Copy bytes starting at position into the buffer, up to its limit
+     * @param position - offset in the file
+     * @param dst - filled from its position, which is moved past the bytes copied
+     * @return number of bytes copied, less than asked for only at the end of the file
+     */
+    int read(long position, ByteBuffer dst) throws IOException;
+
+    /**
+     * Transfer no longer needs the source
+     */
+    void close();
+}
@@ -0,0 +1,78 @@
+package TFTPServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * CachedFile - whole file held in memory by FileCache
+ * The contents are loaded once and never change; a file changed on disk
+ * is loaded again into a new instance, so transfers can keep reading an
+ * evicted or replaced copy until they finish.
+ * @author 246644
+ * @version 2023
+ */
+public class CachedFile implements BlockSource {
+    private final String key;
+    private final long lastModified;
+    private final ByteBuffer data;
+
+    /**
+     * Read a whole file into memory
+     * @param offHeap - hold the contents in a direct buffer outside the Java heap
+     */
+    CachedFile(String key, File file, boolean offHeap) throws IOException {
+        this.key = key;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            FileChannel channel = input.getChannel();
+            lastModified = file.lastModified();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to cache: " + key);
+            }
+            data = offHeap ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+            while (data.hasRemaining()) {
+                if (channel.read(data, data.position()) == -1) {
+                    // file shrank while being read, keep what is there
+                    break;
+                }
+            }
+            data.flip();
+        }
+    }
+
+    /**
+     * @return true if the file on disk is still the one that was loaded
+     */
+    boolean matches(File file) {
+        return file.length() == data.limit() && file.lastModified() == lastModified;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    @Override
+    public long size() {
+        return data.limit();
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) {
+        if (position >= data.limit()) {
+            return 0;
+        }
+        int length = (int) Math.min(dst.remaining(), data.limit() - position);
+        // absolute get, the shared buffer's position is never moved
+        data.get((int) position, dst.array(), dst.arrayOffset() + dst.position(), length);
+        dst.position(dst.position() + length);
+        return length;
+    }
+
+    @Override
+    public void close() {
+        // memory is released when the cache and all transfers have dropped the file
+    }
+}
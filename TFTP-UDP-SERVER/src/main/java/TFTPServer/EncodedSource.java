@@ -0,0 +1,42 @@
+package TFTPServer;
+
+import TFTPCore.EncodedFile;
+
+import java.nio.ByteBuffer;
+
+/**
+ * EncodedSource - compressed form of a file served by a read request
+ * The blocks carry the chunks of an EncodedFile held by EncodedCache, so
+ * size() is the length of the chunks rather than of the file itself.
+ * @author 246644
+ * @version 2023
+ */
+public class EncodedSource implements BlockSource {
+    // view of the chunks of this source, only read with absolute gets
+    private final ByteBuffer data;
+
+    EncodedSource(EncodedFile file) {
+        data = file.data();
+    }
+
+    @Override
+    public long size() {
+        return data.limit();
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) {
+        if (position >= data.limit()) {
+            return 0;
+        }
+        int length = (int) Math.min(dst.remaining(), data.limit() - position);
+        data.get((int) position, dst.array(), dst.arrayOffset() + dst.position(), length);
+        dst.position(dst.position() + length);
+        return length;
+    }
+
+    @Override
+    public void close() {
+        // the chunks are released when the cache and all transfers have dropped them
+    }
+}
@@ -0,0 +1,281 @@
+package TFTPServer;
+
+import TFTPCore.Log;
+import TFTPCore.TftpPacket;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * EventLoop - runs many transfers on one thread
+ * Every transfer gets its own non-blocking channel, connected to the client so
+ * the kernel drops packets from any other transfer ID. One selector waits for
+ * all of them, and retransmission timers are kept in a queue ordered by deadline
+ * so the loop only wakes up for packets or for the earliest timeout.
+ * A session waiting for its file is not read, and its timeout is held back,
+ * until it can take packets again; the loop checks it every millisecond.
+ * @author 246644
+ * @version 2023
+ */
+public class EventLoop extends Thread {
+    private final Selector selector;
+    // sessions handed over by the intake thread, registered by the loop itself
+    private final Queue<TransferSession> pending;
+    // sessions of the whole server by client address, shared with NioServer
+    private final Map<SocketAddress, TransferSession> sessions;
+    private final PriorityQueue<Timeout> timeouts;
+    // sessions waiting for their file, and the list swapped in while they are retried
+    private List<SelectionKey> waiting;
+    private List<SelectionKey> retry;
+    // packets are read into this buffer one at a time
+    private final ByteBuffer in;
+
+    /**
+     * Timer entry, stale once the session has been scheduled for another time
+     */
+    private static class Timeout implements Comparable<Timeout> {
+        final long at;
+        final SelectionKey key;
+
+        Timeout(long at, SelectionKey key) {
+            this.at = at;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Timeout other) {
+            return Long.compare(at, other.at);
+        }
+    }
+
+    public EventLoop(int id, Map<SocketAddress, TransferSession> sessions) throws IOException {
+        super("EventLoop-" + id);
+        setDaemon(true);
+        this.sessions = sessions;
+        selector = Selector.open();
+        pending = new ConcurrentLinkedQueue<TransferSession>();
+        timeouts = new PriorityQueue<Timeout>();
+        waiting = new ArrayList<SelectionKey>();
+        retry = new ArrayList<SelectionKey>();
+        in = ByteBuffer.allocate(TftpPacket.MAX_PACKET);
+    }
+
+    /**
+     * Hand a new session to the loop, may be called from any thread
+     */
+    public void register(TransferSession session) {
+        pending.add(session);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                startPending();
+                long now = System.nanoTime();
+                long wait = 0; // 0 = block until a packet arrives
+                Timeout next = timeouts.peek();
+                if (next != null) {
+                    // round up so the loop does not wake up just before the deadline
+                    wait = Math.max(1, (next.at - now + 999999) / 1000000);
+                }
+                // wake up soon for sessions waiting on their file
+                if (!waiting.isEmpty()) {
+                    wait = 1;
+                }
+                selector.select(wait);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        readPackets(key);
+                    }
+                }
+                retryWaiting();
+                runTimeouts();
+            }
+        } catch (ClosedSelectorException e) {
+            // server shut down
+        } catch (IOException e) {
+            Log.error("Event loop stopped: ", e);
+        }
+    }
+
+    /**
+     * Open channels for sessions handed over since the last pass and start them
+     */
+    private void startPending() {
+        TransferSession session;
+        while ((session = pending.poll()) != null) {
+            DatagramChannel channel = null;
+            try {
+                // each transfer answers from its own port (its transfer ID)
+                channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.bind(null);
+                channel.connect(session.getClient());
+                // room for a full window in the socket buffer, the kernel may cap it
+                int windowBytes = session.windowBytes();
+                if (windowBytes > channel.getOption(StandardSocketOptions.SO_RCVBUF)) {
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, windowBytes);
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, windowBytes);
+                }
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, session);
+                final DatagramChannel out = channel;
+                // a full send buffer drops the packet, it is sent again on timeout
+                session.attach(packet -> out.write(packet), false);
+                session.start();
+                // not read until the session has its file
+                if (session.isWaiting()) {
+                    key.interestOps(0);
+                    waiting.add(key);
+                }
+                after(key, session);
+            } catch (IOException e) {
+                Log.error("Could not start transfer for " + session.getClient() + ": " + e);
+                close(channel, session);
+            }
+        }
+    }
+
+    /**
+     * Pass every packet waiting on the channel to its session
+     */
+    private void readPackets(SelectionKey key) {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        TransferSession session = (TransferSession) key.attachment();
+        try {
+            while (!session.isDone()) {
+                // leave the packets in the socket until the session can take them
+                if (session.isWaiting()) {
+                    key.interestOps(0);
+                    waiting.add(key);
+                    break;
+                }
+                in.clear();
+                int length;
+                try {
+                    length = channel.read(in);
+                } catch (PortUnreachableException e) {
+                    // ICMP from an earlier packet, the client may still be there
+                    continue;
+                }
+                if (length <= 0) {
+                    break;
+                }
+                in.flip();
+                session.onPacket(in);
+            }
+            after(key, session);
+        } catch (IOException e) {
+            Log.error("I/O error: ", e);
+            close(channel, session);
+        }
+    }
+
+    /**
+     * Read the channels of waiting sessions again once they can take packets
+     */
+    private void retryWaiting() {
+        if (waiting.isEmpty()) {
+            return;
+        }
+        List<SelectionKey> again = waiting;
+        waiting = retry;
+        retry = again;
+        for (SelectionKey key : again) {
+            if (!key.isValid()) {
+                continue;
+            }
+            if (((TransferSession) key.attachment()).isWaiting()) {
+                waiting.add(key);
+                continue;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            try {
+                ((TransferSession) key.attachment()).resume();
+            } catch (IOException e) {
+                Log.error("I/O error: ", e);
+                close((DatagramChannel) key.channel(), (TransferSession) key.attachment());
+                continue;
+            }
+            readPackets(key);
+        }
+        again.clear();
+    }
+
+    /**
+     * Call onTimeout() for sessions whose deadline has passed
+     * Entries are not removed when a session's deadline moves; a later deadline
+     * is picked up when the old entry comes round, an earlier one is added.
+     */
+    private void runTimeouts() {
+        long now = System.nanoTime();
+        Timeout next;
+        while ((next = timeouts.peek()) != null && next.at - now <= 0) {
+            timeouts.poll();
+            SelectionKey key = next.key;
+            TransferSession session = (TransferSession) key.attachment();
+            if (!key.isValid() || session.isDone() || next.at != session.scheduledAt) {
+                continue;
+            }
+            session.scheduledAt = Long.MAX_VALUE;
+            // queued again by readPackets() once the session stops waiting
+            if (session.isWaiting()) {
+                continue;
+            }
+            try {
+                if (session.deadline() - now <= 0) {
+                    session.onTimeout();
+                }
+                after(key, session);
+            } catch (IOException e) {
+                Log.error("I/O error: ", e);
+                close((DatagramChannel) key.channel(), session);
+            }
+        }
+    }
+
+    /**
+     * Close the session if it is finished, otherwise make sure its deadline is queued
+     */
+    private void after(SelectionKey key, TransferSession session) {
+        if (session.isDone()) {
+            close((DatagramChannel) key.channel(), session);
+            return;
+        }
+        long deadline = session.deadline();
+        if (deadline != Long.MAX_VALUE && deadline < session.scheduledAt) {
+            session.scheduledAt = deadline;
+            timeouts.add(new Timeout(deadline, key));
+        }
+    }
+
+    private void close(DatagramChannel channel, TransferSession session) {
+        session.close();
+        sessions.remove(session.getClient(), session);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("Could not close channel: ", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package TFTPServer;
+
+import TFTPCore.EncodedCache;
+import TFTPCore.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * FileCache - keeps frequently requested files in memory
+ * Files are kept by canonical path and checked against their size and
+ * modification time on every request. The least recently used files are
+ * evicted once the total size exceeds the byte budget. Files which do not
+ * fit in the budget, or any file when the cache is disabled, are read once
+ * for all the transfers reading them at the same time (BlockProducerRegistry),
+ * or served from a shared mapping instead (MappedFileRegistry).
+ * A thread which must not block, such as an event loop, opens files with
+ * openAsync(), which reads a file missing from the cache on another thread.
+ * @author 246644
+ * @version 2023
+ */
+public class FileCache {
+    // cached files by canonical path, least recently used first
+    private final static LinkedHashMap<String, CachedFile> files = new LinkedHashMap<String, CachedFile>(16, 0.75f, true);
+    // total size of the files held and the limit for it, 0 disables the cache
+    private static long used = 0;
+    private static long budget = 0;
+    private static boolean offHeap = false;
+    // serve files outside the cache from a mapping instead of a block producer
+    private static boolean mapped = false;
+    // threads reading files into the cache for openAsync()
+    private static ExecutorService loaders = null;
+
+    /**
+     * Set the size of the cache, called once at startup
+     * @param bytes - byte budget, 0 to disable the cache
+     * @param direct - hold files outside the Java heap
+     * @param map - map files too large for the cache rather than share reads of them
+     */
+    public static synchronized void configure(long bytes, boolean direct, boolean map) {
+        budget = bytes;
+        offHeap = direct;
+        mapped = map;
+        files.clear();
+        used = 0;
+        if (budget > 0) {
+            Log.info("File cache: " + budget + " bytes" + (offHeap ? " off-heap" : ""));
+        }
+    }
+
+    /**
+     * Open a file for a read request
+     * @return source of the file's blocks, closed by the caller
+     */
+    public static BlockSource open(File file) throws IOException {
+        long length = file.length();
+        if (length > budget || length > Integer.MAX_VALUE) {
+            return mapped ? MappedFileRegistry.acquire(file) : BlockProducerRegistry.acquire(file);
+        }
+        String key = file.getCanonicalPath();
+        synchronized (FileCache.class) {
+            CachedFile cached = files.get(key);
+            if (cached != null && cached.matches(file)) {
+                return cached;
+            }
+        }
+        // load outside the lock so other requests are not held up by the disk
+        CachedFile cached = new CachedFile(key, file, offHeap);
+        synchronized (FileCache.class) {
+            put(cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Open a file without waiting for the disk, for threads which must not block
+     * @return completed at once if the file is held or outside the cache,
+     * otherwise once another thread has read it in; exceptionally if it
+     * cannot be read. The source is closed by the caller.
+     */
+    public static CompletableFuture<BlockSource> openAsync(File file) {
+        long length = file.length();
+        try {
+            if (length > budget || length > Integer.MAX_VALUE) {
+                return CompletableFuture.completedFuture(open(file));
+            }
+            String key = file.getCanonicalPath();
+            synchronized (FileCache.class) {
+                CachedFile cached = files.get(key);
+                if (cached != null && cached.matches(file)) {
+                    return CompletableFuture.completedFuture(cached);
+                }
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<BlockSource> done = new CompletableFuture<BlockSource>();
+        loader().execute(() -> {
+            try {
+                done.complete(open(file));
+            } catch (IOException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Drop a file from the cache, and its compressed forms, called before it is rewritten
+     */
+    public static void invalidate(File file) {
+        EncodedCache.invalidate(file);
+        MappedFileRegistry.invalidate(file);
+        BlockProducerRegistry.invalidate(file);
+        try {
+            String key = file.getCanonicalPath();
+            synchronized (FileCache.class) {
+                CachedFile cached = files.remove(key);
+                if (cached != null) {
+                    used -= cached.size();
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Could not resolve ", file);
+        }
+    }
+
+    private static void put(CachedFile cached) {
+        CachedFile old = files.put(cached.getKey(), cached);
+        if (old != null) {
+            used -= old.size();
+        }
+        used += cached.size();
+        // evict least recently used files until the budget is met
+        Iterator<Map.Entry<String, CachedFile>> eldest = files.entrySet().iterator();
+        while (used > budget && eldest.hasNext()) {
+            CachedFile evicted = eldest.next().getValue();
+            eldest.remove();
+            used -= evicted.size();
+        }
+    }
+
+    private static synchronized ExecutorService loader() {
+        if (loaders == null) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            loaders = Executors.newFixedThreadPool(threads, task -> {
+                Thread thread = new Thread(task, "FileCache");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return loaders;
+    }
+}
@@ -0,0 +1,85 @@
+package TFTPServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MappedFile - file mapped into memory once and shared by its readers
+ * Packets are filled by copying from the mapping, so serving a block takes
+ * no system call. Instances are handed out and counted by MappedFileRegistry.
+ * @author 246644
+ * @version 2023
+ */
+public class MappedFile implements BlockSource {
+    // a single mapping is limited to 2GB, larger files are mapped in regions
+    private final static int REGION = 1 << 30;
+
+    private final String key;
+    private final long size;
+    private final long lastModified;
+    private final MappedByteBuffer[] regions;
+    // transfers using the mapping, guarded by MappedFileRegistry
+    int references;
+
+    MappedFile(String key, File file) throws IOException {
+        this.key = key;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            FileChannel channel = input.getChannel();
+            size = channel.size();
+            lastModified = file.lastModified();
+            regions = new MappedByteBuffer[(int) ((size + REGION - 1) / REGION)];
+            for (int i = 0; i < regions.length; i++) {
+                long position = (long) i * REGION;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION, size - position));
+            }
+        }
+        // the mapping stays valid after the channel is closed
+        references = 0;
+    }
+
+    /**
+     * @return true if the file on disk is still the one that was mapped
+     */
+    boolean matches(File file) {
+        return file.length() == size && file.lastModified() == lastModified;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        int copied = 0;
+        try {
+            while (dst.hasRemaining() && position < size) {
+                MappedByteBuffer region = regions[(int) (position / REGION)];
+                int offset = (int) (position % REGION);
+                int length = Math.min(dst.remaining(), region.capacity() - offset);
+                // absolute get, the shared buffer's position is never moved
+                region.get(offset, dst.array(), dst.arrayOffset() + dst.position(), length);
+                dst.position(dst.position() + length);
+                position += length;
+                copied += length;
+            }
+        } catch (InternalError e) {
+            // file was truncated under the mapping
+            throw new IOException("File changed while being read: " + key, e);
+        }
+        return copied;
+    }
+
+    @Override
+    public void close() {
+        MappedFileRegistry.release(this);
+    }
+}
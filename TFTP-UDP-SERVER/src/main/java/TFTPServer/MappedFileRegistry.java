@@ -0,0 +1,54 @@
+package TFTPServer;
+
+import TFTPCore.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MappedFileRegistry - one mapping per file for all concurrent readers
+ * A mapping is shared while any transfer holds it and dropped with the last
+ * one. A file written since it was mapped gets a new mapping; transfers
+ * already reading the old one carry on with it.
+ * @author 246644
+ * @version 2023
+ */
+public class MappedFileRegistry {
+    // mappings in use by canonical path
+    private final static Map<String, MappedFile> files = new HashMap<String, MappedFile>();
+
+    /**
+     * Map a file, or share the mapping other transfers already hold
+     * The caller releases it with close().
+     */
+    public static synchronized MappedFile acquire(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        MappedFile mapped = files.get(key);
+        if (mapped == null || !mapped.matches(file)) {
+            mapped = new MappedFile(key, file);
+            files.put(key, mapped);
+        }
+        mapped.references++;
+        return mapped;
+    }
+
+    /**
+     * Stop handing out the current mapping of a file, called before it is rewritten
+     */
+    public static synchronized void invalidate(File file) {
+        try {
+            files.remove(file.getCanonicalPath());
+        } catch (IOException e) {
+            Log.warn("Could not resolve ", file);
+        }
+    }
+
+    static synchronized void release(MappedFile mapped) {
+        mapped.references--;
+        if (mapped.references == 0 && files.get(mapped.getKey()) == mapped) {
+            files.remove(mapped.getKey());
+        }
+    }
+}
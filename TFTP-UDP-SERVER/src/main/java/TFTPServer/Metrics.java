@@ -0,0 +1,171 @@
+package TFTPServer;
+
+import TFTPCore.Histogram;
+import TFTPCore.MetricsExport;
+import TFTPCore.TimerListener;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics - counters of all transfers of the server
+ * Counters are LongAdders so transfers on many threads can record every
+ * block without contending or allocating. They are read through JMX
+ * (TFTPServer:type=Metrics) and, when a port is set, over HTTP in the
+ * Prometheus text format (MetricsEndpoint).
+ * Bytes are file data only, not headers, ACKs or retransmissions.
+ * @author 246644
+ * @version 2023
+ */
+public class Metrics {
+    private final static LongAdder active = new LongAdder();
+    private final static LongAdder started = new LongAdder();
+    private final static LongAdder failed = new LongAdder();
+    private final static LongAdder bytesIn = new LongAdder();
+    private final static LongAdder bytesOut = new LongAdder();
+    // file data left out of what was sent by compressing it
+    private final static LongAdder bytesSaved = new LongAdder();
+    private final static LongAdder blocksSent = new LongAdder();
+    private final static LongAdder retransmits = new LongAdder();
+    private final static LongAdder timeouts = new LongAdder();
+    // round trip times from 50us, transfer durations from 1ms
+    private final static Histogram rtt = new Histogram(50000L, 18);
+    private final static Histogram duration = new Histogram(1000000L, 22);
+    // given to the retransmission timer of every transfer
+    public final static TimerListener TIMER = new TimerListener() {
+        public void roundTrip(long nanos) {
+            Metrics.roundTrip(nanos);
+        }
+
+        public void timeout() {
+            Metrics.timeout();
+        }
+    };
+
+    /**
+     * Make the counters visible through JMX, called once at startup
+     */
+    public static void register() {
+        MetricsExport.register(new Bean(), "TFTPServer");
+    }
+
+    public static void sessionStarted() {
+        active.increment();
+        started.increment();
+    }
+
+    /**
+     * @param nanos - time from the start of the transfer to its end
+     */
+    public static void sessionEnded(long nanos) {
+        active.decrement();
+        duration.record(nanos);
+    }
+
+    public static void sessionFailed() {
+        failed.increment();
+    }
+
+    public static void dataReceived(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * @param bytes - data bytes in the block
+     * @param retransmission - block was sent before
+     */
+    public static void blockSent(int bytes, boolean retransmission) {
+        blocksSent.increment();
+        if (retransmission) {
+            retransmits.increment();
+        } else {
+            bytesOut.add(bytes);
+        }
+    }
+
+    public static void compressed(long saved) {
+        // a file the chunk headers made larger saved nothing, the counter never goes down
+        if (saved > 0) {
+            bytesSaved.add(saved);
+        }
+    }
+
+    public static void timeout() {
+        timeouts.increment();
+    }
+
+    public static void roundTrip(long nanos) {
+        rtt.record(nanos);
+    }
+
+    /**
+     * @return all counters in the Prometheus text format
+     */
+    public static String prometheus() {
+        StringBuilder text = new StringBuilder(4096);
+        MetricsExport.gauge(text, "tftp_active_sessions", "Transfers in progress", active.sum());
+        MetricsExport.counter(text, "tftp_sessions_total", "Transfers started", started.sum());
+        MetricsExport.counter(text, "tftp_sessions_failed_total", "Transfers abandoned after the retry limit", failed.sum());
+        MetricsExport.counter(text, "tftp_bytes_in_total", "File data received", bytesIn.sum());
+        MetricsExport.counter(text, "tftp_bytes_out_total", "File data sent, not counting retransmissions", bytesOut.sum());
+        MetricsExport.counter(text, "tftp_bytes_saved_total", "File data not sent thanks to compression", bytesSaved.sum());
+        MetricsExport.counter(text, "tftp_blocks_sent_total", "DATA packets sent", blocksSent.sum());
+        MetricsExport.counter(text, "tftp_retransmits_total", "DATA packets sent again", retransmits.sum());
+        MetricsExport.counter(text, "tftp_timeouts_total", "Retransmission timeouts", timeouts.sum());
+        rtt.write(text, "tftp_rtt_seconds", "Round trip time of a window or ACK");
+        duration.write(text, "tftp_transfer_seconds", "Duration of a transfer");
+        return text.toString();
+    }
+
+    /**
+     * Read only view of the counters registered with JMX
+     */
+    private static class Bean implements MetricsMXBean {
+        public long getActiveSessions() {
+            return active.sum();
+        }
+
+        public long getSessionsStarted() {
+            return started.sum();
+        }
+
+        public long getSessionsFailed() {
+            return failed.sum();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public long getBytesSaved() {
+            return bytesSaved.sum();
+        }
+
+        public long getBlocksSent() {
+            return blocksSent.sum();
+        }
+
+        public long getRetransmits() {
+            return retransmits.sum();
+        }
+
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        public long getRttSamples() {
+            return rtt.count();
+        }
+
+        public double getRttMeanMillis() {
+            return rtt.meanMillis();
+        }
+
+        public double getTransferMeanMillis() {
+            return duration.meanMillis();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package TFTPServer;
+
+/**
+ * MetricsMXBean - transfer counters of the server as seen through JMX
+ * @author 246644
+ * @version 2023
+ */
+public interface MetricsMXBean {
+    long getActiveSessions();
+
+    long getSessionsStarted();
+
+    long getSessionsFailed();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getBytesSaved();
+
+    long getBlocksSent();
+
+    long getRetransmits();
+
+    long getTimeouts();
+
+    long getRttSamples();
+
+    double getRttMeanMillis();
+
+    double getTransferMeanMillis();
+}
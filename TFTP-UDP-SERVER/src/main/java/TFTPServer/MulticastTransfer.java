@@ -0,0 +1,284 @@
+package TFTPServer;
+
+import TFTPCore.AckPacket;
+import TFTPCore.DataPacket;
+import TFTPCore.ErrorPacket;
+import TFTPCore.Log;
+import TFTPCore.OptionAckPacket;
+import TFTPCore.RetransmitTimer;
+import TFTPCore.TftpPacket;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * MulticastTransfer - sends one file to a multicast group (RFC 2090)
+ * Clients reading the same file with the multicast option join the same
+ * transfer. Each is told the group in an OACK; the first is the master client
+ * which acknowledges blocks, the others listen quietly. DATA is sent once to
+ * the group and the transfer advances in lock step with the master's ACKs.
+ * When the master has the whole file the next client waiting becomes master;
+ * its first ACK names the last block it holds in order, so blocks it missed
+ * by joining late are sent again. Other clients which finish early tell the
+ * server with an ACK of the last block and are dropped from the queue.
+ * The transfer ends when no clients are left.
+ * @author 246644
+ * @version 2023
+ */
+public class MulticastTransfer extends Thread {
+    private final String key;
+    private final int blksize;
+    // include the blksize and tsize options in OACKs when the first client asked for them
+    private final boolean blksizeRequested;
+    private final boolean tsizeRequested;
+    private final InetSocketAddress group;
+    private final MulticastSocket socket;
+    private final BlockSource source;
+    private final long lastBlock;
+    private final RetransmitTimer timer;
+    private final byte[] out;
+    private final byte[] in;
+    private final DatagramPacket receivePacket;
+    private final DatagramPacket dataPacket;
+    // view of packets from clients
+    private final ByteBuffer inView;
+    private final AckPacket ack;
+    // OACKs and errors sent to single clients
+    private final ByteBuffer control;
+    // clients in the order they become master, the master is the first
+    private final Deque<InetSocketAddress> members;
+    private InetSocketAddress master;
+    private boolean finished;
+
+    /**
+     * @param source - the file, opened by the caller; closed when the transfer ends
+     */
+    MulticastTransfer(String key, TFTPRequest request, BlockSource source, InetSocketAddress group, int ttl, NetworkInterface networkInterface) throws IOException {
+        super("MulticastTransfer-" + group.getPort());
+        this.key = key;
+        this.group = group;
+        blksizeRequested = request.blockSize() > 0;
+        blksize = blksizeRequested ? request.blockSize() : TFTPRequest.DEFAULT_BLKSIZE;
+        tsizeRequested = request.transferSize() >= 0;
+        this.source = source;
+        // a file which is a multiple of blksize ends with an empty block
+        lastBlock = source.size() / blksize + 1;
+        // the transfer ID of the server, ACKs from clients arrive here
+        socket = new MulticastSocket();
+        socket.setTimeToLive(ttl);
+        if (networkInterface != null) {
+            socket.setNetworkInterface(networkInterface);
+        }
+        timer = new RetransmitTimer(Metrics.TIMER);
+        out = new byte[TftpPacket.HEADER + blksize];
+        in = new byte[TftpPacket.PACKET];
+        receivePacket = new DatagramPacket(in, in.length);
+        dataPacket = new DatagramPacket(out, out.length, group);
+        inView = ByteBuffer.wrap(in);
+        ack = new AckPacket();
+        control = ByteBuffer.allocate(TftpPacket.PACKET);
+        members = new ArrayDeque<InetSocketAddress>();
+        master = null;
+        finished = false;
+    }
+
+    /**
+     * Add a client to the transfer and tell it about the group
+     * @return false if the transfer has already finished
+     */
+    synchronized boolean join(InetSocketAddress client) throws IOException {
+        if (finished) {
+            return false;
+        }
+        if (!members.contains(client)) {
+            members.add(client);
+            Log.info("Client " + client + " joined multicast transfer " + group);
+        }
+        if (master == null) {
+            master = client;
+        }
+        sendOptionAck(client, client.equals(master));
+        return true;
+    }
+
+    @Override
+    public void run() {
+        // last block sent to the group, 0 before the first
+        long sentBlock = 0;
+        // highest block ever sent, no client can acknowledge beyond it
+        long highestSent = 0;
+        // new master has been sent an OACK and not answered yet
+        boolean promoted = true;
+        boolean retransmitted = false;
+        long sentAt = System.nanoTime();
+        long deadline = timer.deadline();
+        try {
+            while (true) {
+                if (!receive(deadline)) {
+                    if (!timer.backoff()) {
+                        Log.warn("No response from master client " + master + ", dropping it.");
+                        if (!promote(master)) {
+                            break;
+                        }
+                        promoted = true;
+                    }
+                    // OACK or last block sent again
+                    else if (promoted) {
+                        sendOptionAck(master, true);
+                    } else {
+                        sendData(sentBlock, true);
+                    }
+                    retransmitted = true;
+                    deadline = timer.deadline();
+                    continue;
+                }
+                InetSocketAddress from = (InetSocketAddress) receivePacket.getSocketAddress();
+                boolean fromMaster;
+                synchronized (this) {
+                    if (!members.contains(from)) {
+                        sendError(TftpPacket.ERR_UNKNOWN_TID, "Unknown transfer ID.", from);
+                        continue;
+                    }
+                    fromMaster = from.equals(master);
+                }
+                inView.limit(receivePacket.getLength()).position(0);
+                int opcode = receivePacket.getLength() < TftpPacket.HEADER ? -1 : TftpPacket.opcode(inView);
+                // client gave up, or an ACK from a client which already has the whole file
+                if (opcode == TftpPacket.OP_ERROR || (opcode == TftpPacket.OP_ACK && !fromMaster)) {
+                    if (!promote(from)) {
+                        break;
+                    }
+                    if (fromMaster) {
+                        promoted = true;
+                        retransmitted = false;
+                        sentAt = System.nanoTime();
+                        deadline = timer.deadline();
+                    }
+                    continue;
+                }
+                if (!ack.wrap(inView).isValid()) {
+                    continue;
+                }
+                int ackBlock = ack.block();
+                // the ACK counts forward from the last block sent (from 0 for a new
+                // master), anything beyond what was sent is a stale duplicate
+                long base = promoted ? 0 : sentBlock;
+                long acked = base + ((ackBlock - base) & 0xffff);
+                if (acked > highestSent) {
+                    continue;
+                }
+                if (!retransmitted) {
+                    timer.sample(System.nanoTime() - sentAt);
+                }
+                timer.reset();
+                promoted = false;
+                if (acked >= lastBlock) {
+                    Log.debug("Master client has the whole file: ", master);
+                    if (!promote(master)) {
+                        break;
+                    }
+                    promoted = true;
+                } else {
+                    sentBlock = acked + 1;
+                    sendData(sentBlock, sentBlock <= highestSent);
+                    highestSent = Math.max(highestSent, sentBlock);
+                }
+                sentAt = System.nanoTime();
+                retransmitted = false;
+                deadline = timer.deadline();
+            }
+        } catch (IOException e) {
+            Log.error("I/O error in multicast transfer " + group + ": " + e);
+            synchronized (this) {
+                finished = true;
+            }
+        } finally {
+            MulticastTransfers.finished(key, this);
+            socket.close();
+            source.close();
+        }
+        Log.info("Multicast transfer finished: ", group);
+    }
+
+    /**
+     * Drop a client and make the next one master if it was the master
+     * @return false if no clients are left and the transfer is finished
+     */
+    private synchronized boolean promote(InetSocketAddress client) throws IOException {
+        members.remove(client);
+        if (!client.equals(master)) {
+            return true;
+        }
+        timer.reset();
+        master = members.peek();
+        if (master == null) {
+            finished = true;
+            return false;
+        }
+        Log.debug("New master client: ", master);
+        sendOptionAck(master, true);
+        return true;
+    }
+
+    /**
+     * Send a block to the group
+     * @param block - block number, counting from 1 without wrapping
+     * @param retransmission - block was sent to the group before
+     */
+    private void sendData(long block, boolean retransmission) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(out, TftpPacket.HEADER, blksize);
+        int read = source.read((block - 1) * blksize, data);
+        DataPacket.putHeader(out, block);
+        dataPacket.setData(out, 0, TftpPacket.HEADER + read);
+        socket.send(dataPacket);
+        Metrics.blockSent(read, retransmission);
+    }
+
+    /**
+     * Tell a client the group to listen on and whether it is master
+     */
+    private synchronized void sendOptionAck(InetSocketAddress client, boolean isMaster) throws IOException {
+        OptionAckPacket.begin(control);
+        if (blksizeRequested) {
+            OptionAckPacket.putOption(control, TFTPRequest.OPT_BLKSIZE, blksize);
+        }
+        if (tsizeRequested) {
+            OptionAckPacket.putOption(control, TFTPRequest.OPT_TSIZE, source.size());
+        }
+        OptionAckPacket.putOption(control, TFTPRequest.OPT_MULTICAST,
+                group.getAddress().getHostAddress() + "," + group.getPort() + "," + (isMaster ? 1 : 0));
+        control.flip();
+        socket.send(new DatagramPacket(control.array(), control.limit(), client));
+    }
+
+    private synchronized void sendError(int code, String errorMessage, InetSocketAddress client) throws IOException {
+        ErrorPacket.write(control, code, errorMessage);
+        socket.send(new DatagramPacket(control.array(), control.limit(), client));
+    }
+
+    /**
+     * Receive a packet from any client before the deadline
+     * @return false if the deadline passed first
+     */
+    private boolean receive(long deadline) throws IOException {
+        long remaining = (deadline - System.nanoTime()) / 1000000;
+        if (remaining <= 0) {
+            return false;
+        }
+        socket.setSoTimeout((int) remaining);
+        receivePacket.setData(in);
+        try {
+            socket.receive(receivePacket);
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+        return true;
+    }
+
+    int getGroupPort() {
+        return group.getPort();
+    }
+}
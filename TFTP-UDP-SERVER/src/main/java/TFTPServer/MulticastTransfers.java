@@ -0,0 +1,149 @@
+package TFTPServer;
+
+import TFTPCore.Log;
+import TFTPCore.RequestPacket;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MulticastTransfers - multicast transfers in progress (RFC 2090)
+ * Read requests carrying the multicast option join the transfer already
+ * running for the same file and block size, or start a new one. Each
+ * transfer sends to the configured group address on a port of its own,
+ * counting up from the configured port.
+ * @author 246644
+ * @version 2023
+ */
+public class MulticastTransfers {
+    // transfers running at once, each needs its own group port
+    public final static int MAX_TRANSFERS = 64;
+
+    // transfers by file and block size
+    private final static Map<String, MulticastTransfer> transfers = new HashMap<String, MulticastTransfer>();
+    private final static boolean[] portsInUse = new boolean[MAX_TRANSFERS];
+    // null while multicast is disabled
+    private static InetAddress groupAddress = null;
+    private static int basePort;
+    private static int ttl;
+    private static NetworkInterface networkInterface;
+
+    /**
+     * Enable multicast transfers, called once at startup
+     * @param address - multicast group address
+     * @param port - first group port
+     * @param timeToLive - hops multicast packets may travel
+     * @param iface - interface to send on, null for the system default
+     */
+    public static synchronized void configure(InetAddress address, int port, int timeToLive, NetworkInterface iface) {
+        if (!address.isMulticastAddress()) {
+            throw new IllegalArgumentException(address.getHostAddress() + " is not a multicast address");
+        }
+        groupAddress = address;
+        basePort = port;
+        ttl = timeToLive;
+        networkInterface = iface;
+        Log.info("Multicast transfers on " + address.getHostAddress() + ", ports " + port + "-" + (port + MAX_TRANSFERS - 1));
+    }
+
+    /**
+     * Handle a request if it asks for a multicast transfer
+     * @param data - request packet data, starting with the opcode
+     * @param length - length of the packet
+     * @param client - address and port of the client
+     * @return true if the client joined a multicast transfer, false if the
+     * request should be served as a normal transfer
+     */
+    public static boolean offer(byte[] data, int length, InetSocketAddress client) {
+        RequestPacket packet = new RequestPacket().wrap(ByteBuffer.wrap(data, 0, length));
+        if (!packet.isValid() || !packet.isRead()) {
+            return false;
+        }
+        TFTPRequest request = TFTPRequest.parse(packet);
+        if (!request.multicast()) {
+            return false;
+        }
+        File file = new File(request.getFilename());
+        int blksize = request.blockSize() > 0 ? request.blockSize() : TFTPRequest.DEFAULT_BLKSIZE;
+        String key;
+        synchronized (MulticastTransfers.class) {
+            if (groupAddress == null) {
+                return false;
+            }
+            // a missing file is reported by the normal transfer
+            if (!file.exists()) {
+                return false;
+            }
+            try {
+                key = file.getCanonicalPath() + "|" + blksize;
+                MulticastTransfer transfer = transfers.get(key);
+                if (transfer != null && transfer.join(client)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                Log.error("Could not join multicast transfer: ", e);
+                return false;
+            }
+        }
+        // a file missing from the cache is read in without holding up other requests
+        BlockSource source;
+        try {
+            source = FileCache.open(file);
+        } catch (IOException e) {
+            Log.error("Could not start multicast transfer: ", e);
+            return false;
+        }
+        synchronized (MulticastTransfers.class) {
+            try {
+                // started by another request while the file was opened
+                MulticastTransfer transfer = transfers.get(key);
+                if (transfer != null && transfer.join(client)) {
+                    source.close();
+                    return true;
+                }
+                int slot = freePort();
+                if (slot < 0) {
+                    Log.warn("Too many multicast transfers, serving by unicast: ", client);
+                    source.close();
+                    return false;
+                }
+                transfer = new MulticastTransfer(key, request, source, new InetSocketAddress(groupAddress, basePort + slot), ttl, networkInterface);
+                transfer.join(client);
+                portsInUse[slot] = true;
+                transfers.put(key, transfer);
+                transfer.start();
+                return true;
+            } catch (IOException e) {
+                Log.error("Could not start multicast transfer: ", e);
+                // the file only belongs to a transfer once it has started
+                source.close();
+                return false;
+            }
+        }
+    }
+
+    private static int freePort() {
+        for (int i = 0; i < portsInUse.length; i++) {
+            if (!portsInUse[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Called by a transfer when it has ended
+     */
+    static synchronized void finished(String key, MulticastTransfer transfer) {
+        if (transfers.get(key) == transfer) {
+            transfers.remove(key);
+        }
+        portsInUse[transfer.getGroupPort() - basePort] = false;
+    }
+}
@@ -0,0 +1,75 @@
+package TFTPServer;
+
+import TFTPCore.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioServer - event loop engine of the server
+ * Requests are received on the well known port by one or more
+ * RequestListeners and each new transfer is handed to one of a fixed number
+ * of event loops in turn, so the number of threads does not grow with the
+ * number of clients.
+ * @author 246644
+ * @version 2023
+ */
+public class NioServer {
+    private final ServerConfig config;
+    // transfers in progress by client address and port
+    private final Map<SocketAddress, TransferSession> sessions;
+    private final EventLoop[] loops;
+    // event loop given the next transfer, shared by the request listeners
+    private final AtomicInteger next;
+
+    public NioServer(ServerConfig config) throws IOException {
+        this.config = config;
+        sessions = new ConcurrentHashMap<SocketAddress, TransferSession>();
+        loops = new EventLoop[config.getLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i, sessions);
+        }
+        next = new AtomicInteger();
+    }
+
+    /**
+     * Start the event loops and the request listeners, which run until the process is stopped
+     */
+    public void run() throws IOException {
+        DatagramChannel[] channels = TFTPServer.bind(config);
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        Log.info("Starting server with " + loops.length + " event loops and " + channels.length + " request listeners...");
+        RequestListener.start(channels, this::accept);
+    }
+
+    /**
+     * Start a session for a request, called by the request listeners
+     */
+    private void accept(ByteBuffer request, InetSocketAddress client, DatagramChannel channel) {
+        // client sent the request again before the first answer arrived; the
+        // kernel sends every packet of one client to the same listener
+        if (sessions.containsKey(client)) {
+            return;
+        }
+        // client joins a multicast transfer of the file instead
+        if (MulticastTransfers.offer(request.array(), request.limit(), client)) {
+            return;
+        }
+        TransferSession session = TransferSession.create(request.array(), request.limit(), client);
+        if (session == null) {
+            Log.warn("Incorrect data from ", client);
+            return;
+        }
+        Log.debug("Accepted UDP packet from ", client);
+        sessions.put(client, session);
+        loops[Math.floorMod(next.getAndIncrement(), loops.length)].register(session);
+    }
+}
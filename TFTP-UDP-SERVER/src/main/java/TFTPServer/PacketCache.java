@@ -0,0 +1,146 @@
+package TFTPServer;
+
+import TFTPCore.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * PacketCache - ready to send DATA packets of popular files
+ * Only files held by FileCache are prepared, once for each block size
+ * they are requested with. Packets of a file which has changed since are
+ * prepared again from the new copy. The least recently used are evicted
+ * once the total size exceeds the byte budget.
+ * A thread which must not block, such as an event loop, uses getIfReady(),
+ * which prepares packets not held yet on another thread for later requests.
+ * @author 246644
+ * @version 2023
+ */
+public class PacketCache {
+    // prepared packets by path and block size, least recently used first
+    private final static LinkedHashMap<String, PreparedPackets> files = new LinkedHashMap<String, PreparedPackets>(16, 0.75f, true);
+    // keys of the packets being prepared in the background
+    private final static Set<String> preparing = new HashSet<String>();
+    // threads preparing packets for getIfReady()
+    private static ExecutorService preparers = null;
+    // total size of the packets held and the limit for it, 0 disables the cache
+    private static long used = 0;
+    private static long budget = 0;
+
+    /**
+     * Set the size of the cache, called once at startup
+     * @param bytes - byte budget, 0 to disable the cache
+     */
+    public static synchronized void configure(long bytes) {
+        budget = bytes;
+        files.clear();
+        used = 0;
+        if (budget > 0) {
+            Log.info("Packet cache: " + budget + " bytes");
+        }
+    }
+
+    /**
+     * Get the packets of a file for a block size, preparing them if needed
+     * @param source - file opened by FileCache
+     * @return packets, or null if the file is not cached or does not fit
+     */
+    public static PreparedPackets get(BlockSource source, int blksize) throws IOException {
+        if (!(source instanceof CachedFile)) {
+            return null;
+        }
+        CachedFile file = (CachedFile) source;
+        long bytes = PreparedPackets.bytesFor(file.size(), blksize);
+        if (bytes > budget || bytes > Integer.MAX_VALUE) {
+            return null;
+        }
+        String key = file.getKey() + "|" + blksize;
+        synchronized (PacketCache.class) {
+            PreparedPackets prepared = files.get(key);
+            if (prepared != null && prepared.getFile() == file) {
+                return prepared;
+            }
+        }
+        PreparedPackets prepared = new PreparedPackets(file, blksize);
+        synchronized (PacketCache.class) {
+            put(key, prepared, bytes);
+        }
+        return prepared;
+    }
+
+    /**
+     * Get the packets of a file for a block size without waiting, for threads
+     * which must not block; packets not held are prepared on another thread
+     * @param source - file opened by FileCache
+     * @return packets, or null if they are not held yet, the file is not cached or does not fit
+     */
+    public static PreparedPackets getIfReady(BlockSource source, int blksize) {
+        if (!(source instanceof CachedFile)) {
+            return null;
+        }
+        CachedFile file = (CachedFile) source;
+        long bytes = PreparedPackets.bytesFor(file.size(), blksize);
+        if (bytes > budget || bytes > Integer.MAX_VALUE) {
+            return null;
+        }
+        String key = file.getKey() + "|" + blksize;
+        synchronized (PacketCache.class) {
+            PreparedPackets prepared = files.get(key);
+            if (prepared != null && prepared.getFile() == file) {
+                return prepared;
+            }
+            // already on its way
+            if (!preparing.add(key)) {
+                return null;
+            }
+        }
+        preparer().execute(() -> {
+            try {
+                PreparedPackets prepared = new PreparedPackets(file, blksize);
+                synchronized (PacketCache.class) {
+                    put(key, prepared, bytes);
+                }
+            } catch (IOException e) {
+                Log.warn("Could not prepare packets of ", file.getKey());
+            } finally {
+                synchronized (PacketCache.class) {
+                    preparing.remove(key);
+                }
+            }
+        });
+        return null;
+    }
+
+    private static void put(String key, PreparedPackets prepared, long bytes) {
+        PreparedPackets old = files.put(key, prepared);
+        if (old != null) {
+            used -= PreparedPackets.bytesFor(old.getFile().size(), old.getBlockSize());
+        }
+        used += bytes;
+        // evict least recently used packets until the budget is met
+        Iterator<Map.Entry<String, PreparedPackets>> eldest = files.entrySet().iterator();
+        while (used > budget && eldest.hasNext()) {
+            PreparedPackets evicted = eldest.next().getValue();
+            eldest.remove();
+            used -= PreparedPackets.bytesFor(evicted.getFile().size(), evicted.getBlockSize());
+        }
+    }
+
+    private static synchronized ExecutorService preparer() {
+        if (preparers == null) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            preparers = Executors.newFixedThreadPool(threads, task -> {
+                Thread thread = new Thread(task, "PacketCache");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return preparers;
+    }
+}
@@ -0,0 +1,19 @@
+package TFTPServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PacketSender - sends packets of a transfer to its client
+ * Implemented by each server engine on top of its own socket or channel,
+ * so the same TransferSession runs on a thread per transfer or on an event loop.
+ * @author 246644
+ * @version 2023
+ */
+public interface PacketSender {
+    /**
+     * Send the packet between position and limit to the client
+     * @param packet - packet to send, its position is not preserved
+     */
+    void send(ByteBuffer packet) throws IOException;
+}
@@ -0,0 +1,78 @@
+package TFTPServer;
+
+import TFTPCore.DataPacket;
+import TFTPCore.TftpPacket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PreparedPackets - every DATA packet of a file for one block size, built once
+ * Packets are laid out one after the other in a single buffer, each with its
+ * header already filled in, so sending a block only sets the bounds of a view.
+ * Blocks are counted from 1 without wrapping; the header holds the lower two
+ * bytes of the count, so files of more than 65535 blocks roll over as usual.
+ * The buffer is never written after it is built and is shared by all transfers.
+ * @author 246644
+ * @version 2023
+ */
+public class PreparedPackets {
+    private final CachedFile file;
+    private final int blksize;
+    // number of blocks, including an empty last block when the size is a multiple of blksize
+    private final long blocks;
+    private final ByteBuffer packets;
+
+    PreparedPackets(CachedFile file, int blksize) throws IOException {
+        this.file = file;
+        this.blksize = blksize;
+        blocks = file.size() / blksize + 1;
+        packets = ByteBuffer.allocate((int) bytesFor(file.size(), blksize));
+        for (long block = 1; block <= blocks; block++) {
+            int start = offset(block);
+            packets.limit(Math.min(packets.capacity(), start + TftpPacket.HEADER + blksize));
+            DataPacket.putHeader(packets, start, block);
+            packets.position(start + TftpPacket.HEADER);
+            file.read((block - 1) * blksize, packets);
+        }
+        packets.clear();
+    }
+
+    /**
+     * @return memory needed to hold the packets of a file
+     */
+    static long bytesFor(long size, int blksize) {
+        return (size / blksize + 1) * 4 + size;
+    }
+
+    CachedFile getFile() {
+        return file;
+    }
+
+    int getBlockSize() {
+        return blksize;
+    }
+
+    /**
+     * @return view of the packets for one transfer, passed back to select()
+     */
+    public ByteBuffer view() {
+        return packets.duplicate();
+    }
+
+    /**
+     * Set the bounds of a view to the packet for a block
+     * @param block - block number, counting from 1 without wrapping
+     * @return the view, positioned on the packet
+     */
+    public ByteBuffer select(long block, ByteBuffer view) {
+        int start = offset(block);
+        int length = block < blocks ? blksize : (int) (file.size() - (blocks - 1) * blksize);
+        view.limit(start + 4 + length).position(start);
+        return view;
+    }
+
+    private int offset(long block) {
+        return (int) ((block - 1) * (4 + blksize));
+    }
+}
@@ -0,0 +1,333 @@
+package TFTPServer;
+
+import TFTPCore.AckPacket;
+import TFTPCore.Codec;
+import TFTPCore.DataPacket;
+import TFTPCore.EncodedCache;
+import TFTPCore.EncodedFile;
+import TFTPCore.Log;
+import TFTPCore.TftpPacket;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * ReadSession - serves a read request (RRQ)
+ * Blocks are sent a window at a time (RFC 7440); the client acknowledges
+ * the last block of each window, or the last block it received in order
+ * when one went missing, and sending restarts after that block.
+ * A window which is not acknowledged before the timer runs out is sent again.
+ * Blocks are copied from memory, a cached copy of the file (FileCache), or
+ * segments read once for every transfer of the same file (BlockProducerRegistry)
+ * or a mapping shared with them (MappedFileRegistry).
+ * A client offering compression gets the compressed form of a file held
+ * by EncodedCache (EncodedSource) when it is worth it; the blocks then
+ * carry its chunks, while tsize stays the size of the file itself. On an
+ * event loop a file the cache does not hold yet is sent as it is while the
+ * cache compresses it on another thread.
+ * Likewise an event loop never reads a file into FileCache itself: the
+ * session waits, without being read, while another thread loads it, and
+ * answers the request in resume(). Packets PacketCache does not hold yet
+ * are prepared on another thread for later requests.
+ * @author 246644
+ * @version 2023
+ */
+public class ReadSession extends TransferSession {
+    private BlockSource source;
+    // file being read into the cache for an event loop, null once it is open
+    private CompletableFuture<BlockSource> opening;
+    // compressed form of the file being sent, null if it goes as it is
+    private EncodedFile encoded;
+    // ready made packets of the file when it is popular enough to be cached
+    private PreparedPackets prepared;
+    private ByteBuffer preparedView;
+    // OACK sent, waiting for the client to acknowledge it with ACK block 0
+    private boolean optionAckPending;
+    // blocks are counted from 1 without wrapping, the block number
+    // in a packet is the lower two bytes of the count
+    private long base; // first block not yet acknowledged
+    private long lastBlock; // short block ending the file, once it has been read
+    private long highestSent; // blocks up to this one have been sent at least once
+    private long sent; // last block of the current window
+    // current window contains blocks sent before, its ACK cannot be timed
+    private boolean retransmission;
+    // window already sent again for an ACK of the block before it
+    private boolean resentOnAck;
+    private long sentAt;
+    // client has acknowledged the last block
+    private boolean sentAll;
+    // view of an ACK from the client
+    private final AckPacket ack;
+
+    public ReadSession(TFTPRequest request, InetSocketAddress client) {
+        super(request, client);
+        base = 1;
+        lastBlock = -1;
+        highestSent = 0;
+        ack = new AckPacket();
+    }
+
+    @Override
+    public void start() throws IOException {
+        Log.debug("Read request...");
+        // check if requested file exists, if not send error to client
+        File file = new File(filename);
+        if (!file.exists()) {
+            sendError(TftpPacket.ERR_FILE_NOT_FOUND, "File does not exist.");
+            finish();
+            return;
+        }
+        // try to get requested file
+        try {
+            // the cache holds a compressed form of the file if it is worth sending one
+            Codec codec = request.compression();
+            if (codec != null && EncodedCache.wants(file.length())) {
+                encoded = mayBlock ? EncodedCache.get(file, codec) : EncodedCache.getIfReady(file, codec);
+                if (encoded != null && !encoded.isWorthwhile()) {
+                    encoded = null;
+                }
+            }
+            if (encoded != null) {
+                source = new EncodedSource(encoded);
+                acceptedOptions.put(TFTPRequest.OPT_COMPRESS, codec.getName());
+            } else if (mayBlock) {
+                source = FileCache.open(file);
+                prepared = PacketCache.get(source, blksize);
+            } else {
+                // the answer waits in resume() while the file is read in
+                opening = FileCache.openAsync(file);
+                if (opening.isDone()) {
+                    opened();
+                }
+                return;
+            }
+        } catch (IOException e) {
+            cannotOpen();
+            return;
+        }
+        answer();
+    }
+
+    @Override
+    public boolean isWaiting() {
+        return opening != null && !opening.isDone();
+    }
+
+    @Override
+    public void resume() throws IOException {
+        if (opening != null) {
+            opened();
+        }
+    }
+
+    /**
+     * The file has been opened for an event loop, answer the request
+     */
+    private void opened() throws IOException {
+        CompletableFuture<BlockSource> done = opening;
+        opening = null;
+        try {
+            source = done.join();
+        } catch (CompletionException e) {
+            cannotOpen();
+            return;
+        }
+        prepared = PacketCache.getIfReady(source, blksize);
+        answer();
+    }
+
+    private void cannotOpen() throws IOException {
+        // send error to client
+        Log.warn("Specified file not found: ", filename);
+        sendError(TftpPacket.ERR_FILE_NOT_FOUND, "SERVER ERROR: Cannot find specified filename");
+        finish();
+    }
+
+    /**
+     * Answer the request once the file is open, with an OACK or the first window
+     */
+    private void answer() throws IOException {
+        if (prepared != null) {
+            preparedView = prepared.view();
+        }
+        // client asked for the size of the file, answer in the OACK
+        total = encoded != null ? encoded.size() : source.size();
+        if (request.transferSize() >= 0) {
+            acceptedOptions.put(TFTPRequest.OPT_TSIZE, Long.toString(total));
+        }
+        // options accepted, client acknowledges the OACK with ACK block 0
+        if (!acceptedOptions.isEmpty()) {
+            optionAckPending = true;
+            sendOptionAck();
+            Log.trace("Waiting for ACK of OACK from client...");
+            sentAt = System.nanoTime();
+            deadline = sentAt + timer.timeout() * 1000000L;
+        } else {
+            sendWindow();
+        }
+    }
+
+    /**
+     * Send a window of blocks starting at the first unacknowledged one
+     */
+    private void sendWindow() throws IOException {
+        sent = base - 1;
+        retransmission = base <= highestSent;
+        for (int i = 0; i < windowsize && sent != lastBlock; i++) {
+            long block = base + i;
+            ByteBuffer packet;
+            if (prepared != null) {
+                packet = prepared.select(block, preparedView);
+            } else {
+                // read data into the buffer blksize bytes at a time
+                int read = readBlock(block);
+                // set buffer opcode to data and block number
+                DataPacket.putHeader(out, 0, block);
+                out.limit(TftpPacket.HEADER + read).position(0); // opcode + block# + data = (2+2) + read
+                packet = out;
+            }
+            int read = packet.remaining() - 4;
+            // if less than blksize bytes have been read, end of file reached
+            if (read < blksize) {
+                lastBlock = block;
+            }
+            Log.trace("Bytes read: ", read);
+            Log.trace("Sending packet ", block);
+            sender.send(packet);
+            Metrics.blockSent(read, block <= highestSent);
+            blocks++;
+            if (block <= highestSent) {
+                retransmits++;
+            } else {
+                bytes += read;
+            }
+            sent = block;
+        }
+        highestSent = Math.max(highestSent, sent);
+        sentAt = System.nanoTime();
+        deadline = sentAt + timer.timeout() * 1000000L;
+        Log.trace("Waiting for ACK from client...");
+    }
+
+    /**
+     * Read a block of the file into the packet after the header
+     * @param block - block number, counting from 1 without wrapping
+     * @return number of bytes read, 0 at the end of the file
+     */
+    private int readBlock(long block) throws IOException {
+        out.clear().position(4);
+        out.limit(4 + blksize);
+        return source.read((block - 1) * blksize, out);
+    }
+
+    @Override
+    public void onPacket(ByteBuffer packet) throws IOException {
+        int opcode = TftpPacket.opcode(packet);
+        // check if error code received
+        if (opcode == TftpPacket.OP_ERROR) {
+            Log.warn("TftpServer error: ", error.wrap(packet).message());
+            finish();
+            return;
+        }
+        if (!ack.wrap(packet).isValid()) {
+            return;
+        }
+        // ACK received
+        int ackBlock = ack.block();
+        Log.trace("ACK received: ", ackBlock);
+        if (optionAckPending) {
+            if (ackBlock == 0) {
+                optionAckPending = false;
+                if (timer.getRetries() == 0) {
+                    timer.sample(System.nanoTime() - sentAt);
+                }
+                timer.reset();
+                sendWindow();
+            }
+            return;
+        }
+        // find which block of the window the ACK acknowledges
+        long acked = (base - 1) + ((ackBlock - (base - 1)) & 0xffff);
+        // ACKs older than the window are duplicates, ignore them
+        if (acked > sent) {
+            return;
+        }
+        // an ACK of the block before the window: its first block went missing.
+        // The window is sent again for the first such ACK only; answering every
+        // copy would multiply the packets each round (Sorcerer's Apprentice
+        // Syndrome), and the timer covers a resent window which is lost too
+        if (acked == base - 1) {
+            if (!resentOnAck) {
+                resentOnAck = true;
+                sendWindow();
+            }
+            return;
+        }
+        resentOnAck = false;
+        Log.trace("Correct block");
+        // whole window acknowledged first time round, measure the round trip
+        if (acked == sent && !retransmission && timer.getRetries() == 0) {
+            timer.sample(System.nanoTime() - sentAt);
+        }
+        timer.reset();
+        // client has acknowledged the last block, file sent
+        if (acked == lastBlock) {
+            Log.debug("File sent.");
+            sentAll = true;
+            if (encoded != null) {
+                Metrics.compressed(encoded.size() - source.size());
+            }
+            finish();
+            return;
+        }
+        // continue after the last block received in order by the client
+        base = acked + 1;
+        sendWindow();
+    }
+
+    @Override
+    public void onTimeout() throws IOException {
+        Log.debug("Socket timeout...");
+        timeouts++;
+        if (!timer.backoff()) {
+            giveUp();
+            return;
+        }
+        // nothing acknowledged, OACK or window is sent again
+        resentOnAck = false;
+        if (optionAckPending) {
+            sendOptionAck();
+            deadline = System.nanoTime() + timer.timeout() * 1000000L;
+        } else {
+            sendWindow();
+        }
+    }
+
+    @Override
+    protected String summary() {
+        if (encoded != null) {
+            return sentAll ? "Sent compressed" : "Incomplete compressed read of";
+        }
+        return sentAll ? "Sent" : "Incomplete read of";
+    }
+
+    @Override
+    protected void release() {
+        // a file still being read in is closed once it is open
+        if (opening != null) {
+            opening.thenAccept(BlockSource::close);
+            opening = null;
+        }
+        prepared = null;
+        preparedView = null;
+        encoded = null;
+        if (source != null) {
+            source.close();
+            source = null;
+        }
+    }
+}
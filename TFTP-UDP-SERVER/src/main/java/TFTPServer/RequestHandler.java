@@ -0,0 +1,23 @@
+package TFTPServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * RequestHandler - starts transfers for requests received on the well known port
+ * Implemented by each server engine; called by every RequestListener at
+ * once, so implementations must be safe to use from several threads.
+ * @author 246644
+ * @version 2023
+ */
+public interface RequestHandler {
+    /**
+     * Handle a packet received on the well known port
+     * @param request - packet between position and limit, only valid during the call
+     * @param client - address and port of the client
+     * @param channel - channel the packet arrived on, for answering with an error
+     */
+    void handle(ByteBuffer request, InetSocketAddress client, DatagramChannel channel) throws IOException;
+}
@@ -0,0 +1,100 @@
+package TFTPServer;
+
+import TFTPCore.Log;
+import TFTPCore.TftpPacket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * RequestListener - receives requests on the well known port
+ * With more than one listener every one binds its own channel to the port
+ * with SO_REUSEPORT, and the kernel hashes each client's address and port to
+ * one of them. Requests are then taken in by as many threads, on as many
+ * cores, as there are listeners, and the requests of one client, including
+ * any it sends again, always reach the same listener. Another process of
+ * the same user binding the port with SO_REUSEPORT is let in as well and
+ * given a share of the requests, so only one such server should run.
+ * @author 246644
+ * @version 2023
+ */
+public class RequestListener extends Thread {
+    private final DatagramChannel channel;
+    private final RequestHandler handler;
+    // packet size = opcode (2 bytes) + block number (2 bytes) + data (512 bytes)
+    private final ByteBuffer buffer;
+
+    RequestListener(int id, DatagramChannel channel, RequestHandler handler) {
+        super("RequestListener-" + id);
+        this.channel = channel;
+        this.handler = handler;
+        buffer = ByteBuffer.allocate(TftpPacket.PACKET);
+    }
+
+    /**
+     * Bind the channels of the listeners to the port
+     * @param port - well known port of the server
+     * @param count - number of listeners
+     * @return one bound channel for each listener
+     * @throws IOException if the port is in use, or SO_REUSEPORT is not
+     * supported and more than one listener was asked for
+     */
+    public static DatagramChannel[] bind(int port, int count) throws IOException {
+        DatagramChannel[] channels = new DatagramChannel[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                channels[i] = DatagramChannel.open();
+                if (count > 1) {
+                    if (!channels[i].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        throw new IOException("SO_REUSEPORT is not supported on this platform");
+                    }
+                    channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channels[i].bind(new InetSocketAddress(port));
+            }
+        } catch (IOException e) {
+            for (DatagramChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            throw e;
+        }
+        return channels;
+    }
+
+    /**
+     * Start a listener on each channel
+     * @return the listeners, running
+     */
+    public static RequestListener[] start(DatagramChannel[] channels, RequestHandler handler) {
+        RequestListener[] listeners = new RequestListener[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            listeners[i] = new RequestListener(i, channels[i], handler);
+            listeners[i].start();
+        }
+        return listeners;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // wait for incoming packets from clients
+                buffer.clear();
+                InetSocketAddress client = (InetSocketAddress) channel.receive(buffer);
+                buffer.flip();
+                handler.handle(buffer, client, channel);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // one bad request or reply must not stop the listener
+                Log.error("I/O error on " + getName() + ": ", e);
+            }
+        }
+    }
+}
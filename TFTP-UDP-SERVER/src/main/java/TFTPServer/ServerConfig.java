@@ -0,0 +1,333 @@
+package TFTPServer;
+
+import TFTPCore.BlockWriter;
+import TFTPCore.Compression;
+import TFTPCore.EncodedCache;
+import TFTPCore.HandlerExecutor;
+import TFTPCore.Log;
+
+/**
+ * ServerConfig - command line settings of the server
+ * Usage: java TFTPServer [--engine=thread|nio] [--loops=N] [--port=N] [--listeners=N]
+ *        [--executor=virtual|pool] [--threads=N] [--queue=N]
+ *        [--cache-size=N[k|m|g]] [--cache-offheap=true|false] [--packet-cache-size=N[k|m|g]]
+ *        [--large-files=shared|mapped] [--fsync=none|end|N[k|m|g]] [--metrics-port=N]
+ *        [--log-level=error|warn|info|debug|trace] [--log-async=true|false]
+ *        [--multicast=group:port] [--multicast-ttl=N] [--multicast-interface=name]
+ *        [--compress=off|N[k|m]] [--compress-cache=N[k|m|g]]
+ * The thread engine runs a TFTPServerThread for each transfer on an executor
+ * (HandlerExecutor); the nio engine runs all transfers on a few event loops (NioServer).
+ * Requests are received by one thread, or by several sharing the port with
+ * SO_REUSEPORT so the kernel spreads new requests across them (RequestListener).
+ * Read requests are served from an in-memory cache of the given size (FileCache),
+ * and optionally from ready made DATA packets of the cached files (PacketCache).
+ * Files too large for the cache are read once for all concurrent transfers
+ * (BlockProducerRegistry) or served from a shared mapping (MappedFileRegistry).
+ * Written files are stored behind the transfer by BlockWriter, and forced to
+ * disk not at all, at the end, or every N bytes before the ACK is sent.
+ * Transfer metrics are registered with JMX, and served over HTTP on localhost
+ * when a metrics port is given (MetricsEndpoint).
+ * Messages below the log level are dropped before they are built (Log); at
+ * info each transfer logs one summary line, trace logs every block.
+ * With a multicast group set, clients asking for it share a multicast transfer (RFC 2090).
+ * Clients offering compression get files from the compress size up compressed,
+ * from compressed forms kept in a cache of the given size (EncodedCache).
+ * @author 246644
+ * @version 2023
+ */
+public class ServerConfig {
+    public final static String ENGINE_THREAD = "thread";
+    public final static String ENGINE_NIO = "nio";
+    public final static String LARGE_FILES_SHARED = "shared";
+    public final static String LARGE_FILES_MAPPED = "mapped";
+    // well known port used by the server instead of 69
+    public final static int DEFAULT_PORT = 1234;
+    // pool size and number of transfers waiting for a pool thread
+    public final static int DEFAULT_THREADS = 256;
+    public final static int DEFAULT_QUEUE = 1024;
+    // byte budget of the file cache = 64MB
+    public final static long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+    // byte budget of the packet cache, disabled unless set
+    public final static long DEFAULT_PACKET_CACHE_SIZE = 0;
+    // multicast packets stay on the local network unless told otherwise
+    public final static int DEFAULT_MULTICAST_TTL = 1;
+
+    private String engine;
+    private int loops;
+    private int port;
+    // threads receiving requests on the port
+    private int listeners;
+    private String executor;
+    private int threads;
+    private int queue;
+    private long cacheSize;
+    private boolean cacheOffHeap;
+    private long packetCacheSize;
+    private String largeFiles;
+    // bytes written between syncs of a received file, or BlockWriter.SYNC_NONE / SYNC_AT_END
+    private long syncInterval;
+    // local port of the metrics endpoint, 0 if it is disabled
+    private int metricsPort;
+    private int logLevel;
+    // write log messages on a background thread (LogAppender)
+    private boolean logAsync;
+    // multicast group address and first port, null if multicast is disabled
+    private String multicastGroup;
+    private int multicastPort;
+    private int multicastTtl;
+    private String multicastInterface;
+    // smallest file sent compressed, -1 if never, and byte budget of the compressed forms
+    private long compressThreshold;
+    private long compressCache;
+
+    public ServerConfig() {
+        engine = ENGINE_THREAD;
+        // one event loop per core
+        loops = Runtime.getRuntime().availableProcessors();
+        port = DEFAULT_PORT;
+        listeners = 1;
+        // falls back to the pool before JDK 21
+        executor = HandlerExecutor.VIRTUAL;
+        threads = DEFAULT_THREADS;
+        queue = DEFAULT_QUEUE;
+        cacheSize = DEFAULT_CACHE_SIZE;
+        cacheOffHeap = false;
+        packetCacheSize = DEFAULT_PACKET_CACHE_SIZE;
+        largeFiles = LARGE_FILES_SHARED;
+        syncInterval = BlockWriter.SYNC_NONE;
+        metricsPort = 0;
+        logLevel = Log.INFO;
+        logAsync = true;
+        multicastGroup = null;
+        multicastPort = 0;
+        multicastTtl = DEFAULT_MULTICAST_TTL;
+        multicastInterface = null;
+        compressThreshold = Compression.DEFAULT_THRESHOLD;
+        compressCache = EncodedCache.DEFAULT_BUDGET;
+    }
+
+    /**
+     * Read settings from the command line
+     * @param args - arguments of the form --name=value
+     * @return settings, defaults for anything not given
+     * @throws IllegalArgumentException if an argument is not recognised
+     */
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "engine":
+                    if (!value.equals(ENGINE_THREAD) && !value.equals(ENGINE_NIO)) {
+                        throw new IllegalArgumentException("Unknown engine: " + value);
+                    }
+                    config.engine = value;
+                    break;
+                case "loops":
+                    config.loops = parsePositive(name, value);
+                    break;
+                case "port":
+                    config.port = parsePositive(name, value);
+                    break;
+                case "listeners":
+                    config.listeners = parsePositive(name, value);
+                    break;
+                case "executor":
+                    if (!value.equals(HandlerExecutor.VIRTUAL) && !value.equals(HandlerExecutor.POOL)) {
+                        throw new IllegalArgumentException("Unknown executor: " + value);
+                    }
+                    config.executor = value;
+                    break;
+                case "threads":
+                    config.threads = parsePositive(name, value);
+                    break;
+                case "queue":
+                    config.queue = parsePositive(name, value);
+                    break;
+                case "cache-size":
+                    config.cacheSize = parseSize(name, value);
+                    break;
+                case "cache-offheap":
+                    if (!value.equals("true") && !value.equals("false")) {
+                        throw new IllegalArgumentException(name + " must be true or false: " + value);
+                    }
+                    config.cacheOffHeap = Boolean.parseBoolean(value);
+                    break;
+                case "packet-cache-size":
+                    config.packetCacheSize = parseSize(name, value);
+                    break;
+                case "large-files":
+                    if (!value.equals(LARGE_FILES_SHARED) && !value.equals(LARGE_FILES_MAPPED)) {
+                        throw new IllegalArgumentException("Unknown large file mode: " + value);
+                    }
+                    config.largeFiles = value;
+                    break;
+                case "fsync":
+                    config.syncInterval = BlockWriter.parseSyncInterval(value);
+                    break;
+                case "metrics-port":
+                    config.metricsPort = parsePositive(name, value);
+                    break;
+                case "log-level":
+                    config.logLevel = Log.parseLevel(value);
+                    break;
+                case "log-async":
+                    if (!value.equals("true") && !value.equals("false")) {
+                        throw new IllegalArgumentException(name + " must be true or false: " + value);
+                    }
+                    config.logAsync = Boolean.parseBoolean(value);
+                    break;
+                case "multicast":
+                    int colon = value.lastIndexOf(':');
+                    if (colon <= 0) {
+                        throw new IllegalArgumentException(name + " must be group:port: " + value);
+                    }
+                    config.multicastGroup = value.substring(0, colon);
+                    config.multicastPort = parsePositive(name, value.substring(colon + 1));
+                    break;
+                case "multicast-ttl":
+                    config.multicastTtl = parsePositive(name, value);
+                    break;
+                case "multicast-interface":
+                    config.multicastInterface = value;
+                    break;
+                case "compress":
+                    config.compressThreshold = EncodedCache.parseThreshold(value);
+                    break;
+                case "compress-cache":
+                    config.compressCache = parseSize(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            }
+        }
+        return config;
+    }
+
+    private static int parsePositive(String name, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " must be a positive number: " + value);
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Parse a size in bytes with an optional k, m or g suffix
+     */
+    private static long parseSize(String name, String value) {
+        long unit = 1;
+        String digits = value;
+        switch (value.isEmpty() ? ' ' : Character.toLowerCase(value.charAt(value.length() - 1))) {
+            case 'k': unit = 1024L; break;
+            case 'm': unit = 1024L * 1024; break;
+            case 'g': unit = 1024L * 1024 * 1024; break;
+            default: break;
+        }
+        if (unit != 1) {
+            digits = value.substring(0, value.length() - 1);
+        }
+        try {
+            long number = Long.parseLong(digits);
+            if (number >= 0) {
+                return number * unit;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " must be a size in bytes: " + value);
+    }
+
+    public int getLoops() {
+        return loops;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getListeners() {
+        return listeners;
+    }
+
+    public String getExecutor() {
+        return executor;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getQueue() {
+        return queue;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public boolean isCacheOffHeap() {
+        return cacheOffHeap;
+    }
+
+    public long getPacketCacheSize() {
+        return packetCacheSize;
+    }
+
+    public String getLargeFiles() {
+        return largeFiles;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public int getLogLevel() {
+        return logLevel;
+    }
+
+    public boolean isLogAsync() {
+        return logAsync;
+    }
+
+    public String getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    public int getMulticastPort() {
+        return multicastPort;
+    }
+
+    public int getMulticastTtl() {
+        return multicastTtl;
+    }
+
+    public String getMulticastInterface() {
+        return multicastInterface;
+    }
+
+    public long getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public long getCompressCache() {
+        return compressCache;
+    }
+}
@@ -0,0 +1,188 @@
+package TFTPServer;
+
+import TFTPCore.Codec;
+import TFTPCore.Compression;
+import TFTPCore.EncodedCache;
+import TFTPCore.OptionAckPacket;
+import TFTPCore.RequestPacket;
+import TFTPCore.TftpOptions;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * TFTPRequest - parsed form of a read or write request (RRQ/WRQ)
+ * The packet is read with a RequestPacket view; the options the server
+ * knows are picked out as it goes, so only the filename and mode are
+ * copied out of the packet. Unknown options are ignored.
+ * @author 246644
+ * @version 2023
+ */
+public class TFTPRequest {
+    // option names (RFC 2348, RFC 2349, RFC 7440, RFC 2090)
+    public final static String OPT_BLKSIZE = TftpOptions.OPT_BLKSIZE;
+    public final static String OPT_TIMEOUT = TftpOptions.OPT_TIMEOUT;
+    public final static String OPT_WINDOWSIZE = TftpOptions.OPT_WINDOWSIZE;
+    public final static String OPT_MULTICAST = TftpOptions.OPT_MULTICAST;
+    public final static String OPT_TSIZE = TftpOptions.OPT_TSIZE;
+    public final static String OPT_COMPRESS = TftpOptions.OPT_COMPRESS;
+    // default and limits for the block size option
+    public final static int DEFAULT_BLKSIZE = TftpOptions.DEFAULT_BLKSIZE;
+    public final static int MIN_BLKSIZE = TftpOptions.MIN_BLKSIZE;
+    public final static int MAX_BLKSIZE = TftpOptions.MAX_BLKSIZE;
+    // default and limits for the window size option, the server keeps
+    // at most MAX_WINDOWSIZE blocks in flight whatever the client asks for
+    public final static int DEFAULT_WINDOWSIZE = TftpOptions.DEFAULT_WINDOWSIZE;
+    public final static int MIN_WINDOWSIZE = TftpOptions.MIN_WINDOWSIZE;
+    public final static int MAX_WINDOWSIZE = 64;
+    // limits for the timeout option in seconds
+    public final static int MIN_TIMEOUT = TftpOptions.MIN_TIMEOUT;
+    public final static int MAX_TIMEOUT = TftpOptions.MAX_TIMEOUT;
+
+    private final String filename;
+    private final String mode;
+    // values of the known options as sent, -1 when not requested or not a number
+    private int blksize;
+    private int windowsize;
+    private int timeout;
+    private long tsize;
+    private boolean multicast;
+    // codec names of the compress option, null when not requested
+    private String compress;
+    private int optionCount;
+
+    private TFTPRequest(String filename, String mode) {
+        this.filename = filename;
+        this.mode = mode;
+        blksize = -1;
+        windowsize = -1;
+        timeout = -1;
+        tsize = -1;
+        multicast = false;
+        compress = null;
+        optionCount = 0;
+    }
+
+    /**
+     * Parse request from the given packet data
+     * @param data - packet data, starting with the opcode
+     * @param length - length of the packet
+     * @return parsed request
+     */
+    public static TFTPRequest parse(byte[] data, int length) {
+        return parse(new RequestPacket().wrap(ByteBuffer.wrap(data, 0, length)));
+    }
+
+    /**
+     * Parse request from a view of the packet, which is only read during the call
+     * @return parsed request
+     */
+    public static TFTPRequest parse(RequestPacket packet) {
+        TFTPRequest request = new TFTPRequest(packet.filename(), packet.mode());
+        packet.rewind();
+        while (packet.nextOption()) {
+            request.optionCount++;
+            if (packet.optionIs(OPT_BLKSIZE)) {
+                request.blksize = packet.optionInt();
+            } else if (packet.optionIs(OPT_WINDOWSIZE)) {
+                request.windowsize = packet.optionInt();
+            } else if (packet.optionIs(OPT_TIMEOUT)) {
+                request.timeout = packet.optionInt();
+            } else if (packet.optionIs(OPT_TSIZE)) {
+                request.tsize = packet.optionLong();
+            } else if (packet.optionIs(OPT_MULTICAST)) {
+                request.multicast = true;
+            } else if (packet.optionIs(OPT_COMPRESS)) {
+                request.compress = packet.optionValue();
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Negotiate block size with the client
+     * @return block size requested by the client limited to MAX_BLKSIZE,
+     * or -1 if the option was not requested or is not valid
+     */
+    public int blockSize() {
+        if (blksize < MIN_BLKSIZE) {
+            return -1;
+        }
+        return Math.min(blksize, MAX_BLKSIZE);
+    }
+
+    /**
+     * Negotiate window size with the client
+     * @return window size requested by the client limited to MAX_WINDOWSIZE,
+     * or -1 if the option was not requested or is not valid
+     */
+    public int windowSize() {
+        if (windowsize < MIN_WINDOWSIZE || windowsize > TftpOptions.MAX_WINDOWSIZE) {
+            return -1;
+        }
+        return Math.min(windowsize, MAX_WINDOWSIZE);
+    }
+
+    /**
+     * Negotiate retransmission timeout with the client
+     * @return timeout in seconds requested by the client, or -1 if
+     * the option was not requested or is out of range
+     */
+    public int timeout() {
+        // value must be acknowledged unchanged, out of range values are refused
+        if (timeout < MIN_TIMEOUT || timeout > MAX_TIMEOUT) {
+            return -1;
+        }
+        return timeout;
+    }
+
+    /**
+     * Transfer size option (RFC 2349): 0 in a RRQ asking for the size of
+     * the file, the size of the file to come in a WRQ
+     * @return value sent by the client, or -1 if the option was not
+     * requested or is not a number
+     */
+    public long transferSize() {
+        return tsize;
+    }
+
+    /**
+     * @return true if the client asked for a multicast transfer (RFC 2090),
+     * the option is sent with an empty value
+     */
+    public boolean multicast() {
+        return multicast;
+    }
+
+    /**
+     * Negotiate compression with the client: the codecs it takes for a RRQ,
+     * most wanted first, or the one it would compress the data of a WRQ with
+     * @return first codec named which the server knows, or null if the
+     * option was not requested, names none or compression is switched off
+     */
+    public Codec compression() {
+        return compress != null && EncodedCache.enabled() ? Compression.choose(compress) : null;
+    }
+
+    /**
+     * Write option acknowledgement (OACK) for the accepted options into the buffer
+     * @param buffer - buffer to write the packet to
+     * @param accepted - accepted options and their values
+     * @return length of the packet
+     */
+    public static int writeOptionAck(byte[] buffer, Map<String, String> accepted) {
+        return OptionAckPacket.write(ByteBuffer.wrap(buffer), accepted).limit();
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public boolean hasOptions() {
+        return optionCount > 0;
+    }
+}
@@ -1,14 +1,33 @@
 package TFTPServer;
 
+import TFTPCore.EncodedCache;
+import TFTPCore.HandlerExecutor;
+import TFTPCore.ErrorPacket;
+import TFTPCore.Log;
+import TFTPCore.MetricsEndpoint;
+import TFTPCore.TftpPacket;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * TFTP Server -
  * Receives request packets from clients and passes them to TFTPServerThread
- * which responds to read and write requests (RRQ/WRQ)
+ * which responds to read and write requests (RRQ/WRQ); these run on an
+ * executor, virtual threads or a bounded pool (HandlerExecutor)
+ * Requests are received by one or more RequestListeners sharing the port.
+ * A request sent again by a client whose transfer is still running is
+ * ignored, so a retransmitted WRQ cannot start over a finished upload.
  * Note that it only supports octet mode and uses port number 1234 rather than
  * to avoid issues of administrator's rights.
+ * Run with --engine=nio to serve transfers from event loops (NioServer)
+ * instead of a thread per transfer.
  * @author 246644
  * @version 2023
  */
@@ -19,35 +38,115 @@ public class TFTPServer {
      * @throws IOException
      */
     public static void main (String[] args) throws IOException {
-        int TFTP_PORT = 1234;
-        DatagramSocket serverSocket = null;
+        ServerConfig config = null;
         try {
-            serverSocket = new DatagramSocket(TFTP_PORT);
-        } catch (SocketException e) {
-            System.err.println("Could not bind to port, may already be in use.");
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java TFTPServer [--engine=thread|nio] [--loops=N] [--port=N] [--listeners=N]"
+                    + " [--executor=virtual|pool] [--threads=N] [--queue=N]"
+                    + " [--cache-size=N[k|m|g]] [--cache-offheap=true|false] [--packet-cache-size=N[k|m|g]]"
+                    + " [--large-files=shared|mapped] [--fsync=none|end|N[k|m|g]] [--metrics-port=N]"
+                    + " [--log-level=error|warn|info|debug|trace] [--log-async=true|false]"
+                    + " [--multicast=group:port] [--multicast-ttl=N] [--multicast-interface=name]"
+                    + " [--compress=off|N[k|m]] [--compress-cache=N[k|m|g]]");
             System.exit(1);
         }
-        // packet size = opcode (2 bytes) + block number (2 bytes) + data (512 bytes)
-        byte[] buffer = new byte[516];
-        DatagramPacket receivePacket = new DatagramPacket(buffer, buffer.length);
-        System.out.println("Starting server...");
+        Log.configure(config.getLogLevel(), config.isLogAsync());
+        Metrics.register();
+        if (config.getMetricsPort() > 0) {
+            MetricsEndpoint.start(config.getMetricsPort(), Metrics::prometheus);
+        }
+        FileCache.configure(config.getCacheSize(), config.isCacheOffHeap(),
+                config.getLargeFiles().equals(ServerConfig.LARGE_FILES_MAPPED));
+        PacketCache.configure(config.getPacketCacheSize());
+        WriteSession.configure(config.getSyncInterval());
+        EncodedCache.configure(config.getCompressThreshold(), config.getCompressCache());
+        if (config.getMulticastGroup() != null) {
+            NetworkInterface multicastInterface = null;
+            if (config.getMulticastInterface() != null) {
+                multicastInterface = NetworkInterface.getByName(config.getMulticastInterface());
+                if (multicastInterface == null) {
+                    System.err.println("Unknown network interface " + config.getMulticastInterface());
+                    System.exit(1);
+                }
+            }
+            try {
+                MulticastTransfers.configure(InetAddress.getByName(config.getMulticastGroup()),
+                        config.getMulticastPort(), config.getMulticastTtl(), multicastInterface);
+            } catch (IllegalArgumentException | UnknownHostException e) {
+                System.err.println("Invalid multicast group: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (config.getEngine().equals(ServerConfig.ENGINE_NIO)) {
+            new NioServer(config).run();
+            return;
+        }
+        DatagramChannel[] channels = bind(config);
+        ExecutorService executor = HandlerExecutor.create(config.getExecutor(), config.getThreads(), config.getQueue(),
+                "transfers", "TFTPServerThread");
+        // transfers in progress by client address and port
+        Map<SocketAddress, TransferSession> sessions = new ConcurrentHashMap<SocketAddress, TransferSession>();
+        Log.info("Starting server with " + channels.length + " request listeners...");
+        RequestListener.start(channels, (request, client, channel) -> accept(executor, sessions, request, client, channel));
+    }
 
-        while (true) {
-            // wait for incoming packets from clients
-            if (serverSocket != null) {
-                serverSocket.receive(receivePacket);
+    /**
+     * Bind the channels of the request listeners, exit if the port cannot be used
+     */
+    static DatagramChannel[] bind(ServerConfig config) {
+        try {
+            return RequestListener.bind(config.getPort(), config.getListeners());
+        } catch (IOException e) {
+            System.err.println("Could not bind to port, may already be in use: " + e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
 
-                int[] opcode = {receivePacket.getData()[0], receivePacket.getData()[1]};
-                // if valid request opcode create a thread
-                if (opcode[0] == 0 && (opcode[1] == 1 || opcode[1] == 2)) {
-                    System.out.println("\nAccepted UDP packet from " + receivePacket.getAddress() + ", " + receivePacket.getPort());
-                    // start new thread to process received packet
-                    new TFTPServerThread(receivePacket).start();
-                } else {
-                    System.out.println("Incorrect data.");
-                }
+    /**
+     * Start a TFTPServerThread for a request, called by the request listeners
+     */
+    private static void accept(ExecutorService executor, Map<SocketAddress, TransferSession> sessions,
+                               ByteBuffer request, InetSocketAddress client, DatagramChannel channel) throws IOException {
+        int opcode = TftpPacket.opcode(request);
+        // if valid request opcode create a thread
+        if (opcode == TftpPacket.OP_RRQ || opcode == TftpPacket.OP_WRQ) {
+            // client sent the request again before the first answer arrived; the
+            // kernel sends every packet of one client to the same listener
+            if (sessions.containsKey(client)) {
+                return;
+            }
+            Log.debug("Accepted UDP packet from ", client);
+            // client joins a multicast transfer of the file instead
+            if (MulticastTransfers.offer(request.array(), request.limit(), client)) {
+                return;
+            }
+            // request is parsed here, the caller reuses the buffer
+            TransferSession session = TransferSession.create(request.array(), request.limit(), client);
+            if (session == null) {
+                return;
             }
+            sessions.put(client, session);
+            // run new task to process received packet
+            try {
+                executor.execute(new TFTPServerThread(session, sessions));
+            } catch (RejectedExecutionException e) {
+                // pool and queue full, client may retry later
+                sessions.remove(client, session);
+                Log.warn("Server busy, request rejected.");
+                sendBusy(channel, client);
+            }
+        } else {
+            Log.warn("Incorrect data from ", client);
         }
     }
-}
 
+    /**
+     * Tell a client its request was not accepted
+     */
+    private static void sendBusy(DatagramChannel channel, InetSocketAddress client) throws IOException {
+        channel.send(ErrorPacket.write(ByteBuffer.allocate(64), TftpPacket.ERR_NOT_DEFINED, "Server busy, try again later."), client);
+    }
+}
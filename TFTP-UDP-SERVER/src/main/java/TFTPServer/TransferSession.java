@@ -0,0 +1,279 @@
+package TFTPServer;
+
+import TFTPCore.AckPacket;
+import TFTPCore.ErrorPacket;
+import TFTPCore.Log;
+import TFTPCore.OptionAckPacket;
+import TFTPCore.RequestPacket;
+import TFTPCore.RetransmitTimer;
+import TFTPCore.TftpPacket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TransferSession - state machine for one read or write transfer
+ * The session does no I/O on the network itself: the engine driving it
+ * hands over packets from the client and timeouts, and the session answers
+ * through its PacketSender. This lets the thread per transfer engine
+ * (TFTPServerThread) and the event loop engine (NioServer) share one
+ * implementation of the protocol. Packets are read through views
+ * (TFTPCore) held by the session and written into its one outgoing
+ * buffer, so nothing is allocated per packet.
+ * @author 246644
+ * @version 2023
+ */
+public abstract class TransferSession {
+    protected final TFTPRequest request;
+    protected final String filename;
+    protected final InetSocketAddress client;
+    protected PacketSender sender;
+    // the engine gives the session a thread of its own, which may wait for the disk
+    protected boolean mayBlock;
+    // negotiated block size, data packets are 4 + blksize bytes
+    protected int blksize;
+    // negotiated window size, number of blocks sent before waiting for an ACK
+    protected int windowsize;
+    // options accepted by the server, sent back in an OACK
+    protected final Map<String, String> acceptedOptions;
+    // retransmission timeout worked out from the round trip time
+    protected final RetransmitTimer timer;
+    // outgoing packet, sized for the negotiated block size
+    protected ByteBuffer out;
+    // view of an ERROR packet from the client
+    protected final ErrorPacket error;
+    // System.nanoTime() at which onTimeout() is due, Long.MAX_VALUE if nothing is outstanding
+    protected long deadline;
+    private boolean done;
+    // System.nanoTime() when the engine started the transfer, 0 before and after
+    private long startedAt;
+    // file data moved, blocks sent or received and timeouts, for the summary of the transfer
+    protected long bytes;
+    protected long blocks;
+    protected long retransmits;
+    protected int timeouts;
+    // size of the file from the tsize option or the file itself, -1 if not known
+    protected long total;
+    // earliest deadline an event loop has queued for this session
+    long scheduledAt;
+
+    protected TransferSession(TFTPRequest request, InetSocketAddress client) {
+        this.request = request;
+        this.filename = request.getFilename();
+        this.client = client;
+        blksize = TFTPRequest.DEFAULT_BLKSIZE;
+        windowsize = TFTPRequest.DEFAULT_WINDOWSIZE;
+        acceptedOptions = new LinkedHashMap<String, String>();
+        timer = new RetransmitTimer(Metrics.TIMER);
+        error = new ErrorPacket();
+        deadline = Long.MAX_VALUE;
+        total = -1;
+        done = false;
+        scheduledAt = Long.MAX_VALUE;
+        Log.debug("Filename requested: ", filename);
+        negotiateOptions();
+        out = ByteBuffer.allocate(Math.max(TftpPacket.PACKET, TftpPacket.HEADER + blksize));
+    }
+
+    /**
+     * Create session for a request packet
+     * @param data - request packet data, starting with the opcode
+     * @param length - length of the packet
+     * @param client - address and port of the client
+     * @return new session, or null if the packet is not a RRQ or WRQ
+     */
+    public static TransferSession create(byte[] data, int length, InetSocketAddress client) {
+        RequestPacket packet = new RequestPacket().wrap(ByteBuffer.wrap(data, 0, length));
+        if (!packet.isValid()) {
+            return null;
+        }
+        if (packet.isRead()) { // read request - opcode: 01
+            return new ReadSession(TFTPRequest.parse(packet), client);
+        }
+        return new WriteSession(TFTPRequest.parse(packet), client); // write request - opcode: 02
+    }
+
+    /**
+     * Negotiate options requested by the client (RFC 2347)
+     * Unknown or invalid options are ignored and left out of the OACK.
+     */
+    private void negotiateOptions() {
+        int requested = request.blockSize();
+        if (requested > 0) {
+            blksize = requested;
+            acceptedOptions.put(TFTPRequest.OPT_BLKSIZE, Integer.toString(blksize));
+            Log.debug("Block size negotiated: ", blksize);
+        }
+        requested = request.windowSize();
+        if (requested > 0) {
+            windowsize = requested;
+            acceptedOptions.put(TFTPRequest.OPT_WINDOWSIZE, Integer.toString(windowsize));
+            Log.debug("Window size negotiated: ", windowsize);
+        }
+        requested = request.timeout();
+        if (requested > 0) {
+            timer.setFixedTimeout(requested);
+            acceptedOptions.put(TFTPRequest.OPT_TIMEOUT, Integer.toString(requested));
+            Log.debug("Timeout negotiated (s): ", requested);
+        }
+    }
+
+    /**
+     * Set where packets for the client are sent, before the session is started
+     * @param mayBlock - false on an event loop, the session must then not
+     * wait for its file but report isWaiting() instead
+     */
+    public void attach(PacketSender sender, boolean mayBlock) {
+        this.sender = sender;
+        this.mayBlock = mayBlock;
+        startedAt = System.nanoTime();
+        Metrics.sessionStarted();
+    }
+
+    /**
+     * Send the first packets of the transfer
+     */
+    public abstract void start() throws IOException;
+
+    /**
+     * Handle a packet received from the client
+     * @param packet - packet between position and limit, only valid during the call
+     */
+    public abstract void onPacket(ByteBuffer packet) throws IOException;
+
+    /**
+     * Handle the deadline passing without an answer from the client
+     */
+    public abstract void onTimeout() throws IOException;
+
+    /**
+     * End the transfer, called once by the engine when it is done
+     */
+    public final void close() {
+        if (startedAt != 0) {
+            long nanos = System.nanoTime() - startedAt;
+            Metrics.sessionEnded(nanos);
+            startedAt = 0;
+            if (Log.isEnabled(Log.INFO)) {
+                Log.info(summary() + " " + filename + " (" + client + "): " + bytes
+                        + (total >= 0 ? " of " + total : "") + " bytes, "
+                        + blocks + " blocks, " + retransmits + " retransmitted, " + timeouts + " timeouts in "
+                        + nanos / 1000000 + " ms");
+            }
+        }
+        release();
+    }
+
+    /**
+     * @return what happened to the file, the start of the line logged when the transfer ends
+     */
+    protected abstract String summary();
+
+    /**
+     * Release files held by the session
+     */
+    protected abstract void release();
+
+    /**
+     * Mark transfer as finished, the engine closes the session
+     */
+    protected void finish() {
+        done = true;
+        deadline = Long.MAX_VALUE;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return true while the session cannot take another packet without
+     * waiting for its file; an event loop stops reading the session's
+     * channel, and holds back its timeout, until this is false again
+     */
+    public boolean isWaiting() {
+        return false;
+    }
+
+    /**
+     * Carry on with what the session was waiting for, called by an event
+     * loop once isWaiting() is false again, before it reads the channel
+     */
+    public void resume() throws IOException {
+    }
+
+    public long deadline() {
+        return deadline;
+    }
+
+    /**
+     * @return file data moved so far
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return size of the file, -1 if it is not known before the transfer ends
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public InetSocketAddress getClient() {
+        return client;
+    }
+
+    /**
+     * @return largest packet the client may send in this transfer
+     */
+    public int packetSize() {
+        return Math.max(TftpPacket.PACKET, TftpPacket.HEADER + blksize);
+    }
+
+    /**
+     * @return socket buffer size needed to hold a full window
+     */
+    public int windowBytes() {
+        return windowsize * (4 + blksize);
+    }
+
+    /**
+     * Send OACK with the accepted options to the client
+     */
+    protected void sendOptionAck() throws IOException {
+        sender.send(OptionAckPacket.write(out, acceptedOptions));
+        Log.debug("OACK sent to client: ", acceptedOptions);
+    }
+
+    /**
+     * Send ACK for the given block number to the client
+     */
+    protected void sendAck(int block) throws IOException {
+        sender.send(AckPacket.write(out, block));
+    }
+
+    /**
+     * Send error to client
+     * @param code - error code, one of the TftpPacket.ERR_ constants
+     * @param errorMessage - detail shown by the client
+     */
+    protected void sendError(int code, String errorMessage) throws IOException {
+        Log.trace("Sending error message...");
+        sender.send(ErrorPacket.write(out, code, errorMessage));
+        Log.debug("Error sent: ", errorMessage);
+    }
+
+    /**
+     * Retry limit reached, tell the client and stop the transfer
+     */
+    protected void giveUp() throws IOException {
+        Log.warn("No response after " + RetransmitTimer.MAX_RETRIES + " retries from ", client);
+        sendError(TftpPacket.ERR_NOT_DEFINED, "Transfer timed out.");
+        Metrics.sessionFailed();
+        finish();
+    }
+}
\ No newline at end of file
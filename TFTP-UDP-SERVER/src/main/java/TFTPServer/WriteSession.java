@@ -0,0 +1,513 @@
+package TFTPServer;
+
+import TFTPCore.BlockWriter;
+import TFTPCore.ChunkDecoder;
+import TFTPCore.Codec;
+import TFTPCore.Compression;
+import TFTPCore.DataPacket;
+import TFTPCore.Log;
+import TFTPCore.RetransmitTimer;
+import TFTPCore.TftpPacket;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * WriteSession - serves a write request (WRQ)
+ * Blocks are acknowledged once per window (RFC 7440), or as soon as a
+ * block arrives out of order so the client restarts after the last good one.
+ * When nothing arrives before the timer runs out the last ACK is sent again.
+ * Once the last block is acknowledged the session waits one more timeout
+ * (RFC 1350) and answers the last block with the same ACK should the client
+ * send it again because that ACK was lost. The wait is at least the initial
+ * timeout, as the client's own timer may not have come down as far as ours.
+ * Blocks are stored as raw bytes by a BlockWriter, behind the transfer.
+ * While its ring is full the session is waiting: an event loop leaves the
+ * next packets in the socket until the writer has room, and a thread of its
+ * own waits in BlockWriter.write(), so a slow disk holds the client back
+ * instead of blocks being dropped and sent again.
+ * Where the fsync policy says the file must be on disk before an ACK goes
+ * out, an event loop has the sync or close run on another thread and waits
+ * for it, like for a full ring, before sending the ACK.
+ * A size announced with the tsize option (RFC 2349) is checked against the
+ * free space, and the file set to that length, before the first block.
+ * A client compressing the file sends the chunks of Compression in its
+ * blocks; each chunk is decoded into the writer as soon as it is complete.
+ * A block may complete more chunks than the ring has room for: a thread of
+ * its own waits for a free slot, while an event loop keeps the rest of the
+ * block aside and hands it to the writer in resume(), before the block is
+ * acknowledged and the next packet read.
+ * @author 246644
+ * @version 2023
+ */
+public class WriteSession extends TransferSession {
+    // bytes written between syncs, set at startup
+    private static volatile long syncInterval = BlockWriter.SYNC_NONE;
+
+    private BlockWriter writer;
+    // chunks of a compressed file are decoded into the writer, null if the file comes as it is
+    private ChunkDecoder decoder;
+    // next block number expected from the client
+    private int block;
+    private boolean dataReceived;
+    // blocks received in order since the last ACK
+    private int windowCount;
+    // set once the client has been told about a missing block, so that
+    // the rest of the window does not trigger an ACK each
+    private boolean gapAcked;
+    // block number of the previous data packet
+    private int previousBlock;
+    private long ackSentAt;
+    // last ACK has been sent again, the next block cannot be timed
+    private boolean ackRetransmitted;
+    // last block has arrived and been acknowledged, the session waits for a repeat of it
+    private boolean receivedAll;
+    // view of a DATA packet from the client
+    private final DataPacket data;
+    // sync or close of the writer holding back an ACK on an event loop, null if none
+    private CompletableFuture<Void> flushing;
+    // the flush is of the last block
+    private boolean flushingEnd;
+    // data the writer had no room for on an event loop, waiting for resume()
+    private final ArrayDeque<Pending> pending;
+    // the block the pending data belongs to is the last one
+    private boolean pendingEnd;
+
+    /**
+     * Data of the current block kept for the writer, with its place in the file
+     */
+    private static class Pending {
+        private final long position;
+        private final byte[] data;
+
+        private Pending(long position, byte[] data) {
+            this.position = position;
+            this.data = data;
+        }
+    }
+
+    public WriteSession(TFTPRequest request, InetSocketAddress client) {
+        super(request, client);
+        block = 1; // starting to receive first block
+        dataReceived = false;
+        windowCount = 0;
+        gapAcked = false;
+        previousBlock = 0;
+        data = new DataPacket();
+        pending = new ArrayDeque<Pending>();
+    }
+
+    /**
+     * Set the fsync policy for received files, called once at startup
+     * @param interval - BlockWriter.SYNC_NONE, SYNC_AT_END or a number of bytes
+     */
+    public static void configure(long interval) {
+        syncInterval = interval;
+    }
+
+    @Override
+    public void start() throws IOException {
+        Log.debug("Write request...");
+        File file = new File(filename);
+        // size announced by the client (RFC 2349), refuse a file which
+        // would not fit before any data is sent
+        long size = request.transferSize();
+        if (size >= 0 && !BlockWriter.fits(file.toPath(), size)) {
+            Log.warn("No room for " + size + " bytes of ", filename);
+            sendError(TftpPacket.ERR_DISK_FULL, "Disk full or allocation exceeded.");
+            finish();
+            return;
+        }
+        // readers starting from now must not get the old contents
+        FileCache.invalidate(file);
+        Codec codec = request.compression();
+        try {
+            // Create file with given name, a slot holds a block or a decoded chunk
+            int slotSize = codec != null ? Compression.CHUNK : blksize;
+            writer = new BlockWriter(file.toPath(), slotSize,
+                    BlockWriter.ringBlocks(slotSize, windowsize), syncInterval);
+        } catch (IOException e) {
+            Log.warn("Cannot create ", filename);
+            sendError(TftpPacket.ERR_ACCESS_VIOLATION, "SERVER ERROR: Cannot create specified filename");
+            finish();
+            return;
+        }
+        // lay the file out at its full size, and tell the client the size was accepted
+        if (size >= 0) {
+            try {
+                writer.preallocate(size);
+            } catch (IOException e) {
+                failWrite(e);
+                return;
+            }
+            total = size;
+            acceptedOptions.put(TFTPRequest.OPT_TSIZE, Long.toString(size));
+        }
+        // client compresses the data with the codec acknowledged
+        if (codec != null) {
+            decoder = new ChunkDecoder(codec, this::decoded);
+            acceptedOptions.put(TFTPRequest.OPT_COMPRESS, codec.getName());
+        }
+        // ready to receive file
+        Log.trace("Ready to receive packets from client.");
+        // options accepted, OACK takes the place of ACK block 0
+        if (!acceptedOptions.isEmpty()) {
+            sendOptionAck();
+        }
+        // no data received, send ACK to client
+        else {
+            sendAck(0);
+            Log.trace("ACK sent to client: ", client);
+        }
+        ackSentAt = System.nanoTime();
+        ackRetransmitted = false;
+        deadline = ackSentAt + timer.timeout() * 1000000L;
+    }
+
+    @Override
+    public void onPacket(ByteBuffer packet) throws IOException {
+        int opcode = TftpPacket.opcode(packet);
+        // check if error code received
+        if (opcode == TftpPacket.OP_ERROR) {
+            Log.warn("Error received from client: ", error.wrap(packet).message());
+            complete();
+            return;
+        }
+        if (!data.wrap(packet).isValid()) {
+            return;
+        }
+        // file stored, the last ACK was lost if the client sends the last block again
+        if (receivedAll) {
+            int lastBlock = (block - 1) & 0xffff;
+            if (data.block() == lastBlock) {
+                Log.trace("Last block repeated, sending ACK again");
+                sendAck(lastBlock);
+                deadline = lingerDeadline();
+            }
+            return;
+        }
+        // data received from client
+        int length = data.dataLength();
+        Log.trace("Data packet received: ", length);
+        int dataBlock = data.block();
+        // Correct data, write to file
+        // received block number in buffer is same as expected
+        if (dataBlock == block) {
+            Log.trace("Correct block");
+            // first block after an ACK measures the round trip
+            if (windowCount == 0 && !ackRetransmitted) {
+                timer.sample(System.nanoTime() - ackSentAt);
+            }
+            // more data than the client announced, compressed data is checked once decoded
+            if (decoder == null && total >= 0 && bytes + length > total) {
+                failWrite(new IOException("more than the " + total + " bytes announced"));
+                return;
+            }
+            // hand the data to the writer, at its place in the file
+            try {
+                if (decoder != null) {
+                    decoder.feed(packet.array(), packet.arrayOffset() + data.dataStart(), length);
+                } else {
+                    store(bytes, packet.array(), packet.arrayOffset() + data.dataStart(), length);
+                }
+            } catch (IOException e) {
+                failWrite(e);
+                return;
+            }
+            timer.reset();
+            Metrics.dataReceived(length);
+            bytes += length;
+            blocks++;
+            dataReceived = true;
+            gapAcked = false;
+            windowCount++;
+            // packet smaller than negotiated packet size; end of data
+            boolean endOfFile = length < blksize;
+            // on an event loop the rest of the block waits in resume() for room in the writer
+            if (pending.isEmpty()) {
+                stored(endOfFile);
+            } else {
+                pendingEnd = endOfFile;
+            }
+        }
+        // block after a missing one, acknowledge the last block received in
+        // order so the client restarts from there; a block already held is not
+        // acknowledged (Sorcerer's Apprentice Syndrome), a lost ACK is sent
+        // again when the timer runs out
+        else if (((dataBlock - block) & 0xffff) < 0x8000) {
+            // block number went backwards, the client restarted its window
+            // and its first block went missing again
+            if (((dataBlock - previousBlock) & 0xffff) > 0x8000) {
+                gapAcked = false;
+            }
+            if (!gapAcked) {
+                Log.trace("Unexpected block ", dataBlock);
+                sendAck((block - 1) & 0xffff);
+                gapAcked = true;
+                windowCount = 0;
+                ackSentAt = System.nanoTime();
+                ackRetransmitted = true;
+            }
+        }
+        previousBlock = dataBlock;
+    }
+
+    @Override
+    public void onTimeout() throws IOException {
+        // no repeat of the last block, the client has the last ACK
+        if (receivedAll) {
+            complete();
+            return;
+        }
+        Log.debug("Socket timed out");
+        timeouts++;
+        if (!timer.backoff()) {
+            giveUp();
+            abortWriter();
+            new File(filename).delete();
+            return;
+        }
+        // send the OACK or acknowledge the last block again so the client resends the window
+        if (!dataReceived && !acceptedOptions.isEmpty()) {
+            sendOptionAck();
+        } else {
+            sendAck((block - 1) & 0xffff);
+        }
+        ackRetransmitted = true;
+        windowCount = 0;
+        deadline = System.nanoTime() + timer.timeout() * 1000000L;
+    }
+
+    /**
+     * The block just received is with the writer, sync or close the file if
+     * it must be on disk before the ACK, or acknowledge the block
+     */
+    private void stored(boolean endOfFile) throws IOException {
+        // the whole file must be written, and synced if asked for, before the last ACK
+        if (endOfFile) {
+            try {
+                checkDecoded();
+            } catch (IOException e) {
+                failWrite(e);
+                return;
+            }
+            flush(true);
+        } else if (windowCount == windowsize && writer.syncDue()) {
+            flush(false);
+        } else {
+            acknowledge(false);
+        }
+    }
+
+    /**
+     * Acknowledge the block just received if it ends a window or the file,
+     * and get ready for the next one
+     */
+    private void acknowledge(boolean endOfFile) throws IOException {
+        // send ACK packet to client at the end of a window or of the file
+        if (windowCount == windowsize || endOfFile) {
+            Log.trace("Sending ACK to client");
+            sendAck(block);
+            Log.trace("ACK sent for block ", block);
+            windowCount = 0;
+            ackSentAt = System.nanoTime();
+            ackRetransmitted = false;
+        }
+        // the timer runs from the last packet received in order
+        deadline = System.nanoTime() + timer.timeout() * 1000000L;
+        // increment block, to move to next one
+        // max size of two bytes reached, start at zero again
+        block = (block + 1) & 0xffff;
+        // wait a timeout for the last block to come again before closing
+        if (endOfFile) {
+            receivedAll = true;
+            deadline = lingerDeadline();
+        }
+    }
+
+    /**
+     * @return end of the wait for a repeat of the last block
+     */
+    private long lingerDeadline() {
+        return System.nanoTime() + Math.max(timer.timeout(), RetransmitTimer.INITIAL_TIMEOUT) * 1000000L;
+    }
+
+    /**
+     * Close the file after the last block, or sync it, then acknowledge;
+     * on an event loop the ACK waits in resume() for another thread to finish
+     */
+    private void flush(boolean endOfFile) throws IOException {
+        if (!mayBlock) {
+            flushing = endOfFile ? writer.closeAsync() : writer.syncAsync();
+            flushingEnd = endOfFile;
+            return;
+        }
+        try {
+            if (endOfFile) {
+                writer.close();
+            } else {
+                writer.sync();
+            }
+        } catch (IOException e) {
+            failWrite(e);
+            return;
+        }
+        acknowledge(endOfFile);
+    }
+
+    @Override
+    public boolean isWaiting() {
+        return (flushing != null && !flushing.isDone()) || (writer != null && writer.isFull());
+    }
+
+    @Override
+    public void resume() throws IOException {
+        // the time spent waiting for the file does not count against the client
+        deadline = System.nanoTime() + timer.timeout() * 1000000L;
+        // the rest of a block the writer had no room for
+        if (!pending.isEmpty()) {
+            try {
+                while (!pending.isEmpty()) {
+                    Pending next = pending.peek();
+                    if (!writer.offer(next.position, next.data, 0, next.data.length)) {
+                        return;
+                    }
+                    pending.poll();
+                }
+            } catch (IOException e) {
+                failWrite(e);
+                return;
+            }
+            stored(pendingEnd);
+            return;
+        }
+        if (flushing == null) {
+            return;
+        }
+        CompletableFuture<Void> done = flushing;
+        flushing = null;
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            failWrite(e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause()));
+            return;
+        }
+        acknowledge(flushingEnd);
+    }
+
+    /**
+     * Hand a decoded chunk of a compressed file to the writer
+     */
+    private void decoded(long position, byte[] chunk, int length) throws IOException {
+        if (total >= 0 && position + length > total) {
+            throw new IOException("more than the " + total + " bytes announced");
+        }
+        store(position, chunk, 0, length);
+    }
+
+    /**
+     * Hand data to the writer; a thread of its own waits for room, an event
+     * loop keeps a copy of what does not fit, to be handed over by resume()
+     * while the full ring makes the session wait
+     */
+    private void store(long position, byte[] src, int offset, int length) throws IOException {
+        if (mayBlock) {
+            writer.write(position, src, offset, length);
+        } else if (!pending.isEmpty() || !writer.offer(position, src, offset, length)) {
+            pending.add(new Pending(position, Arrays.copyOfRange(src, offset, offset + length)));
+        }
+    }
+
+    /**
+     * The last block has arrived, a compressed file must end with a whole chunk
+     * and be the size announced
+     */
+    private void checkDecoded() throws IOException {
+        if (decoder == null) {
+            return;
+        }
+        if (!decoder.atBoundary()) {
+            throw new IOException("compressed data ends inside a chunk");
+        }
+        if (total >= 0 && decoder.getDecoded() != total) {
+            throw new IOException(decoder.getDecoded() + " bytes where " + total + " were announced");
+        }
+    }
+
+    /**
+     * Transfer ended, close the file
+     * empty file may have been created; delete it
+     */
+    private void complete() {
+        // client gave up, keep what it sent; an event loop leaves writing
+        // it out to another thread
+        if (!receivedAll && writer != null) {
+            if (mayBlock) {
+                closeWriter();
+            } else {
+                pending.clear();
+                writer.closeAsync().exceptionally(e -> {
+                    Log.warn("Could not close ", filename);
+                    return null;
+                });
+                // release() must not abort the close before it has started
+                writer = null;
+            }
+        }
+        if (!dataReceived) {
+            File file = new File(filename);
+            file.delete();
+            Log.debug("No data received.");
+        } else {
+            Log.debug("File received.");
+        }
+        finish();
+    }
+
+    /**
+     * File could not be written, tell the client and remove what was stored
+     */
+    private void failWrite(IOException e) throws IOException {
+        Log.warn("Could not write " + filename + ": ", e.getMessage());
+        abortWriter();
+        new File(filename).delete();
+        sendError(TftpPacket.ERR_DISK_FULL, "Disk full or allocation exceeded.");
+        Metrics.sessionFailed();
+        finish();
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.warn("Could not close ", filename);
+            }
+        }
+    }
+
+    private void abortWriter() {
+        if (writer != null) {
+            writer.abort();
+        }
+    }
+
+    @Override
+    protected String summary() {
+        if (decoder != null) {
+            return receivedAll ? "Received compressed" : "Incomplete compressed write of";
+        }
+        return receivedAll ? "Received" : "Incomplete write of";
+    }
+
+    @Override
+    protected void release() {
+        abortWriter();
+    }
+}